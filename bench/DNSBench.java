@@ -0,0 +1,338 @@
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// benchmark class:
+//  - micro benchmarks of the codec and cache hot paths, run the JMH way:
+//    warmup iterations, then measured ones, every benchmark at several thread
+//    counts, results kept alive in a sink so the JIT can't drop the work;
+//  - reports throughput (ops/s, all threads together) and, like JMH's gc
+//    profiler (gc.alloc.rate.norm), the bytes allocated per operation;
+//  - the packets are real-world shaped responses: one with compression
+//    pointers, the same one without, and a referral with NS and glue records.
+//
+// usage: java -cp out:bench-out DNSBench [--filter=cache] [--threads=1,2,4,8]
+//        [--warmup=3] [--iterations=5] [--time=1000]
+// JMH itself can't be used: it does not support benchmark classes in the
+// default package, which is where the server classes live.
+
+public class DNSBench {
+
+    // www.github.com A: CNAME to github.com, then its A record, with an OPT record; compressed
+    private static final byte[] COMPRESSED = hex(
+            "3a7c81800001000200000001037777770667697468756203636f6d0000010001c00c0005000100000e10"
+            + "0002c010c010000100010000003c00048c52790400002904d0000000000000");
+    // the same response with every name written out
+    private static final byte[] UNCOMPRESSED = hex(
+            "3a7c81800001000200000001037777770667697468756203636f6d0000010001037777770667697468756203"
+            + "636f6d000005000100000e10000c0667697468756203636f6d000667697468756203636f6d00000100010000"
+            + "003c00048c52790400002904d0000000000000");
+    // a .com server referring www.example.com to a/b.iana-servers.net, with A and AAAA glue
+    private static final byte[] REFERRAL = hex(
+            "12348000000100000002000503777777076578616d706c6503636f6d0000010001c010000200010002a30000"
+            + "1401610c69616e612d73657276657273036e657400c010000200010002a30000040162c02fc02d0001000100"
+            + "02a3000004c72b8735c04d000100010002a3000004c72b8535c02d001c00010002a300001020010500008f00"
+            + "000000000000000053c04d001c00010002a300001020010500008d0000000000000000005300002904d00000"
+            + "00000000");
+    // a client query for www.github.com A with EDNS0
+    private static final byte[] QUERY = hex(
+            "beef01200001000000000001037777770667697468756203636f6d000001000100002904d0000000000000");
+
+    private static final int CACHE_NAMES = 10_000;
+
+    // one benchmark: op() is called in a loop by every thread
+    private interface Bench {
+        long op() throws Exception;
+    }
+
+    private interface BenchFactory {
+        Bench create() throws Exception;
+    }
+
+    private static volatile long sink_;
+
+    private static int warmup_ = 3;
+    private static int iterations_ = 5;
+    private static int time_ = 1000;
+
+    public static void main(String[] args) throws Exception {
+        String filter = "";
+        int[] threads = {1, 2, 4, 8};
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--filter=")) {
+                filter = value;
+            } else if (arg.startsWith("--threads=")) {
+                threads = Arrays.stream(value.split(",")).mapToInt(Integer::parseInt).toArray();
+            } else if (arg.startsWith("--warmup=")) {
+                warmup_ = Integer.parseInt(value);
+            } else if (arg.startsWith("--iterations=")) {
+                iterations_ = Integer.parseInt(value);
+            } else if (arg.startsWith("--time=")) {
+                time_ = Integer.parseInt(value);
+            } else {
+                throw new IllegalArgumentException("bad option: " + arg);
+            }
+        }
+
+        // codec: single threaded, like one listener loop
+        List<String> names = new ArrayList<>();
+        List<BenchFactory> benches = new ArrayList<>();
+        List<int[]> threadCounts = new ArrayList<>();
+        int[] one = {1};
+
+        names.add("decode.compressed");
+        benches.add(() -> () -> DNSMessage.decodeMessage(COMPRESSED).responses_.length);
+        threadCounts.add(one);
+
+        names.add("decode.uncompressed");
+        benches.add(() -> () -> DNSMessage.decodeMessage(UNCOMPRESSED).responses_.length);
+        threadCounts.add(one);
+
+        names.add("decode.referral");
+        benches.add(() -> () -> DNSMessage.decodeMessage(REFERRAL).addRecords_.length);
+        threadCounts.add(one);
+
+        names.add("decode.query.wire");
+        benches.add(() -> {
+            DNSWireMessage wire = new DNSWireMessage();
+            ByteBuffer buffer = ByteBuffer.wrap(QUERY);
+            return () -> wire.wrap(buffer).question(0).qName_.length;
+        });
+        threadCounts.add(one);
+
+        names.add("encode.response");
+        benches.add(() -> {
+            DNSMessage reply = DNSMessage.decodeMessage(REFERRAL);
+            DNSMessage request = DNSMessage.buildQuery(reply.requests_[0], 7);
+            return () -> DNSMessage.buildResponse(request, reply.responses_, reply.nsRecords_,
+                    reply.addRecords_, 0).toBytes().length;
+        });
+        threadCounts.add(one);
+
+        names.add("encode.cached.render");
+        benches.add(() -> {
+            DNSMessage reply = DNSMessage.decodeMessage(COMPRESSED);
+            DNSWireResponse response = DNSCacheEntry.fromResponse(reply.requests_[0], reply).response_;
+            return () -> response.render(0x1234, 1232).length;
+        });
+        threadCounts.add(one);
+
+        names.add("encode.cached.renderTo");
+        benches.add(() -> {
+            DNSMessage reply = DNSMessage.decodeMessage(COMPRESSED);
+            DNSWireResponse response = DNSCacheEntry.fromResponse(reply.requests_[0], reply).response_;
+            ByteBuffer out = ByteBuffer.allocateDirect(1232);
+            return () -> {
+                out.clear();
+                response.renderTo(out, 0x1234, 1232, 1232);
+                return out.position();
+            };
+        });
+        threadCounts.add(one);
+
+        // cache: one shared cache, every thread with its own benchmark state
+        DNSCache cache = new DNSCache(CACHE_NAMES * 2, 256L * 1024 * 1024);
+        DNSQuestion[] questions = new DNSQuestion[CACHE_NAMES];
+        DNSCacheEntry[] entries = new DNSCacheEntry[CACHE_NAMES];
+        DNSMessage template = DNSMessage.decodeMessage(COMPRESSED);
+        for (int i = 0; i < CACHE_NAMES; i++) {
+            questions[i] = question("host" + i + ".example.com");
+            entries[i] = DNSCacheEntry.fromResponse(questions[i], template);
+            cache.add(questions[i], entries[i]);
+        }
+
+        names.add("cache.get");
+        benches.add(() -> () -> {
+            DNSCacheEntry entry = cache.getEntry(questions[skewed(CACHE_NAMES)]);
+            return entry == null ? 0 : 1;
+        });
+        threadCounts.add(threads);
+
+        // the same hits looked up from query packets, as the UDP fast path does
+        ByteBuffer[] queries = new ByteBuffer[CACHE_NAMES];
+        for (int i = 0; i < CACHE_NAMES; i++) {
+            queries[i] = ByteBuffer.wrap(DNSMessage.buildQuery(questions[i], 0).toBytes());
+        }
+
+        names.add("cache.get.wire");
+        benches.add(() -> {
+            DNSWireMessage wire = new DNSWireMessage();
+            return () -> {
+                DNSWireResponse response = cache.getResponse(wire.wrap(queries[skewed(CACHE_NAMES)]), 12);
+                return response == null ? 0 : 1;
+            };
+        });
+        threadCounts.add(threads);
+
+        names.add("cache.get.miss");
+        DNSQuestion absent = question("absent.example.org");
+        benches.add(() -> () -> cache.getEntry(absent) == null ? 0 : 1);
+        threadCounts.add(threads);
+
+        names.add("cache.mixed.90get.10put");
+        benches.add(() -> () -> {
+            int i = skewed(CACHE_NAMES);
+            if (ThreadLocalRandom.current().nextInt(10) == 0) {
+                cache.add(questions[i], entries[i]);
+                return 1;
+            }
+            return cache.getEntry(questions[i]) == null ? 0 : 1;
+        });
+        threadCounts.add(threads);
+
+        // the same, with the entries kept off the heap
+        DNSCache offHeap = new DNSCache(CACHE_NAMES * 2, 256L * 1024 * 1024, true);
+        for (int i = 0; i < CACHE_NAMES; i++) {
+            offHeap.add(questions[i], entries[i]);
+        }
+
+        names.add("cache.offheap.get");
+        benches.add(() -> () -> {
+            DNSWireResponse response = offHeap.getResponse(questions[skewed(CACHE_NAMES)]);
+            return response == null ? 0 : 1;
+        });
+        threadCounts.add(threads);
+
+        names.add("cache.offheap.get.wire");
+        benches.add(() -> {
+            DNSWireMessage wire = new DNSWireMessage();
+            return () -> {
+                DNSWireResponse response = offHeap.getResponse(wire.wrap(queries[skewed(CACHE_NAMES)]), 12);
+                return response == null ? 0 : 1;
+            };
+        });
+        threadCounts.add(threads);
+
+        names.add("cache.offheap.mixed.90get.10put");
+        benches.add(() -> () -> {
+            int i = skewed(CACHE_NAMES);
+            if (ThreadLocalRandom.current().nextInt(10) == 0) {
+                offHeap.add(questions[i], entries[i]);
+                return 1;
+            }
+            return offHeap.getResponse(questions[i]) == null ? 0 : 1;
+        });
+        threadCounts.add(threads);
+
+        // rate limiting: every query of a UDP listener goes through check() first;
+        // many clients, so the buckets are both refilled and spent
+        DNSRateLimiter limiter = new DNSRateLimiter(1000, 0, "slip", 2, 24, 56, 65536);
+        InetSocketAddress[] clients = new InetSocketAddress[CACHE_NAMES];
+        for (int i = 0; i < CACHE_NAMES; i++) {
+            clients[i] = new InetSocketAddress(
+                    InetAddress.getByAddress(new byte[]{10, (byte) (i >> 16), (byte) (i >> 8), (byte) i}), 53);
+        }
+
+        names.add("rrl.check");
+        benches.add(() -> () -> limiter.check(clients[skewed(CACHE_NAMES)]));
+        threadCounts.add(threads);
+
+        System.out.printf(Locale.ROOT, "%-32s %7s %16s %12s %14s%n",
+                "benchmark", "threads", "ops/s", "+-", "bytes/op");
+        for (int b = 0; b < names.size(); b++) {
+            if (!names.get(b).contains(filter)) {
+                continue;
+            }
+            for (int t : threadCounts.get(b)) {
+                run(names.get(b), benches.get(b), t);
+            }
+        }
+    }
+
+    private static void run(String name, BenchFactory factory, int threads) throws Exception {
+        for (int i = 0; i < warmup_; i++) {
+            measure(factory, threads);
+        }
+        double[] throughput = new double[iterations_];
+        double allocated = 0;
+        for (int i = 0; i < iterations_; i++) {
+            double[] result = measure(factory, threads);
+            throughput[i] = result[0];
+            allocated += result[1];
+        }
+        double mean = Arrays.stream(throughput).average().orElse(0);
+        double variance = Arrays.stream(throughput).map(x -> (x - mean) * (x - mean)).sum()
+                / Math.max(1, iterations_ - 1);
+        System.out.printf(Locale.ROOT, "%-32s %7d %16.0f %12.0f %14.1f%n",
+                name, threads, mean, Math.sqrt(variance), allocated / iterations_);
+    }
+
+    // one iteration: every thread runs op() for time_ ms; returns {ops/s, bytes/op}
+    private static double[] measure(BenchFactory factory, int threads) throws Exception {
+        com.sun.management.ThreadMXBean mx =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        AtomicBoolean running = new AtomicBoolean(true);
+        CountDownLatch ready = new CountDownLatch(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        long[] ops = new long[threads];
+        long[] bytes = new long[threads];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            Bench bench = factory.create();
+            int index = t;
+            workers[t] = new Thread(() -> {
+                long id = Thread.currentThread().getId();
+                long count = 0;
+                long sum = 0;
+                ready.countDown();
+                try {
+                    start.await();
+                    long before = mx.getThreadAllocatedBytes(id);
+                    while (running.get()) {
+                        sum += bench.op();
+                        count++;
+                    }
+                    bytes[index] = mx.getThreadAllocatedBytes(id) - before;
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                ops[index] = count;
+                sink_ += sum;
+            }, "bench-" + t);
+            workers[t].start();
+        }
+        ready.await();
+        long begin = System.nanoTime();
+        start.countDown();
+        Thread.sleep(time_);
+        running.set(false);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        long totalOps = Arrays.stream(ops).sum();
+        long totalBytes = Arrays.stream(bytes).sum();
+        return new double[]{totalOps / seconds, totalOps == 0 ? 0 : (double) totalBytes / totalOps};
+    }
+
+    // mostly the first names, like real traffic: index = n * u^3
+    private static int skewed(int n) {
+        double u = ThreadLocalRandom.current().nextDouble();
+        return (int) (n * u * u * u);
+    }
+
+    private static DNSQuestion question(String name) {
+        DNSQuestion question = new DNSQuestion();
+        question.qName_ = name.split("\\.");
+        question.qType_ = 1;
+        question.qClass_ = 1;
+        return question;
+    }
+
+    private static byte[] hex(String s) {
+        byte[] bytes = new byte[s.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,319 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// load generator class:
+//  - open loop, like dnsperf -Q: queries go out at the target rate whether or
+//    not the answers come back, so a slow server shows up as latency and loss
+//    instead of quietly slowing the test down (coordinated omission);
+//  - the queries are either a file in the dnsperf format ("name type" a line,
+//    replayed in order and looped) or a Zipf-distributed set of names under a
+//    domain, so a few names are hot and the tail is mostly cache misses;
+//  - every socket has its own 16-bit id space, the send time is kept per id and
+//    the latency of each answer goes in a DNSHistogram; an id not answered
+//    within --timeout is counted lost;
+//  - prints the rate every second, then QPS, p50/p99/p999, loss and rcodes.
+//
+// usage: java -cp out:bench-out DNSLoadGen [--server=127.0.0.1:53] [--rate=1000]
+//        [--duration=10] [--timeout=2000] [--sockets=4] [--queries=file |
+//        --names=10000 --zipf=1.0 --domain=example.com]
+// with DNSStubUpstream as the upstream the whole test stays on this machine.
+
+public class DNSLoadGen {
+
+    private static final int IDS = 65536;
+
+    // one socket: its channel, and the send time (nanos, 0 when none) by id
+    private static class Sender {
+        final DatagramChannel channel_;
+        final AtomicLongArray sentAt_ = new AtomicLongArray(IDS);
+        int nextId_;
+
+        Sender(DatagramChannel channel) {
+            channel_ = channel;
+        }
+    }
+
+    private static final DNSHistogram latency_ = new DNSHistogram();
+    private static final LongAdder sent_ = new LongAdder();
+    private static final LongAdder received_ = new LongAdder();
+    private static final LongAdder lost_ = new LongAdder();
+    private static final LongAdder[] rCodes_ = new LongAdder[16];
+
+    private static volatile boolean running_ = true;
+
+    public static void main(String[] args) throws Exception {
+        String server = "127.0.0.1:53";
+        int rate = 1000;
+        int duration = 10;
+        int timeout = 2000;
+        int sockets = 4;
+        String queries = null;
+        int names = 10_000;
+        double zipf = 1.0;
+        String domain = "example.com";
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--server=")) {
+                server = value;
+            } else if (arg.startsWith("--rate=")) {
+                rate = Integer.parseInt(value);
+            } else if (arg.startsWith("--duration=")) {
+                duration = Integer.parseInt(value);
+            } else if (arg.startsWith("--timeout=")) {
+                timeout = Integer.parseInt(value);
+            } else if (arg.startsWith("--sockets=")) {
+                sockets = Integer.parseInt(value);
+            } else if (arg.startsWith("--queries=")) {
+                queries = value;
+            } else if (arg.startsWith("--names=")) {
+                names = Integer.parseInt(value);
+            } else if (arg.startsWith("--zipf=")) {
+                zipf = Double.parseDouble(value);
+            } else if (arg.startsWith("--domain=")) {
+                domain = value;
+            } else {
+                throw new IllegalArgumentException("bad option: " + arg);
+            }
+        }
+        for (int i = 0; i < rCodes_.length; i++) {
+            rCodes_[i] = new LongAdder();
+        }
+
+        // every query encoded once, with id 0; the id is patched in when sent
+        byte[][] packets = queries != null ? readQueries(queries) : zipfNames(names, domain);
+        double[] cdf = queries != null ? null : zipfCdf(names, zipf);
+
+        InetSocketAddress target = DNSUpstreamServer.parseAddress(server, 53);
+        Sender[] senders = new Sender[sockets];
+        for (int i = 0; i < sockets; i++) {
+            DatagramChannel channel = DatagramChannel.open();
+            channel.connect(target);
+            Sender sender = new Sender(channel);
+            senders[i] = sender;
+            Thread receiver = new Thread(() -> receive(sender), "loadgen-receive-" + i);
+            receiver.setDaemon(true);
+            receiver.start();
+        }
+        long timeoutNanos = timeout * 1_000_000L;
+        Thread reaper = new Thread(() -> reap(senders, timeoutNanos), "loadgen-reap");
+        reaper.setDaemon(true);
+        reaper.start();
+
+        System.out.println("Sending " + rate + " queries/s to " + target + " for " + duration + " s"
+                + (queries != null ? " from " + queries : ", " + names + " names, zipf " + zipf));
+        long interval = 1_000_000_000L / rate;
+        long begin = System.nanoTime();
+        long end = begin + duration * 1_000_000_000L;
+        long next = begin;
+        long report = begin + 1_000_000_000L;
+        long count = 0;
+        long lastSent = 0;
+        long lastReceived = 0;
+        ByteBuffer out = ByteBuffer.allocate(512);
+        while (true) {
+            long now = System.nanoTime();
+            if (now >= end) {
+                break;
+            }
+            if (now >= report) {
+                long s = sent_.sum();
+                long r = received_.sum();
+                System.out.printf(Locale.ROOT, "> %3ds sent %d/s, answered %d/s, p99 %.2f ms%n",
+                        (now - begin) / 1_000_000_000L, s - lastSent, r - lastReceived,
+                        latency_.quantile(0.99) / 1000.0);
+                lastSent = s;
+                lastReceived = r;
+                report += 1_000_000_000L;
+            }
+            if (now < next) {
+                LockSupport.parkNanos(Math.min(next - now, 1_000_000L));
+                continue;
+            }
+            // open loop: catch up on every query that is due, don't wait for answers
+            while (next <= now) {
+                byte[] packet = packets[cdf != null ? zipfIndex(cdf) : (int) (count % packets.length)];
+                Sender sender = senders[(int) (count % sockets)];
+                int id = sender.nextId_;
+                sender.nextId_ = (id + 1) & 0xffff;
+                out.clear();
+                out.put(packet).flip();
+                out.putShort(0, (short) id);
+                if (sender.sentAt_.getAndSet(id, System.nanoTime()) != 0) {
+                    // the id came round again before the last query got an answer
+                    lost_.increment();
+                }
+                sender.channel_.write(out);
+                sent_.increment();
+                count++;
+                next += interval;
+            }
+        }
+        long elapsed = System.nanoTime() - begin;
+        // let the last answers arrive, then the reaper counts the rest lost
+        Thread.sleep(timeout + 100);
+        running_ = false;
+        for (Sender sender : senders) {
+            for (int id = 0; id < IDS; id++) {
+                if (sender.sentAt_.getAndSet(id, 0) != 0) {
+                    lost_.increment();
+                }
+            }
+        }
+
+        long sent = sent_.sum();
+        long received = received_.sum();
+        double seconds = elapsed / 1e9;
+        System.out.println();
+        System.out.printf(Locale.ROOT, "Queries sent:      %d (%.0f/s)%n", sent, sent / seconds);
+        System.out.printf(Locale.ROOT, "Queries answered:  %d (%.0f/s)%n", received, received / seconds);
+        System.out.printf(Locale.ROOT, "Queries lost:      %d (%.2f%%)%n", lost_.sum(),
+                sent == 0 ? 0 : 100.0 * lost_.sum() / sent);
+        System.out.printf(Locale.ROOT, "Latency (ms):      p50 %.3f  p99 %.3f  p999 %.3f  max %.3f%n",
+                latency_.quantile(0.5) / 1000.0, latency_.quantile(0.99) / 1000.0,
+                latency_.quantile(0.999) / 1000.0, latency_.quantile(1.0) / 1000.0);
+        StringBuilder codes = new StringBuilder();
+        for (int i = 0; i < rCodes_.length; i++) {
+            long n = rCodes_[i].sum();
+            if (n > 0) {
+                codes.append(' ').append(rCodeName(i)).append(' ').append(n);
+            }
+        }
+        System.out.println("Response codes:   " + codes);
+    }
+
+    // answers: match the id, record the latency
+    private static void receive(Sender sender) {
+        ByteBuffer in = ByteBuffer.allocate(65535);
+        while (running_) {
+            try {
+                in.clear();
+                sender.channel_.read(in);
+                long now = System.nanoTime();
+                if (in.position() < 12) {
+                    continue;
+                }
+                int id = in.getShort(0) & 0xffff;
+                long sentAt = sender.sentAt_.getAndSet(id, 0);
+                if (sentAt == 0) {
+                    // already counted lost, or a duplicate
+                    continue;
+                }
+                latency_.record((now - sentAt) / 1000);
+                received_.increment();
+                rCodes_[in.get(3) & 0x0f].increment();
+            } catch (Exception e) {
+                // the channel: an ICMP port unreachable shows up here, keep going
+            }
+        }
+    }
+
+    // every 10 ms: ids waiting longer than the timeout are lost
+    private static void reap(Sender[] senders, long timeout) {
+        while (running_) {
+            LockSupport.parkNanos(10_000_000L);
+            long now = System.nanoTime();
+            for (Sender sender : senders) {
+                for (int id = 0; id < IDS; id++) {
+                    long sentAt = sender.sentAt_.get(id);
+                    if (sentAt != 0 && now - sentAt > timeout
+                            && sender.sentAt_.compareAndSet(id, sentAt, 0)) {
+                        lost_.increment();
+                    }
+                }
+            }
+        }
+    }
+
+    // a dnsperf query file: "name type" a line, # comments
+    private static byte[][] readQueries(String file) throws Exception {
+        List<byte[]> packets = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            int type = fields.length > 1 ? typeCode(fields[1]) : 1;
+            packets.add(query(fields[0], type));
+        }
+        if (packets.isEmpty()) {
+            throw new IllegalArgumentException("no queries in " + file);
+        }
+        return packets.toArray(new byte[0][]);
+    }
+
+    // n A queries: a name for every rank, the rank picked by zipfIndex
+    private static byte[][] zipfNames(int n, String domain) throws IOException {
+        byte[][] packets = new byte[n][];
+        for (int i = 0; i < n; i++) {
+            packets[i] = query("host" + i + "." + domain, 1);
+        }
+        return packets;
+    }
+
+    // cdf[i]: probability of a rank <= i, with p(rank k) proportional to 1 / k^s
+    private static double[] zipfCdf(int n, double s) {
+        double[] cdf = new double[n];
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += 1 / Math.pow(i + 1, s);
+            cdf[i] = sum;
+        }
+        for (int i = 0; i < n; i++) {
+            cdf[i] /= sum;
+        }
+        return cdf;
+    }
+
+    private static int zipfIndex(double[] cdf) {
+        int index = Arrays.binarySearch(cdf, ThreadLocalRandom.current().nextDouble());
+        return Math.min(cdf.length - 1, index >= 0 ? index : -index - 1);
+    }
+
+    private static byte[] query(String name, int type) throws IOException {
+        DNSQuestion question = new DNSQuestion();
+        question.qName_ = name.endsWith(".") ? name.substring(0, name.length() - 1).split("\\.")
+                : name.split("\\.");
+        question.qType_ = type;
+        question.qClass_ = 1;
+        return DNSMessage.buildQuery(question, 0).toBytes();
+    }
+
+    private static int typeCode(String type) {
+        switch (type.toUpperCase(Locale.ROOT)) {
+            case "A": return 1;
+            case "NS": return 2;
+            case "CNAME": return 5;
+            case "SOA": return 6;
+            case "PTR": return 12;
+            case "MX": return 15;
+            case "TXT": return 16;
+            case "AAAA": return 28;
+            case "SRV": return 33;
+            default: return Integer.parseInt(type.startsWith("TYPE") ? type.substring(4) : type);
+        }
+    }
+
+    private static String rCodeName(int rCode) {
+        switch (rCode) {
+            case 0: return "NOERROR";
+            case 2: return "SERVFAIL";
+            case 3: return "NXDOMAIN";
+            case 5: return "REFUSED";
+            default: return "RCODE" + rCode;
+        }
+    }
+}
@@ -0,0 +1,572 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+// loopback check class:
+//  - end-to-end checks of the paths the benchmarks don't exercise, with the
+//    servers run in this process and fake upstreams on loopback, so they need
+//    no network: serve-stale then refresh, snapshot load, peer messages
+//    (signed PUSH and GET taken, unsigned, forged or replayed ones dropped),
+//    iterative resolution against fake root, com and example.com servers
+//    on 127.0.0.1, .2 and .3;
+//  - every check prints ok or FAIL with what it saw, the exit code is the
+//    number of failures. the servers' own output is not shown.
+//
+// usage: java -cp out:bench-out DNSLoopbackCheck [--filter=stale]
+
+public class DNSLoopbackCheck {
+
+    private static final int TYPE_A = 1;
+    private static final int TYPE_NS = 2;
+    private static final int TYPE_CNAME = 5;
+    private static final int TYPE_SOA = 6;
+    private static final int CLASS_IN = 1;
+    private static final int NOERROR = 0;
+    private static final int SERVFAIL = 2;
+    private static final int NXDOMAIN = 3;
+    // DNSPeers messages
+    private static final int PEER_GET = 1;
+    private static final int PEER_HIT = 2;
+    private static final int PEER_PUSH = 4;
+
+    private interface Check {
+        void run() throws Exception;
+    }
+
+    private static final PrintStream out_ = System.out;
+
+    public static void main(String[] args) throws Exception {
+        String filter = "";
+        for (String arg : args) {
+            if (arg.startsWith("--filter=")) {
+                filter = arg.substring("--filter=".length());
+            } else {
+                throw new IllegalArgumentException("bad option: " + arg);
+            }
+        }
+        Map<String, Check> checks = new LinkedHashMap<>();
+        checks.put("stale.then.refresh", DNSLoopbackCheck::staleThenRefresh);
+        checks.put("snapshot.load", DNSLoopbackCheck::snapshotLoad);
+        checks.put("peer.auth", DNSLoopbackCheck::peerAuth);
+        checks.put("iterative", DNSLoopbackCheck::iterative);
+
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        int failures = 0;
+        for (Map.Entry<String, Check> check : checks.entrySet()) {
+            if (!check.getKey().contains(filter)) {
+                continue;
+            }
+            try {
+                check.getValue().run();
+                out_.println("ok    " + check.getKey());
+            } catch (Exception | AssertionError e) {
+                out_.println("FAIL  " + check.getKey() + ": " + e.getMessage());
+                failures++;
+            }
+        }
+        System.exit(failures);
+    }
+
+    // an expired answer is served stale while the upstream is down, then
+    // replaced by a fresh one once it is back
+    private static void staleThenRefresh() throws Exception {
+        FakeUpstream upstream = new FakeUpstream(2);
+        int port = freePort();
+        startServer("--port=" + port, "--upstream=127.0.0.1:" + upstream.port(),
+                "--upstream-timeout=300", "--upstream-retries=0", "--stale-timeout=200", "--stale-ttl=2",
+                "--prefetch-fraction=0");
+        Reply fresh = query(port, "stale.test");
+        expect(fresh.rCode_ == NOERROR && fresh.ttl_ >= 1, "first answer " + fresh);
+
+        upstream.answering_ = false;
+        Thread.sleep(2200);
+        Reply stale = query(port, "stale.test");
+        expect(stale.rCode_ == NOERROR && stale.ttl_ == 2, "stale answer " + stale);
+        expect(stale.millis_ >= 150, "stale answer after " + stale.millis_ + "ms, not the stale timeout");
+        Reply again = query(port, "stale.test");
+        expect(again.rCode_ == NOERROR && again.millis_ < 150, "stale answer not cached: " + again);
+
+        upstream.ttl_ = 60;
+        upstream.answering_ = true;
+        Thread.sleep(2200);
+        Reply refreshed = query(port, "stale.test");
+        expect(refreshed.rCode_ == NOERROR && refreshed.ttl_ >= 59, "refreshed answer " + refreshed);
+    }
+
+    // a snapshot taken 10s ago: every TTL comes back 10s shorter, and an entry
+    // whose answer ran out meanwhile is not loaded
+    private static void snapshotLoad() throws Exception {
+        DNSCache cache = new DNSCache();
+        DNSQuestion kept = question("kept.test");
+        DNSQuestion gone = question("gone.test");
+        // the answer lives 300s, its glue 5s
+        cache.add(kept, DNSCacheEntry.fromResponse(kept, DNSMessage.decodeMessage(response("kept.test",
+                new byte[][]{record("kept.test", TYPE_A, 300, new byte[]{10, 0, 0, 1})},
+                new byte[][]{record("ns.kept.test", TYPE_A, 5, new byte[]{10, 0, 0, 2})}))));
+        cache.add(gone, DNSCacheEntry.fromResponse(gone, DNSMessage.decodeMessage(response("gone.test",
+                new byte[][]{record("gone.test", TYPE_A, 8, new byte[]{10, 0, 0, 3})}, new byte[0][]))));
+        Path file = Files.createTempFile("dns-snapshot", ".bin");
+        try {
+            DNSCacheSnapshot.write(cache, file);
+            backdate(file, 10_000);
+            DNSCache loaded = new DNSCache();
+            int count = DNSCacheSnapshot.load(loaded, file);
+            expect(count == 1, count + " entries loaded, not 1");
+            expect(loaded.getResponse(gone) == null, "gone.test loaded after its answer ran out");
+            DNSWireResponse response = loaded.getResponse(kept);
+            expect(response != null, "kept.test not loaded");
+            DNSWireMessage wire = new DNSWireMessage().wrap(ByteBuffer.wrap(response.render(0)));
+            long answer = wire.recordTTL(0);
+            long glue = wire.recordTTL(1);
+            expect(answer >= 285 && answer <= 290, "answer TTL " + answer + ", not 300 less 10s");
+            expect(glue == 0, "glue TTL " + glue + ", not run out");
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    // move the write time and every expiry of the snapshot ms into the past
+    private static void backdate(Path file, long ms) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer data = ByteBuffer.allocate((int) channel.size());
+            channel.read(data, 0);
+            int count = data.getInt(8);
+            data.putLong(12, data.getLong(12) - ms);
+            int at = 20;
+            for (int i = 0; i < count; i++) {
+                data.putLong(at, data.getLong(at) - ms);
+                at += 12 + data.getInt(at + 8);
+            }
+            data.clear();
+            channel.write(data, 0);
+        }
+    }
+
+    // a server whose only peer is this check: PUSHes are cached only when signed
+    // with the group's key and recent, GETs only answered when signed
+    private static void peerAuth() throws Exception {
+        byte[] key = "loopback-check-key".getBytes();
+        Path keyFile = Files.createTempFile("dns-peer", ".key");
+        try {
+            Files.write(keyFile, key);
+            int port = freePort();
+            InetSocketAddress server = new InetSocketAddress("127.0.0.1", freePort());
+            InetSocketAddress self = new InetSocketAddress("127.0.0.1", freePort());
+            InetSocketAddress[] group = {server, self};
+            // a name the server owns, found with a DNSPeers standing in for this check
+            DNSQuestion owned = null;
+            DNSPeers ring = new DNSPeers(group, 1, 100, new DNSCache(), null);
+            for (int i = 0; owned == null; i++) {
+                DNSQuestion question = question("push" + i + ".test");
+                if (!ring.isMine(question)) {
+                    owned = question;
+                }
+            }
+            ring.close();
+            String name = DNSMessage.octetsToString(owned.qName_);
+            // the upstream never answers: a name not pushed is a SERVFAIL
+            startServer("--port=" + port, "--upstream=127.0.0.1:" + freePort(),
+                    "--upstream-timeout=200", "--upstream-retries=0", "--stale-window=0",
+                    "--peers=127.0.0.1:" + server.getPort() + ",127.0.0.1:" + self.getPort(),
+                    "--peer-self=127.0.0.1:" + server.getPort(), "--peer-key-file=" + keyFile);
+            byte[] pushed = response(name, new byte[][]{record(name, TYPE_A, 300, new byte[]{(byte) 192, 0, 2, 55})},
+                    new byte[0][]);
+            try (DatagramSocket socket = new DatagramSocket(self)) {
+                socket.setSoTimeout(500);
+                long now = System.currentTimeMillis();
+                send(socket, server, peerMessage(PEER_PUSH, 0, pushed, null, now));
+                send(socket, server, peerMessage(PEER_PUSH, 0, pushed, "wrong-key".getBytes(), now));
+                send(socket, server, peerMessage(PEER_PUSH, 0, pushed, key, now - 60_000));
+                Thread.sleep(100);
+                Reply rejected = query(port, name);
+                expect(rejected.rCode_ == SERVFAIL, "unsigned, forged or replayed PUSH cached: " + rejected);
+
+                send(socket, server, peerMessage(PEER_PUSH, 0, pushed, key, System.currentTimeMillis()));
+                Thread.sleep(100);
+                Reply taken = query(port, name);
+                expect(taken.rCode_ == NOERROR && taken.data_ != null && (taken.data_[3] & 0xff) == 55,
+                        "signed PUSH not cached: " + taken);
+
+                byte[] get = message(0, 0, name, TYPE_A, new byte[0][], new byte[0][]);
+                byte[] getQuestion = Arrays.copyOfRange(get, 12, get.length);
+                send(socket, server, peerMessage(PEER_GET, 7, getQuestion, null, System.currentTimeMillis()));
+                expect(receive(socket) == null, "unsigned GET answered");
+                send(socket, server, peerMessage(PEER_GET, 8, getQuestion, key, System.currentTimeMillis()));
+                byte[] hit = receive(socket);
+                expect(hit != null && hit[0] == PEER_HIT && hit[2] == 8, "signed GET not answered with a HIT");
+                int signed = hit.length - 16;
+                expect(Arrays.equals(Arrays.copyOfRange(hit, signed, hit.length),
+                        Arrays.copyOf(hmac(key, Arrays.copyOf(hit, signed)), 16)), "HIT not signed with the key");
+            }
+        } finally {
+            Files.deleteIfExists(keyFile);
+        }
+    }
+
+    // a DNSPeers message: op, id, payload, then with a key the time and the tag
+    private static byte[] peerMessage(int op, int id, byte[] payload, byte[] key, long time) throws Exception {
+        ByteBuffer message = ByteBuffer.allocate(3 + payload.length + (key != null ? 24 : 0));
+        message.put((byte) op).putShort((short) id).put(payload);
+        if (key != null) {
+            message.putLong(time);
+            message.put(hmac(key, Arrays.copyOf(message.array(), message.position())), 0, 16);
+        }
+        return message.array();
+    }
+
+    private static byte[] hmac(byte[] key, byte[] data) throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        return mac.doFinal(data);
+    }
+
+    private static void send(DatagramSocket socket, InetSocketAddress to, byte[] data) throws IOException {
+        socket.send(new DatagramPacket(data, data.length, to));
+    }
+
+    // the next datagram, or null if none comes in time
+    private static byte[] receive(DatagramSocket socket) throws IOException {
+        byte[] buffer = new byte[65535];
+        DatagramPacket pkt = new DatagramPacket(buffer, buffer.length);
+        try {
+            socket.receive(pkt);
+        } catch (SocketTimeoutException e) {
+            return null;
+        }
+        return Arrays.copyOf(buffer, pkt.getLength());
+    }
+
+    // names resolved from the root down: referrals with glue, a CNAME, a
+    // glueless delegation, and the root asked once thanks to the delegation cache
+    private static void iterative() throws Exception {
+        int authorityPort = freePort();
+        FakeAuthority root = new FakeAuthority("127.0.0.1", authorityPort, "root");
+        new FakeAuthority("127.0.0.2", authorityPort, "com");
+        new FakeAuthority("127.0.0.3", authorityPort, "example");
+        int port = freePort();
+        startServer("--port=" + port, "--resolution=iterative", "--root-hints=127.0.0.1",
+                "--authority-port=" + authorityPort);
+
+        Reply www = query(port, "www.example.com");
+        expect(www.rCode_ == NOERROR && isAddress(www.data_, 10, 1, 1, 1), "www.example.com: " + www);
+        Reply alias = query(port, "alias.example.com");
+        expect(alias.rCode_ == NOERROR && alias.answers_ == 2, "alias.example.com not followed: " + alias);
+        Reply glueless = query(port, "www.other.com");
+        expect(glueless.rCode_ == NOERROR && isAddress(glueless.data_, 10, 2, 2, 2), "www.other.com: " + glueless);
+        Reply missing = query(port, "nothing.example.com");
+        expect(missing.rCode_ == NXDOMAIN, "nothing.example.com: " + missing);
+        expect(root.queries_.get() == 1, "root asked " + root.queries_.get() + " times");
+    }
+
+    private static boolean isAddress(byte[] data, int... address) {
+        if (data == null || data.length != address.length) {
+            return false;
+        }
+        for (int i = 0; i < data.length; i++) {
+            if ((data[i] & 0xff) != address[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // ---- servers ----
+
+    // a server in this process, with TCP and metrics off
+    private static DNSServer startServer(String... args) throws IOException {
+        String[] all = new String[args.length + 2];
+        System.arraycopy(args, 0, all, 0, args.length);
+        all[args.length] = "--tcp=false";
+        all[args.length + 1] = "--metrics-port=0";
+        DNSServer server = new DNSServer(DNSConfig.parse(all));
+        Thread t = new Thread(server::run, "check-server");
+        t.setDaemon(true);
+        t.start();
+        return server;
+    }
+
+    // the stub upstream's answers, with a TTL and an off switch
+    private static class FakeUpstream implements Runnable {
+        final DatagramSocket socket_;
+        volatile int ttl_;
+        volatile boolean answering_ = true;
+
+        FakeUpstream(int ttl) throws IOException {
+            ttl_ = ttl;
+            socket_ = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0));
+            Thread t = new Thread(this, "check-upstream");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        int port() {
+            return socket_.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            byte[] buffer = new byte[4096];
+            DatagramPacket pkt = new DatagramPacket(buffer, buffer.length);
+            DNSWireMessage wire = new DNSWireMessage();
+            while (true) {
+                try {
+                    pkt.setLength(buffer.length);
+                    socket_.receive(pkt);
+                    if (!answering_) {
+                        continue;
+                    }
+                    byte[] reply = DNSStubUpstream.answer(wire.wrap(ByteBuffer.wrap(buffer, 0, pkt.getLength())),
+                            ttl_);
+                    if (reply != null) {
+                        socket_.send(new DatagramPacket(reply, reply.length, pkt.getSocketAddress()));
+                    }
+                } catch (IOException | RuntimeException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // an authoritative server for one of the iterative check's zones:
+    //  - root refers com to a.gtld.com (glue 127.0.0.2);
+    //  - com refers example.com to ns1.example.com (glue 127.0.0.3), and
+    //    other.com to ns.example.com with no glue;
+    //  - example answers www.example.com, alias.example.com (a CNAME to www),
+    //    the nameservers' addresses and www.other.com.
+    // anything else is NXDOMAIN
+    private static class FakeAuthority implements Runnable {
+        final DatagramSocket socket_;
+        final String role_;
+        final AtomicInteger queries_ = new AtomicInteger();
+
+        FakeAuthority(String address, int port, String role) throws IOException {
+            role_ = role;
+            socket_ = new DatagramSocket(new InetSocketAddress(address, port));
+            Thread t = new Thread(this, "check-authority-" + role);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        @Override
+        public void run() {
+            byte[] buffer = new byte[4096];
+            DatagramPacket pkt = new DatagramPacket(buffer, buffer.length);
+            while (true) {
+                try {
+                    pkt.setLength(buffer.length);
+                    socket_.receive(pkt);
+                    queries_.incrementAndGet();
+                    byte[] reply = answer(ByteBuffer.wrap(buffer, 0, pkt.getLength()));
+                    socket_.send(new DatagramPacket(reply, reply.length, pkt.getSocketAddress()));
+                } catch (IOException | RuntimeException e) {
+                    return;
+                }
+            }
+        }
+
+        private byte[] answer(ByteBuffer query) {
+            int id = query.getShort(0) & 0xffff;
+            StringBuilder sb = new StringBuilder();
+            int offset = 12;
+            for (int length; (length = query.get(offset)) != 0; offset += length + 1) {
+                sb.append(sb.length() > 0 ? "." : "");
+                for (int i = 1; i <= length; i++) {
+                    sb.append((char) Character.toLowerCase(query.get(offset + i)));
+                }
+            }
+            String name = sb.toString();
+            int type = query.getShort(offset + 1) & 0xffff;
+
+            byte[][] answers = {};
+            byte[][] authority = {};
+            byte[][] additional = {};
+            int rCode = NOERROR;
+            if (role_.equals("root") && (name.equals("com") || name.endsWith(".com"))) {
+                authority = new byte[][]{record("com", TYPE_NS, 3600, name("a.gtld.com"))};
+                additional = new byte[][]{address("a.gtld.com", 127, 0, 0, 2)};
+            } else if (role_.equals("com") && name.endsWith("example.com")) {
+                authority = new byte[][]{record("example.com", TYPE_NS, 3600, name("ns1.example.com"))};
+                additional = new byte[][]{address("ns1.example.com", 127, 0, 0, 3)};
+            } else if (role_.equals("com") && name.endsWith("other.com")) {
+                authority = new byte[][]{record("other.com", TYPE_NS, 3600, name("ns.example.com"))};
+            } else if (role_.equals("example") && type == TYPE_A && name.equals("www.example.com")) {
+                answers = new byte[][]{address(name, 10, 1, 1, 1)};
+            } else if (role_.equals("example") && name.equals("alias.example.com")) {
+                answers = new byte[][]{record(name, TYPE_CNAME, 300, name("www.example.com"))};
+            } else if (role_.equals("example") && type == TYPE_A
+                    && (name.equals("ns1.example.com") || name.equals("ns.example.com"))) {
+                answers = new byte[][]{address(name, 127, 0, 0, 3)};
+            } else if (role_.equals("example") && type == TYPE_A && name.equals("www.other.com")) {
+                answers = new byte[][]{address(name, 10, 2, 2, 2)};
+            } else {
+                rCode = NXDOMAIN;
+                String zone = role_.equals("root") ? "" : role_.equals("com") ? "com" : "example.com";
+                authority = new byte[][]{soa(zone)};
+            }
+            boolean aa = answers.length > 0 || rCode == NXDOMAIN;
+
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            ByteBuffer header = ByteBuffer.allocate(12);
+            header.putShort((short) id).putShort((short) (0x8000 | (aa ? 0x0400 : 0) | rCode)).putShort((short) 1)
+                    .putShort((short) answers.length).putShort((short) authority.length)
+                    .putShort((short) additional.length);
+            os.writeBytes(header.array());
+            os.write(query.array(), 12, offset + 5 - 12);
+            for (byte[][] section : new byte[][][]{answers, authority, additional}) {
+                for (byte[] record : section) {
+                    os.writeBytes(record);
+                }
+            }
+            return os.toByteArray();
+        }
+
+        private static byte[] address(String name, int... address) {
+            byte[] data = new byte[address.length];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) address[i];
+            }
+            return record(name, TYPE_A, 300, data);
+        }
+
+        private static byte[] soa(String zone) {
+            String suffix = zone.isEmpty() ? "" : "." + zone;
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            data.writeBytes(name("ns" + suffix));
+            data.writeBytes(name("host" + suffix));
+            data.writeBytes(ByteBuffer.allocate(20).putInt(1).putInt(7200).putInt(900).putInt(1209600).putInt(60)
+                    .array());
+            return record(zone, TYPE_SOA, 300, data.toByteArray());
+        }
+    }
+
+    // ---- queries ----
+
+    // what a check looks at in a reply: rcode, the first answer, and how long it took
+    private static class Reply {
+        int rCode_ = -1;
+        int answers_;
+        long ttl_ = -1;
+        byte[] data_;
+        long millis_;
+
+        @Override
+        public String toString() {
+            return "rcode " + rCode_ + ", " + answers_ + " answers, ttl " + ttl_ + ", " + millis_ + "ms";
+        }
+    }
+
+    // ask the server on port for the A record of name over UDP; a timeout is rcode -1
+    private static Reply query(int port, String name) throws IOException {
+        int id = ThreadLocalRandom.current().nextInt(0x10000);
+        byte[] query = message(id, 0x0100, name, TYPE_A, new byte[0][], new byte[0][]);
+        Reply reply = new Reply();
+        long start = System.nanoTime();
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(3000);
+            socket.send(new DatagramPacket(query, query.length, new InetSocketAddress("127.0.0.1", port)));
+            byte[] buffer = new byte[65535];
+            DatagramPacket pkt = new DatagramPacket(buffer, buffer.length);
+            do {
+                socket.receive(pkt);
+            } while (((buffer[0] & 0xff) << 8 | (buffer[1] & 0xff)) != id);
+            reply.millis_ = (System.nanoTime() - start) / 1_000_000;
+            DNSWireMessage wire = new DNSWireMessage().wrap(ByteBuffer.wrap(buffer, 0, pkt.getLength()));
+            reply.rCode_ = wire.rCode();
+            reply.answers_ = wire.anCount();
+            if (reply.answers_ > 0) {
+                reply.ttl_ = wire.recordTTL(0);
+                int data = wire.recordDataOffset(0);
+                reply.data_ = new byte[wire.recordDataLength(0)];
+                for (int i = 0; i < reply.data_.length; i++) {
+                    reply.data_[i] = (byte) wire.u8(data + i);
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            reply.millis_ = (System.nanoTime() - start) / 1_000_000;
+        }
+        return reply;
+    }
+
+    // ---- packets ----
+
+    private static DNSQuestion question(String name) {
+        DNSQuestion question = new DNSQuestion();
+        question.qName_ = name.split("\\.");
+        question.qType_ = TYPE_A;
+        question.qClass_ = CLASS_IN;
+        return question;
+    }
+
+    // a NOERROR response to the A question for name
+    private static byte[] response(String name, byte[][] answers, byte[][] additional) {
+        return message(0, 0x8180, name, TYPE_A, answers, additional);
+    }
+
+    private static byte[] message(int id, int flags, String name, int type, byte[][] answers, byte[][] additional) {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        ByteBuffer header = ByteBuffer.allocate(12);
+        header.putShort((short) id).putShort((short) flags).putShort((short) 1)
+                .putShort((short) answers.length).putShort((short) 0).putShort((short) additional.length);
+        os.writeBytes(header.array());
+        os.writeBytes(name(name));
+        os.writeBytes(ByteBuffer.allocate(4).putShort((short) type).putShort((short) CLASS_IN).array());
+        for (byte[] record : answers) {
+            os.writeBytes(record);
+        }
+        for (byte[] record : additional) {
+            os.writeBytes(record);
+        }
+        return os.toByteArray();
+    }
+
+    private static byte[] record(String name, int type, int ttl, byte[] data) {
+        byte[] owner = name(name);
+        ByteBuffer record = ByteBuffer.allocate(owner.length + 10 + data.length);
+        record.put(owner).putShort((short) type).putShort((short) CLASS_IN).putInt(ttl)
+                .putShort((short) data.length).put(data);
+        return record.array();
+    }
+
+    // the name in wire format, no compression
+    private static byte[] name(String name) {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        for (String label : name.split("\\.")) {
+            if (!label.isEmpty()) {
+                os.write(label.length());
+                os.writeBytes(label.getBytes());
+            }
+        }
+        os.write(0);
+        return os.toByteArray();
+    }
+
+    // a UDP port nothing is bound to right now
+    private static int freePort() throws IOException {
+        try (DatagramSocket socket = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0))) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void expect(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+}
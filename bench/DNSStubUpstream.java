@@ -0,0 +1,202 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// stub upstream class:
+//  - a fake upstream resolver for load tests, so they need no network:
+//    answers every A query with one A record made up from the name, names
+//    starting with "nx" with NXDOMAIN (and an SOA, so it can be cached),
+//    and anything else with NODATA;
+//  - injected latency (--latency ms, plus up to --jitter ms) and loss (--loss,
+//    a fraction of the queries never answered);
+//  - replies are delayed on a timer, never by sleeping, so it keeps up at any rate;
+//  - the same answers over TCP on the same port, and with --truncate every UDP
+//    answer is sent empty with TC set, so the client has to ask over TCP.
+//
+// usage: java -cp out:bench-out DNSStubUpstream [--port=5300] [--latency=0]
+//        [--jitter=0] [--loss=0] [--ttl=300] [--truncate]
+
+public class DNSStubUpstream {
+
+    private static final int TYPE_A = 1;
+    private static final int TYPE_SOA = 6;
+    private static final int NXDOMAIN = 3;
+
+    public static void main(String[] args) throws Exception {
+        int port = 5300;
+        double latency = 0;
+        double jitter = 0;
+        double loss = 0;
+        int ttl = 300;
+        boolean truncate = false;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(value);
+            } else if (arg.startsWith("--latency=")) {
+                latency = Double.parseDouble(value);
+            } else if (arg.startsWith("--jitter=")) {
+                jitter = Double.parseDouble(value);
+            } else if (arg.startsWith("--loss=")) {
+                loss = Double.parseDouble(value);
+            } else if (arg.startsWith("--ttl=")) {
+                ttl = Integer.parseInt(value);
+            } else if (arg.equals("--truncate")) {
+                truncate = true;
+            } else {
+                throw new IllegalArgumentException("bad option: " + arg);
+            }
+        }
+        DatagramChannel channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(port));
+        startTcp(port, ttl);
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+        LongAdder received = new LongAdder();
+        LongAdder dropped = new LongAdder();
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "stub-report");
+            t.setDaemon(true);
+            return t;
+        });
+        reporter.scheduleAtFixedRate(() -> System.out.println("> stub upstream: " + received.sumThenReset()
+                + " queries/s, " + dropped.sumThenReset() + " dropped"), 1, 1, TimeUnit.SECONDS);
+        System.out.println("Stub upstream listening on port " + port + ", latency " + latency
+                + " ms (+" + jitter + "), loss " + loss);
+
+        ByteBuffer in = ByteBuffer.allocate(4096);
+        DNSWireMessage wire = new DNSWireMessage();
+        while (true) {
+            in.clear();
+            SocketAddress client = channel.receive(in);
+            in.flip();
+            received.increment();
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            if (random.nextDouble() < loss) {
+                dropped.increment();
+                continue;
+            }
+            byte[] reply;
+            try {
+                reply = truncate ? truncated(wire.wrap(in)) : answer(wire.wrap(in), ttl);
+            } catch (RuntimeException e) {
+                continue;
+            }
+            if (reply == null) {
+                continue;
+            }
+            double delay = latency + (jitter > 0 ? random.nextDouble() * jitter : 0);
+            if (delay <= 0) {
+                channel.send(ByteBuffer.wrap(reply), client);
+            } else {
+                timer.schedule(() -> {
+                    try {
+                        channel.send(ByteBuffer.wrap(reply), client);
+                    } catch (Exception e) {
+                        // the load test is over
+                    }
+                }, (long) (delay * 1000), TimeUnit.MICROSECONDS);
+            }
+        }
+    }
+
+    // answer queries over TCP too, a thread per connection
+    private static void startTcp(int port, int ttl) throws IOException {
+        ServerSocket server = new ServerSocket(port);
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket socket = server.accept();
+                    Thread t = new Thread(() -> serveTcp(socket, ttl), "stub-tcp");
+                    t.setDaemon(true);
+                    t.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }, "stub-tcp-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private static void serveTcp(Socket socket, int ttl) {
+        DNSWireMessage wire = new DNSWireMessage();
+        try (socket) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            while (true) {
+                byte[] query = new byte[in.readUnsignedShort()];
+                in.readFully(query);
+                byte[] reply = answer(wire.wrap(ByteBuffer.wrap(query)), ttl);
+                if (reply != null) {
+                    out.writeShort(reply.length);
+                    out.write(reply);
+                    out.flush();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // the client is gone
+        }
+    }
+
+    // the reply to the query with TC set and nothing but the question
+    private static byte[] truncated(DNSWireMessage query) {
+        if (query.qr() != 0 || query.qdCount() != 1) {
+            return null;
+        }
+        int questionEnd = query.questionOffset(1);
+        ByteBuffer out = ByteBuffer.allocate(questionEnd);
+        for (int i = 0; i < questionEnd; i++) {
+            out.put((byte) query.u8(i));
+        }
+        out.putShort(2, (short) (0x8280 | (query.rd() << 8)));
+        out.putShort(10, (short) 0);
+        return out.array();
+    }
+
+    // the reply to the query: its header and question, then the answer.
+    // DNSLoopbackCheck answers with it too
+    static byte[] answer(DNSWireMessage query, int ttl) {
+        if (query.qr() != 0 || query.qdCount() != 1) {
+            return null;
+        }
+        int questionEnd = query.questionOffset(1);
+        ByteBuffer out = ByteBuffer.allocate(questionEnd + 64);
+        for (int i = 0; i < questionEnd; i++) {
+            out.put((byte) query.u8(i));
+        }
+        boolean nx = query.u8(12) >= 2 && query.u8(13) == 'n' && query.u8(14) == 'x';
+        int type = query.questionType(0);
+        // QR, RD copied, RA; no additional records (the OPT is dropped)
+        out.putShort(2, (short) (0x8080 | (query.rd() << 8) | (nx ? NXDOMAIN : 0)));
+        out.putShort(10, (short) 0);
+        if (nx || type != TYPE_A) {
+            // SOA of the root, MINIMUM = ttl, in the authority section
+            out.putShort(8, (short) 1);
+            out.put((byte) 0);
+            out.putShort((short) TYPE_SOA).putShort((short) 1).putInt(ttl).putShort((short) 22);
+            out.put((byte) 0).put((byte) 0);
+            out.putInt(1).putInt(1800).putInt(900).putInt(604800).putInt(ttl);
+        } else {
+            out.putShort(6, (short) 1);
+            // name: pointer to the question
+            out.putShort((short) 0xc00c);
+            out.putShort((short) TYPE_A).putShort((short) 1).putInt(ttl).putShort((short) 4);
+            out.putInt(0x0a000000 | (query.nameHash(12) & 0xffffff));
+        }
+        byte[] reply = new byte[out.position()];
+        out.flip();
+        out.get(reply);
+        return reply;
+    }
+}
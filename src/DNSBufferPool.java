@@ -0,0 +1,42 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+// buffer pool class:
+//  - direct ByteBuffers of one size, handed out and taken back, so the
+//    packet path allocates nothing once it is warm;
+//  - direct buffers are what the channel reads into and writes from anyway,
+//    a heap buffer costs an extra copy through a temporary direct one;
+//  - keeps at most max buffers around, an acquire past that just allocates.
+// not thread-safe: every listener has its own pool.
+
+public class DNSBufferPool {
+
+    private final int bufferSize_;
+    private final int max_;
+    private final ArrayDeque<ByteBuffer> free_ = new ArrayDeque<>();
+
+    public DNSBufferPool(int bufferSize, int max) {
+        bufferSize_ = bufferSize;
+        max_ = max;
+    }
+
+    public int bufferSize() {
+        return bufferSize_;
+    }
+
+    // a cleared buffer
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free_.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSize_);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (free_.size() < max_ && buffer.capacity() == bufferSize_ && buffer.isDirect()) {
+            free_.push(buffer);
+        }
+    }
+}
@@ -1,38 +1,572 @@
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 // cache class:
-//  - store the Map<DNSQuestion, DNSRecord>;
+//  - store the Map<DNSQuestion, DNSCacheEntry>, the whole upstream answer
+//    to each question, negative answers included;
 //  - used to check if a record is in the local cache;
-//  - used to add new record into the cache
+//  - used to add new record into the cache;
+//  - every entry is also kept as an encoded response (DNSWireResponse),
+//    so a hit can be sent without building and encoding a message;
+//  - bounded by a number of entries and an estimated number of bytes.
+//
+// eviction is W-TinyLFU: new entries go to a small LRU "window", and when they
+// fall out of it they only get into the main cache if the frequency sketch says
+// they are asked more often than the entry they would push out. so a scan of
+// one-off names can't flush the popular ones.
+//
+// refresh-ahead: an entry hit at least prefetchHits_ times is refreshed in the
+// background once prefetchFraction_ of its TTL has passed, so popular names are
+// replaced before they expire and nobody has to wait for the upstream.
+//
+// expired entries are also removed without anyone looking them up: every entry
+// is put on a timer wheel at its expiry, and sweep() (see startSweeper) takes
+// out whatever the wheel says is due.
+//
+// serve-stale (RFC 8767): with a stale window, an expired entry is kept that much
+// longer. getEntry() does not return it anymore, but getStale() does, for when the
+// upstream can't give a fresh answer in time.
+//
+// lookups never take a lock: the map is a ConcurrentHashMap, and reads are only
+// recorded in a small lossy buffer which is replayed under the eviction lock
+// by whoever gets it next.
+//
+// built with offHeap, none of the above is used: the entries are kept outside
+// the heap by DNSOffHeapCache, which has its own index and eviction, and every
+// method here just hands over to it.
 
 public class DNSCache {
-    private static Map<DNSQuestion, DNSRecord> cache_;
+
+    // which LRU queue a node is in
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private static final int READ_BUFFER_SIZE = 128;
+
+    private static class Node {
+        final DNSQuestion key_;
+        volatile DNSCacheEntry entry_;
+        int weight_;
+        int queue_;
+        Node prev_;
+        Node next_;
+        // false once the node is evicted or removed
+        boolean alive_ = true;
+
+        Node(DNSQuestion key, DNSCacheEntry entry, int weight) {
+            key_ = key;
+            entry_ = entry;
+            weight_ = weight;
+        }
+    }
+
+    // a question in a packet, looked up in cache_ as it is: it has the hash of the
+    // DNSQuestion it stands for, and equals it. the map calls key.equals(stored key)
+    // (the Map.get contract), so it is never the other way round
+    private static class WireKey {
+        DNSWireMessage wire_;
+        int offset_;
+        int type_;
+        int class_;
+        int hash_;
+
+        WireKey wrap(DNSWireMessage wire, int offset) {
+            wire_ = wire;
+            offset_ = offset;
+            if (wire != null) {
+                int end = wire.skipName(offset);
+                type_ = wire.u16(end);
+                class_ = wire.u16(end + 2);
+                hash_ = DNSQuestion.hash(wire.nameHash(offset), type_, class_);
+            }
+            return this;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash_;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof DNSQuestion)) {
+                return false;
+            }
+            DNSQuestion question = (DNSQuestion) other;
+            return question.qType_ == type_ && question.qClass_ == class_
+                    && wire_.nameEquals(offset_, question.qName_);
+        }
+    }
+
+    // doubly linked LRU list, head is the least recently used
+    private static class Queue {
+        Node head_;
+        Node tail_;
+        int count_;
+
+        void addLast(Node node) {
+            node.prev_ = tail_;
+            node.next_ = null;
+            if (tail_ == null) {
+                head_ = node;
+            } else {
+                tail_.next_ = node;
+            }
+            tail_ = node;
+            count_++;
+        }
+
+        void remove(Node node) {
+            if (node.prev_ == null) {
+                head_ = node.next_;
+            } else {
+                node.prev_.next_ = node.next_;
+            }
+            if (node.next_ == null) {
+                tail_ = node.prev_;
+            } else {
+                node.next_.prev_ = node.prev_;
+            }
+            node.prev_ = null;
+            node.next_ = null;
+            count_--;
+        }
+
+        void moveToLast(Node node) {
+            if (tail_ != node) {
+                remove(node);
+                addLast(node);
+            }
+        }
+    }
+
+    private final ConcurrentHashMap<DNSQuestion, Node> cache_ = new ConcurrentHashMap<>();
+    // the key getResponse(wire, offset) looks up with, per thread
+    private static final ThreadLocal<WireKey> wireKey_ = ThreadLocal.withInitial(WireKey::new);
+    // the off-heap storage, null for the one above
+    private final DNSOffHeapCache offHeap_;
+    private final long maxEntries_;
+    private final long maxBytes_;
+    private final int windowMax_;
+    private final long protectedMax_;
+
+    // refresh-ahead settings, off until setRefresher() is called
+    private volatile Function<DNSQuestion, CompletableFuture<?>> refresher_;
+    private volatile double prefetchFraction_;
+    private volatile int prefetchHits_;
+    // how long (ms) expired entries are kept to be served stale, 0 for not at all
+    private volatile long staleWindow_;
+
+    // everything below is guarded by evictionLock_
+    private final ReentrantLock evictionLock_ = new ReentrantLock();
+    private final DNSFrequencySketch sketch_;
+    private final Queue window_ = new Queue();
+    private final Queue probation_ = new Queue();
+    private final Queue protected_ = new Queue();
+    private long bytes_;
+    private final DNSTimerWheel<Node> expiry_ = new DNSTimerWheel<>(DNSClock.now());
+
+    // recent reads waiting to be applied to the LRU queues and the sketch
+    private final AtomicReferenceArray<Node> readBuffer_ = new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+    private final AtomicLong readCount_ = new AtomicLong();
+
+    // entries that expired, and entries pushed out to stay within budget
+    private final LongAdder expired_ = new LongAdder();
+    private final LongAdder evicted_ = new LongAdder();
 
     public DNSCache() {
-        cache_ = new HashMap<>();
+        this(100_000, 64L * 1024 * 1024);
+    }
+
+    public DNSCache(long maxEntries, long maxBytes) {
+        this(maxEntries, maxBytes, false);
+    }
+
+    // offHeap: keep the entries in direct memory (DNSOffHeapCache), maxBytes of it
+    public DNSCache(long maxEntries, long maxBytes, boolean offHeap) {
+        maxEntries_ = Math.max(1, maxEntries);
+        maxBytes_ = Math.max(1, maxBytes);
+        // 1% window, and 80% of the main cache is protected, like W-TinyLFU suggests
+        windowMax_ = (int) Math.max(1, maxEntries_ / 100);
+        protectedMax_ = (long) ((maxEntries_ - windowMax_) * 0.8);
+        offHeap_ = offHeap ? new DNSOffHeapCache(maxEntries_, maxBytes_) : null;
+        sketch_ = offHeap ? null : new DNSFrequencySketch(maxEntries_);
+    }
+
+    // turn on refresh-ahead: the refresher is called (once at a time per entry) for
+    // entries with at least minHits hits once the given fraction of their TTL has passed.
+    // it is called on the lookup's thread, so it should only start fetching the question
+    // again elsewhere, add() the new entry, and complete the future when done; if the
+    // entry is still there then (the refresh failed), it may be refreshed again.
+    public void setRefresher(Function<DNSQuestion, CompletableFuture<?>> refresher, double fraction, int minHits) {
+        if (offHeap_ != null) {
+            offHeap_.setRefresher(refresher, fraction, minHits);
+            return;
+        }
+        prefetchFraction_ = fraction;
+        prefetchHits_ = minHits;
+        refresher_ = refresher;
     }
 
+    // keep expired entries for seconds more, for getStale()
+    public void setStaleWindow(int seconds) {
+        staleWindow_ = seconds * 1000L;
+        if (offHeap_ != null) {
+            offHeap_.setStaleWindow(seconds);
+        }
+    }
+
+    // true for negative entries too, getRecord() returns null for those
     public boolean contains (DNSQuestion request){
-        if (cache_.containsKey(request)){
+        return getEntry(request) != null;
+    }
+
+    // the first answer record, or null for a negative entry
+    public DNSRecord getRecord(DNSQuestion request){
+        if (offHeap_ != null) {
+            DNSCacheEntry entry = offHeap_.getEntry(request);
+            return entry == null || entry.answers_.length == 0 ? null : entry.answers_[0];
+        }
+        Node node = cache_.get(request);
+        if (node == null || node.entry_.answers_.length == 0) {
+            return null;
+        }
+        return node.entry_.answers_[0];
+    }
+
+    // the cached answer to the request, or null if it is not cached
+    public DNSCacheEntry getEntry(DNSQuestion request){
+        if (offHeap_ != null) {
+            return offHeap_.getEntry(request);
+        }
+        return find(request);
+    }
+
+    // the entry for the key, a DNSQuestion or a WireKey, or null if it is not cached
+    private DNSCacheEntry find(Object key){
+        Node node = cache_.get(key);
+        if (node != null){
             // When you look up an entry, if it is too old
             // (its TTL has expired),
             // remove it and return "not found."
-            if (cache_.get(request).timestampValid()){
-                return true;
-            } else {
-                cache_.remove(request);
-                return false;
+            DNSCacheEntry entry = node.entry_;
+            if (entry.timestampValid()){
+                recordRead(node);
+                maybeRefresh(node.key_, entry);
+                return entry;
+            } else if (DNSClock.now() >= entry.staleUntil_) {
+                expired_.increment();
+                remove(node);
             }
         }
-        return false;
+        return null;
     }
 
-    public DNSRecord getRecord(DNSQuestion request){
-        return cache_.get(request);
+    // the cached answer to the request even if it has expired, as long as it may
+    // still be served stale; null if there is none
+    public DNSCacheEntry getStale(DNSQuestion request){
+        if (offHeap_ != null) {
+            return offHeap_.getStale(request);
+        }
+        Node node = cache_.get(request);
+        if (node == null || DNSClock.now() >= node.entry_.staleUntil_) {
+            return null;
+        }
+        return node.entry_;
+    }
+
+    // the encoded response for the request, or null if it is not cached (or expired).
+    // same as getEntry(), but hands out the pre-encoded bytes.
+    public DNSWireResponse getResponse(DNSQuestion request){
+        if (offHeap_ != null) {
+            return offHeap_.getResponse(request);
+        }
+        DNSCacheEntry entry = getEntry(request);
+        return entry == null ? null : entry.response_;
+    }
+
+    // the same for the question at offset in the packet, without decoding it:
+    // a hit allocates nothing
+    public DNSWireResponse getResponse(DNSWireMessage wire, int offset){
+        if (offHeap_ != null) {
+            return offHeap_.getResponse(wire, offset);
+        }
+        WireKey key = wireKey_.get().wrap(wire, offset);
+        try {
+            DNSCacheEntry entry = find(key);
+            return entry == null ? null : entry.response_;
+        } finally {
+            key.wrap(null, 0);
+        }
     }
 
     public void add(DNSQuestion request, DNSRecord record){
-        cache_.put(request, record);
+        add(request, DNSCacheEntry.fromRecord(request, record));
+    }
+
+    // cache the entry, unless it says it may not be cached
+    public void add(DNSQuestion request, DNSCacheEntry entry){
+        add(request, entry, true);
+    }
+
+    // the same, unless an answer that has not expired is cached already: checked
+    // and done under the cache's lock, so an answer added meanwhile is never lost
+    public void addIfAbsent(DNSQuestion request, DNSCacheEntry entry){
+        add(request, entry, false);
+    }
+
+    private void add(DNSQuestion request, DNSCacheEntry entry, boolean replace){
+        if (!entry.cacheable()) {
+            return;
+        }
+        if (entry.staleUntil_ == 0) {
+            entry.staleUntil_ = entry.expiresAt_ + staleWindow_;
+        }
+        if (offHeap_ != null) {
+            offHeap_.add(request, entry, replace);
+            return;
+        }
+        int weight = 128 + entry.weigh();
+        for (String label : request.qName_) {
+            weight += 48 + label.length();
+        }
+        evictionLock_.lock();
+        try {
+            Node node = cache_.get(request);
+            if (node != null && !replace && node.entry_.timestampValid()) {
+                return;
+            }
+            if (node != null) {
+                // same question, just replace the entry
+                node.entry_ = entry;
+                bytes_ += weight - node.weight_;
+                node.weight_ = weight;
+                queueOf(node).moveToLast(node);
+            } else {
+                node = new Node(request, entry, weight);
+                cache_.put(request, node);
+                node.queue_ = WINDOW;
+                window_.addLast(node);
+                bytes_ += weight;
+            }
+            expiry_.schedule(node, entry.staleUntil_);
+            sketch_.increment(spread(request.hashCode()));
+            evict();
+        } finally {
+            evictionLock_.unlock();
+        }
+    }
+
+    // call the action for every entry that has not expired, e.g. to write a snapshot.
+    // entries added or removed meanwhile may or may not be seen.
+    public void forEach(BiConsumer<DNSQuestion, DNSCacheEntry> action) {
+        if (offHeap_ != null) {
+            offHeap_.forEach(action);
+            return;
+        }
+        for (Node node : cache_.values()) {
+            DNSCacheEntry entry = node.entry_;
+            if (entry.timestampValid()) {
+                action.accept(node.key_, entry);
+            }
+        }
+    }
+
+    // number of entries in the cache
+    public int size() {
+        return offHeap_ != null ? offHeap_.size() : cache_.size();
+    }
+
+    public long expired() {
+        return offHeap_ != null ? offHeap_.expired() : expired_.sum();
+    }
+
+    public long evicted() {
+        return offHeap_ != null ? offHeap_.evicted() : evicted_.sum();
+    }
+
+    // estimated number of bytes used by the entries
+    public long bytes() {
+        if (offHeap_ != null) {
+            return offHeap_.bytes();
+        }
+        evictionLock_.lock();
+        try {
+            return bytes_;
+        } finally {
+            evictionLock_.unlock();
+        }
+    }
+
+    // remove every entry whose TTL has run out
+    public void sweep() {
+        if (offHeap_ != null) {
+            offHeap_.sweep();
+            return;
+        }
+        evictionLock_.lock();
+        try {
+            expiry_.advance(DNSClock.now(), node -> {
+                // the node may be gone already, or hold a newer entry by now
+                if (node.alive_ && DNSClock.now() >= node.entry_.staleUntil_) {
+                    expired_.increment();
+                    unlink(node);
+                }
+            });
+        } finally {
+            evictionLock_.unlock();
+        }
+    }
+
+    // sweep() once a second on a daemon thread
+    public void startSweeper() {
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "dns-cache-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        sweeper.scheduleWithFixedDelay(this::sweep, 1, 1, TimeUnit.SECONDS);
+    }
+
+    private void remove(Node node) {
+        evictionLock_.lock();
+        try {
+            if (node.alive_) {
+                unlink(node);
+            }
+        } finally {
+            evictionLock_.unlock();
+        }
+    }
+
+    // start a refresh of a popular entry that is about to expire
+    private void maybeRefresh(DNSQuestion request, DNSCacheEntry entry) {
+        Function<DNSQuestion, CompletableFuture<?>> refresher = refresher_;
+        if (refresher == null) {
+            return;
+        }
+        entry.hits_.increment();
+        // the hits are only added up once the entry is old enough
+        if (entry.ageFraction() >= prefetchFraction_ && entry.hits_.sum() >= prefetchHits_
+                && entry.refreshing_.compareAndSet(false, true)) {
+            try {
+                refresher.apply(request).whenComplete((done, error) -> entry.refreshing_.set(false));
+            } catch (RuntimeException e) {
+                entry.refreshing_.set(false);
+                DNSLog.error("cannot refresh: " + e.getMessage());
+            }
+        }
+    }
+
+    // remember the read, and replay the buffered ones if nobody else is doing it
+    private void recordRead(Node node) {
+        int index = (int) (readCount_.getAndIncrement() & (READ_BUFFER_SIZE - 1));
+        readBuffer_.lazySet(index, node);
+        if (evictionLock_.tryLock()) {
+            try {
+                drainReads();
+            } finally {
+                evictionLock_.unlock();
+            }
+        }
+    }
+
+    private void drainReads() {
+        for (int i = 0; i < READ_BUFFER_SIZE; i++) {
+            Node node = readBuffer_.getAndSet(i, null);
+            if (node == null) {
+                continue;
+            }
+            sketch_.increment(spread(node.key_.hashCode()));
+            if (!node.alive_) {
+                continue;
+            }
+            if (node.queue_ == PROBATION) {
+                // asked again while on probation: promote it
+                probation_.remove(node);
+                node.queue_ = PROTECTED;
+                protected_.addLast(node);
+                // demote the least recently used protected entries if there are too many
+                while (protected_.count_ > protectedMax_) {
+                    Node demoted = protected_.head_;
+                    protected_.remove(demoted);
+                    demoted.queue_ = PROBATION;
+                    probation_.addLast(demoted);
+                }
+            } else {
+                queueOf(node).moveToLast(node);
+            }
+        }
+    }
+
+    // bring the cache back under its budget, must hold evictionLock_
+    private void evict() {
+        drainReads();
+        // entries falling out of the window compete with the probation victim
+        while (window_.count_ > windowMax_) {
+            Node candidate = window_.head_;
+            window_.remove(candidate);
+            candidate.queue_ = PROBATION;
+            probation_.addLast(candidate);
+            if (cache_.size() <= maxEntries_ && bytes_ <= maxBytes_) {
+                continue;
+            }
+            Node victim = probation_.head_ != candidate ? probation_.head_ : protected_.head_;
+            if (victim == null || !victim.entry_.timestampValid()) {
+                if (victim != null) {
+                    expired_.increment();
+                    unlink(victim);
+                }
+                continue;
+            }
+            int candidateFreq = sketch_.frequency(spread(candidate.key_.hashCode()));
+            int victimFreq = sketch_.frequency(spread(victim.key_.hashCode()));
+            evicted_.increment();
+            unlink(candidateFreq > victimFreq ? victim : candidate);
+        }
+        // still over budget (big records): drop from the cold end
+        while (cache_.size() > maxEntries_ || bytes_ > maxBytes_) {
+            Node victim = probation_.head_ != null ? probation_.head_
+                    : protected_.head_ != null ? protected_.head_ : window_.head_;
+            if (victim == null) {
+                break;
+            }
+            evicted_.increment();
+            unlink(victim);
+        }
+    }
+
+    // take the node out of its queue and the map, must hold evictionLock_
+    private void unlink(Node node) {
+        queueOf(node).remove(node);
+        node.alive_ = false;
+        cache_.remove(node.key_, node);
+        bytes_ -= node.weight_;
+    }
+
+    private Queue queueOf(Node node) {
+        switch (node.queue_) {
+            case WINDOW:
+                return window_;
+            case PROBATION:
+                return probation_;
+            default:
+                return protected_;
+        }
+    }
+
+    private static int spread(int hash) {
+        hash *= 0x9e3779b9;
+        return hash ^ (hash >>> 16);
     }
 }
@@ -0,0 +1,209 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+// cache entry class:
+//  - everything the upstream answered to one question: the answer, authority
+//    and additional sections, and the rcode;
+//  - negative answers (NXDOMAIN, or NODATA: no error but no answers) are
+//    cached too, for the SOA minimum TTL as RFC 2308 says;
+//  - the whole response is also kept encoded, see DNSWireResponse.
+
+public class DNSCacheEntry {
+
+    public static final int NOERROR = 0;
+    public static final int SERVFAIL = 2;
+    public static final int NXDOMAIN = 3;
+
+    public static final int TYPE_SOA = 6;
+    public static final int TYPE_OPT = 41;
+
+    public int rCode_;
+    public DNSRecord[] answers_;
+    public DNSRecord[] authority_;
+    public DNSRecord[] additional_;
+    // NXDOMAIN or NODATA
+    public boolean negative_;
+    // how long the entry may be cached (seconds), -1 if it may not be cached at all
+    public int ttl_;
+    // DNSClock millis when the entry was made, and when it expires
+    public long createdAt_;
+    public long expiresAt_;
+    // DNSClock millis until which the entry may still be served stale once expired
+    // (RFC 8767); set by DNSCache.add() when 0, from the cache's stale window
+    public long staleUntil_;
+    public DNSWireResponse response_;
+    // cache hits so far (a LongAdder: hot entries are hit from every thread at once),
+    // and whether a refresh-ahead is running
+    public final LongAdder hits_ = new LongAdder();
+    public final AtomicBoolean refreshing_ = new AtomicBoolean();
+
+    // an entry holding a single answer record, what DNSCache.add(question, record) stores
+    public static DNSCacheEntry fromRecord(DNSQuestion question, DNSRecord record) {
+        DNSCacheEntry entry = new DNSCacheEntry();
+        entry.rCode_ = NOERROR;
+        entry.answers_ = new DNSRecord[]{record};
+        entry.authority_ = new DNSRecord[0];
+        entry.additional_ = new DNSRecord[0];
+        entry.ttl_ = record.remainingTTL();
+        entry.finish(question);
+        return entry;
+    }
+
+    // build the entry from the upstream reply to the question
+    public static DNSCacheEntry fromResponse(DNSQuestion question, DNSMessage reply) {
+        DNSCacheEntry entry = new DNSCacheEntry();
+        entry.rCode_ = reply.header_.rCode_;
+        entry.answers_ = reply.responses_;
+        entry.authority_ = reply.nsRecords_;
+        entry.additional_ = withoutOpt(reply.addRecords_);
+        entry.negative_ = entry.rCode_ == NXDOMAIN
+                || (entry.rCode_ == NOERROR && entry.answers_.length == 0);
+        entry.ttl_ = cacheTTL(entry, reply.header_.tc_ == 1);
+        entry.finish(question);
+        return entry;
+    }
+
+    // an empty SERVFAIL answer, used when the upstream gave us nothing
+    public static DNSCacheEntry serverFailure(DNSQuestion question) {
+        DNSCacheEntry entry = new DNSCacheEntry();
+        entry.rCode_ = SERVFAIL;
+        entry.answers_ = new DNSRecord[0];
+        entry.authority_ = new DNSRecord[0];
+        entry.additional_ = new DNSRecord[0];
+        entry.ttl_ = -1;
+        entry.finish(question);
+        return entry;
+    }
+
+    // the entry served stale: the same answer with every TTL set to ttl seconds,
+    // which is also how long it may be cached; it may be served stale as long as entry
+    public static DNSCacheEntry stale(DNSQuestion question, DNSCacheEntry entry, int ttl) {
+        DNSCacheEntry stale = new DNSCacheEntry();
+        stale.rCode_ = entry.rCode_;
+        stale.answers_ = withTTL(entry.answers_, ttl);
+        stale.authority_ = withTTL(entry.authority_, ttl);
+        stale.additional_ = withTTL(entry.additional_, ttl);
+        stale.negative_ = entry.negative_;
+        stale.ttl_ = ttl;
+        stale.staleUntil_ = entry.staleUntil_;
+        stale.finish(question);
+        return stale;
+    }
+
+    public boolean cacheable() {
+        return ttl_ >= 0;
+    }
+
+    // whether the entry is still within its TTL
+    public boolean timestampValid() {
+        return DNSClock.now() < expiresAt_;
+    }
+
+    // make the entry expire no later than seconds from now
+    public void limitTTL(int seconds) {
+        if (ttl_ > seconds) {
+            ttl_ = seconds;
+            expiresAt_ = Math.min(expiresAt_, DNSClock.deadline(seconds));
+        }
+    }
+
+    // fraction of the TTL that has passed, 0 to 1 (or more once expired)
+    public double ageFraction() {
+        if (ttl_ <= 0) {
+            return 1;
+        }
+        return (DNSClock.now() - createdAt_) / 1000.0 / ttl_;
+    }
+
+    private void finish(DNSQuestion question) {
+        createdAt_ = DNSClock.now();
+        expiresAt_ = DNSClock.deadline(Math.max(0, ttl_));
+        try {
+            response_ = DNSWireResponse.encode(question, this);
+        } catch (IOException e) {
+            response_ = null;
+        }
+    }
+
+    // positive answers live as long as their shortest record,
+    // negative ones for min(SOA TTL, SOA MINIMUM) (RFC 2308 section 5).
+    private static int cacheTTL(DNSCacheEntry entry, boolean truncated) {
+        if (truncated || (entry.rCode_ != NOERROR && entry.rCode_ != NXDOMAIN)) {
+            return -1;
+        }
+        if (entry.negative_) {
+            for (DNSRecord record : entry.authority_) {
+                if (record.recordType_ == TYPE_SOA && record.recordLength_ >= 4) {
+                    byte[] data = record.recordData_;
+                    int n = data.length;
+                    // MINIMUM is the last field of the SOA rdata
+                    long minimum = ((data[n - 4] & 0xffL) << 24) | ((data[n - 3] & 0xff) << 16)
+                            | ((data[n - 2] & 0xff) << 8) | (data[n - 1] & 0xff);
+                    return (int) Math.min(record.remainingTTL(), minimum);
+                }
+            }
+            // no SOA, no negative caching
+            return -1;
+        }
+        long ttl = Long.MAX_VALUE;
+        for (DNSRecord record : entry.answers_) {
+            ttl = Math.min(ttl, record.remainingTTL());
+        }
+        return (int) Math.min(ttl, Integer.MAX_VALUE);
+    }
+
+    // copies of the records, with ttl seconds left
+    private static DNSRecord[] withTTL(DNSRecord[] records, int ttl) {
+        DNSRecord[] result = new DNSRecord[records.length];
+        for (int i = 0; i < records.length; i++) {
+            DNSRecord record = new DNSRecord();
+            record.recordName_ = records[i].recordName_;
+            record.recordType_ = records[i].recordType_;
+            record.recordClass_ = records[i].recordClass_;
+            record.recordTTL_ = ttl;
+            record.recordExpiresAt_ = DNSClock.deadline(ttl);
+            record.recordLength_ = records[i].recordLength_;
+            record.recordData_ = records[i].recordData_;
+            result[i] = record;
+        }
+        return result;
+    }
+
+    // the OPT pseudo-record belongs to the transport, not to the answer
+    private static DNSRecord[] withoutOpt(DNSRecord[] records) {
+        ArrayList<DNSRecord> result = new ArrayList<>();
+        for (DNSRecord record : records) {
+            if (record.recordType_ != TYPE_OPT) {
+                result.add(record);
+            }
+        }
+        return result.toArray(new DNSRecord[0]);
+    }
+
+    // rough number of bytes the entry keeps alive
+    public int weigh() {
+        int weight = 96 + (response_ == null ? 0 : response_.length());
+        for (DNSRecord[] section : new DNSRecord[][]{answers_, authority_, additional_}) {
+            for (DNSRecord record : section) {
+                weight += 96 + record.recordLength_;
+                for (String label : record.recordName_) {
+                    weight += 48 + label.length();
+                }
+            }
+        }
+        return weight;
+    }
+
+    @Override
+    public String toString(){
+        String result = "DNS Cache Entry: rCode: " + rCode_
+                + " , negative: " + negative_
+                + " , ttl: " + ttl_
+                + " , answers: " + answers_.length
+                + " , authority: " + authority_.length
+                + " , additional: " + additional_.length;
+        return result;
+    }
+}
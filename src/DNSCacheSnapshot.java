@@ -0,0 +1,135 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+// cache snapshot class:
+//  - write the cache to a file, so a restarted server can start warm;
+//  - load it back by memory-mapping the file, skipping what expired meanwhile.
+//
+// the file is:
+//   "DNSC", version (int), count (int), write time (long, wall clock millis),
+//   then for every entry:
+//   expiry (long, wall clock millis), length (int), the encoded response (length bytes)
+// the response carries the question and every record, with the TTLs left at write
+// time: on load the time since then is taken off every one of them.
+
+public class DNSCacheSnapshot {
+
+    private static final int MAGIC = 0x444e5343; // "DNSC"
+    private static final int VERSION = 2;
+    private static final int HEADER = 20;
+    private static final int OPT = 41;
+
+    // write the cache to the file; a temp file is renamed over it, so a crash
+    // while writing never leaves a broken snapshot behind. returns the number of entries.
+    public static int write(DNSCache cache, Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        int[] count = {0};
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            // the count is not known yet, it is patched in at the end
+            out.writeInt(0);
+            long wallNow = System.currentTimeMillis();
+            long clockNow = DNSClock.now();
+            out.writeLong(wallNow);
+            IOException[] error = {null};
+            cache.forEach((question, entry) -> {
+                if (error[0] != null || entry.response_ == null) {
+                    return;
+                }
+                try {
+                    byte[] wire = entry.response_.render(0);
+                    out.writeLong(wallNow + (entry.expiresAt_ - clockNow));
+                    out.writeInt(wire.length);
+                    out.write(wire);
+                    count[0]++;
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            });
+            if (error[0] != null) {
+                throw error[0];
+            }
+        }
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4).putInt(0, count[0]), 8);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count[0];
+    }
+
+    // load the snapshot into the cache, returns the number of entries loaded
+    public static int load(DNSCache cache, Path file) throws IOException {
+        MappedByteBuffer map;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (map.remaining() < HEADER || map.getInt() != MAGIC || map.getInt() != VERSION) {
+            throw new IOException("not a cache snapshot: " + file);
+        }
+        int count = map.getInt();
+        long writtenAt = map.getLong();
+        long wallNow = System.currentTimeMillis();
+        // rounded up: a record is never given a second it does not have
+        long elapsed = Math.max(0, (wallNow - writtenAt + 999) / 1000);
+        DNSWireMessage view = new DNSWireMessage();
+        int loaded = 0;
+        for (int i = 0; i < count && map.remaining() >= 12; i++) {
+            long expiry = map.getLong();
+            int length = map.getInt();
+            if (length < 0 || length > map.remaining()) {
+                throw new IOException("truncated cache snapshot: " + file);
+            }
+            long secondsLeft = (expiry - wallNow) / 1000;
+            if (secondsLeft <= 0) {
+                // expired while we were down
+                map.position(map.position() + length);
+                continue;
+            }
+            byte[] wire = new byte[length];
+            map.get(wire);
+            try {
+                if (!age(view.wrap(ByteBuffer.wrap(wire)), elapsed, secondsLeft)) {
+                    // an answer record ran out while we were down
+                    continue;
+                }
+                DNSMessage response = DNSMessage.decodeMessage(wire);
+                DNSQuestion question = response.requests_[0];
+                DNSCacheEntry entry = DNSCacheEntry.fromResponse(question, response);
+                entry.limitTTL((int) secondsLeft);
+                cache.add(question, entry);
+                loaded++;
+            } catch (IOException | RuntimeException e) {
+                // skip a broken entry, keep the rest
+            }
+        }
+        return loaded;
+    }
+
+    // take elapsed seconds off the TTLs of the response, none staying past the
+    // entry's secondsLeft; false if an answer record has no time left
+    private static boolean age(DNSWireMessage view, long elapsed, long secondsLeft) {
+        ByteBuffer wire = view.buffer();
+        for (int r = 0; r < view.recordCount(); r++) {
+            if (view.recordType(r) == OPT) {
+                // its TTL field holds flags
+                continue;
+            }
+            long ttl = Math.min(view.recordTTL(r) - elapsed, secondsLeft);
+            if (ttl <= 0 && r < view.anCount()) {
+                return false;
+            }
+            wire.putInt(view.recordTTLOffset(r), (int) Math.max(0, ttl));
+        }
+        return true;
+    }
+}
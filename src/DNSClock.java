@@ -0,0 +1,50 @@
+// clock class:
+//  - a coarse monotonic clock in milliseconds, for TTLs and expiry deadlines;
+//  - a daemon thread updates a volatile field every TICK_MS, so reading the
+//    time is a plain field read: no Calendar, no system call;
+//  - monotonic (System.nanoTime based), so changing the wall clock
+//    does not expire or revive cache entries.
+
+public class DNSClock {
+
+    // how often the cached time is updated
+    public static final int TICK_MS = 10;
+
+    private static final long ORIGIN = System.nanoTime();
+    private static volatile long now_ = precise();
+
+    static {
+        Thread ticker = new Thread(() -> {
+            while (true) {
+                now_ = precise();
+                try {
+                    Thread.sleep(TICK_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "dns-clock");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    // milliseconds since the clock started, up to TICK_MS behind
+    public static long now() {
+        return now_;
+    }
+
+    // milliseconds since the clock started, read from System.nanoTime
+    public static long precise() {
+        return (System.nanoTime() - ORIGIN) / 1_000_000L;
+    }
+
+    // deadline for something that lives for ttl seconds from now
+    public static long deadline(long ttlSeconds) {
+        return now_ + ttlSeconds * 1000L;
+    }
+
+    // whole seconds left until the deadline, never negative
+    public static long secondsLeft(long deadline) {
+        return Math.max(0, (deadline - now_) / 1000L);
+    }
+}
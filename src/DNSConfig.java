@@ -0,0 +1,290 @@
+// config class:
+//  - parse the command line options, given as --name=value;
+//  - hold the server settings and their default values
+
+public class DNSConfig {
+    // port the server listens on for client requests
+    public int port_ = 8053;
+    // number of worker threads answering cache misses,
+    // 0 means they are answered on the upstream receiver thread
+    public int workers_ = Runtime.getRuntime().availableProcessors();
+    // number of UDP sockets sharing the port (SO_REUSEPORT), each with its own
+    // receive loop; more than 1 needs an OS that balances them (Linux does)
+    public int sockets_ = 1;
+    // the upstream resolvers, comma separated, as host or host:port;
+    // upstreamPort_ is the port of those given without one
+    public String upstream_ = "8.8.8.8";
+    public int upstreamPort_ = 53;
+    // with several upstreams, ask a second one once the first has taken longer
+    // than this percentile of its round trips, 0 turns hedging off
+    public double hedgePercentile_ = 0.95;
+    // "forward" asks the upstreams above, "iterative" resolves from the root hints,
+    // and asks the nameservers found on the way on authorityPort_
+    public String resolution_ = "forward";
+    public String rootHints_ = "198.41.0.4,170.247.170.2,192.33.4.12,199.7.91.13,192.203.230.10,"
+            + "192.5.5.241,192.112.36.4,198.97.190.53,192.36.148.17,192.58.128.30,"
+            + "193.0.14.129,199.7.83.42,202.12.27.33";
+    public int authorityPort_ = 53;
+    // how long (ms) to wait for an upstream reply before sending the query again
+    public int upstreamTimeout_ = 2000;
+    // how many times a timed out upstream query is sent again
+    public int upstreamRetries_ = 2;
+    // EDNS0 UDP payload size advertised upstream and to clients, 0 turns EDNS0 off
+    public int ednsSize_ = 1232;
+    // also serve DNS over TCP on the same port, and close TCP connections idle this long (ms)
+    // at most tcpMaxConnections_ connections, and tcpMaxPipelined_ unanswered queries on one
+    public boolean tcp_ = true;
+    public int tcpIdleTimeout_ = 10_000;
+    public int tcpMaxConnections_ = 1024;
+    public int tcpMaxPipelined_ = 64;
+    // cache budget: number of entries and estimated bytes
+    public long cacheEntries_ = 100_000;
+    public long cacheBytes_ = 64L * 1024 * 1024;
+    // "heap" keeps the cache entries as objects, "offheap" in direct memory
+    // (cacheBytes_ of it), out of the GC's way, for caches of millions of entries
+    public String cacheStore_ = "heap";
+    // refresh a cache entry hit at least prefetchHits_ times once this fraction
+    // of its TTL has passed, 0 turns refresh-ahead off
+    public double prefetchFraction_ = 0.9;
+    public int prefetchHits_ = 3;
+    // serve-stale (RFC 8767): expired cache entries are kept staleWindow_ seconds
+    // more, and a question the upstream has not answered within staleTimeout_ ms
+    // (or failed to answer) gets the stale answer, with TTLs of staleTtl_ seconds.
+    // a staleWindow_ of 0 turns it off
+    public int staleWindow_ = 86400;
+    public int staleTimeout_ = 1800;
+    public int staleTtl_ = 30;
+    // local data answered before the cache: zone files and hosts files, comma
+    // separated, null for none; checked for changes every localReload_ seconds
+    // (0: never) and reloaded without a restart
+    public String zones_ = null;
+    public String hosts_ = null;
+    public int localReload_ = 5;
+    // response rate limiting of UDP clients: rrlRate_ answers per second per
+    // address prefix (/rrlPrefix4_ or /rrlPrefix6_), rrlBurst_ at once (0: rrlRate_),
+    // 0 turns it off. over the rate a query is dropped ("drop"), answered truncated
+    // so the client retries over TCP ("truncate"), or one in rrlSlip_ truncated and
+    // the rest dropped ("slip"). rrlTable_ buckets are kept, whatever the clients
+    public int rrlRate_ = 0;
+    public int rrlBurst_ = 0;
+    public String rrlAction_ = "slip";
+    public int rrlSlip_ = 2;
+    public int rrlPrefix4_ = 24;
+    public int rrlPrefix6_ = 56;
+    public int rrlTable_ = 65536;
+    // a cache shared by a group of servers: peers_ are all of them (host:port,
+    // comma separated, null for none), peerSelf_ the one that is this server; an
+    // address without a port is on peerPort_, never the DNS port, which the
+    // listeners have already taken.
+    // a cache miss first asks the peer owning the question, waiting peerTimeout_ ms
+    // at most, and with peerPush_ answers from the upstream are given to their owner.
+    // peerKeyFile_ holds the key the peers sign their messages with; without one
+    // they must be on a trusted network, and peerPush_ is not allowed
+    public String peers_ = null;
+    public String peerSelf_ = null;
+    public int peerPort_ = 8153;
+    public int peerTimeout_ = 50;
+    public boolean peerPush_ = false;
+    public String peerKeyFile_ = null;
+    // file the cache is saved to every snapshotInterval_ seconds and loaded from
+    // at startup, null for no snapshots
+    public String snapshot_ = null;
+    public int snapshotInterval_ = 60;
+    // port of the Prometheus metrics endpoint (on the loopback address), 0 for none
+    public int metricsPort_ = 9153;
+    // log messages printed per second at most, 0 for no limit
+    public int logRate_ = 10;
+
+    public static DNSConfig parse(String[] args) {
+        DNSConfig config = new DNSConfig();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("bad option: " + arg + " (expected --name=value)");
+            }
+            String name = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+            switch (name) {
+                case "port":
+                    config.port_ = Integer.parseInt(value);
+                    break;
+                case "workers":
+                    config.workers_ = Integer.parseInt(value);
+                    break;
+                case "sockets":
+                    config.sockets_ = Integer.parseInt(value);
+                    break;
+                case "upstream":
+                    config.upstream_ = value;
+                    break;
+                case "upstream-port":
+                    config.upstreamPort_ = Integer.parseInt(value);
+                    break;
+                case "hedge-percentile":
+                    config.hedgePercentile_ = Double.parseDouble(value);
+                    break;
+                case "resolution":
+                    if (!value.equals("forward") && !value.equals("iterative")) {
+                        throw new IllegalArgumentException("bad option: " + arg + " (forward or iterative)");
+                    }
+                    config.resolution_ = value;
+                    break;
+                case "root-hints":
+                    config.rootHints_ = value;
+                    break;
+                case "authority-port":
+                    config.authorityPort_ = Integer.parseInt(value);
+                    break;
+                case "upstream-timeout":
+                    config.upstreamTimeout_ = Integer.parseInt(value);
+                    break;
+                case "upstream-retries":
+                    config.upstreamRetries_ = Integer.parseInt(value);
+                    break;
+                case "cache-entries":
+                    config.cacheEntries_ = Long.parseLong(value);
+                    break;
+                case "cache-bytes":
+                    config.cacheBytes_ = Long.parseLong(value);
+                    break;
+                case "cache-store":
+                    if (!value.equals("heap") && !value.equals("offheap")) {
+                        throw new IllegalArgumentException("bad option: " + arg + " (heap or offheap)");
+                    }
+                    config.cacheStore_ = value;
+                    break;
+                case "prefetch-fraction":
+                    config.prefetchFraction_ = Double.parseDouble(value);
+                    break;
+                case "prefetch-hits":
+                    config.prefetchHits_ = Integer.parseInt(value);
+                    break;
+                case "stale-window":
+                    config.staleWindow_ = Integer.parseInt(value);
+                    break;
+                case "stale-timeout":
+                    config.staleTimeout_ = Integer.parseInt(value);
+                    break;
+                case "stale-ttl":
+                    config.staleTtl_ = Integer.parseInt(value);
+                    break;
+                case "zones":
+                    config.zones_ = value;
+                    break;
+                case "hosts":
+                    config.hosts_ = value;
+                    break;
+                case "local-reload":
+                    config.localReload_ = Integer.parseInt(value);
+                    break;
+                case "rrl-rate":
+                    config.rrlRate_ = Integer.parseInt(value);
+                    break;
+                case "rrl-burst":
+                    config.rrlBurst_ = Integer.parseInt(value);
+                    break;
+                case "rrl-action":
+                    if (!value.equals("slip") && !value.equals("truncate") && !value.equals("drop")) {
+                        throw new IllegalArgumentException("bad option: " + arg + " (slip, truncate or drop)");
+                    }
+                    config.rrlAction_ = value;
+                    break;
+                case "rrl-slip":
+                    config.rrlSlip_ = Integer.parseInt(value);
+                    break;
+                case "rrl-prefix4":
+                    config.rrlPrefix4_ = Integer.parseInt(value);
+                    break;
+                case "rrl-prefix6":
+                    config.rrlPrefix6_ = Integer.parseInt(value);
+                    break;
+                case "rrl-table":
+                    config.rrlTable_ = Integer.parseInt(value);
+                    break;
+                case "peers":
+                    config.peers_ = value;
+                    break;
+                case "peer-self":
+                    config.peerSelf_ = value;
+                    break;
+                case "peer-port":
+                    config.peerPort_ = Integer.parseInt(value);
+                    break;
+                case "peer-timeout":
+                    config.peerTimeout_ = Integer.parseInt(value);
+                    break;
+                case "peer-push":
+                    config.peerPush_ = Boolean.parseBoolean(value);
+                    break;
+                case "peer-key-file":
+                    config.peerKeyFile_ = value;
+                    break;
+                case "snapshot":
+                    config.snapshot_ = value;
+                    break;
+                case "snapshot-interval":
+                    config.snapshotInterval_ = Integer.parseInt(value);
+                    break;
+                case "edns-size":
+                    config.ednsSize_ = Integer.parseInt(value);
+                    break;
+                case "tcp":
+                    config.tcp_ = Boolean.parseBoolean(value);
+                    break;
+                case "tcp-idle-timeout":
+                    config.tcpIdleTimeout_ = Integer.parseInt(value);
+                    break;
+                case "tcp-max-connections":
+                    config.tcpMaxConnections_ = Integer.parseInt(value);
+                    break;
+                case "tcp-max-pipelined":
+                    config.tcpMaxPipelined_ = Integer.parseInt(value);
+                    break;
+                case "metrics-port":
+                    config.metricsPort_ = Integer.parseInt(value);
+                    break;
+                case "log-rate":
+                    config.logRate_ = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option: " + arg);
+            }
+        }
+        if (config.peers_ != null && config.peerSelf_ == null) {
+            throw new IllegalArgumentException("bad option: --peers needs --peer-self");
+        }
+        if (config.peerPush_ && config.peerKeyFile_ == null) {
+            throw new IllegalArgumentException("bad option: --peer-push needs --peer-key-file");
+        }
+        return config;
+    }
+
+    @Override
+    public String toString(){
+        String result = "DNS Config: port: " + port_
+                + " , workers: " + workers_
+                + " , sockets: " + sockets_
+                + " , upstream: " + upstream_ + " (port " + upstreamPort_ + ")"
+                + " , hedgePercentile: " + hedgePercentile_
+                + " , resolution: " + resolution_
+                + " , upstreamTimeout: " + upstreamTimeout_
+                + " , upstreamRetries: " + upstreamRetries_
+                + " , ednsSize: " + ednsSize_
+                + " , tcp: " + tcp_ + " (" + tcpMaxConnections_ + " connections, " + tcpMaxPipelined_
+                + " pipelined)"
+                + " , cacheEntries: " + cacheEntries_
+                + " , cacheBytes: " + cacheBytes_
+                + " , cacheStore: " + cacheStore_
+                + " , prefetch: " + prefetchFraction_ + "/" + prefetchHits_
+                + " , stale: " + staleWindow_ + "s (after " + staleTimeout_ + "ms, ttl " + staleTtl_ + ")"
+                + " , zones: " + zones_ + " , hosts: " + hosts_ + " (reload " + localReload_ + "s)"
+                + " , rrl: " + rrlRate_ + "/s (burst " + rrlBurst_ + ", " + rrlAction_ + " " + rrlSlip_
+                + ", /" + rrlPrefix4_ + " /" + rrlPrefix6_ + ", " + rrlTable_ + " buckets)"
+                + " , peers: " + peers_ + " (self " + peerSelf_ + ", port " + peerPort_ + ", timeout " + peerTimeout_ + "ms, push "
+                + peerPush_ + ", key " + peerKeyFile_ + ")"
+                + " , snapshot: " + snapshot_ + " every " + snapshotInterval_ + "s"
+                + " , metricsPort: " + metricsPort_
+                + " , logRate: " + logRate_;
+        return result;
+    }
+}
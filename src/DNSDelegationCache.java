@@ -0,0 +1,92 @@
+import java.net.InetSocketAddress;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+// delegation cache class:
+//  - what the iterative resolver learned from referrals: for every zone cut,
+//    the names of its nameservers and the addresses known for them (glue);
+//  - closest(name) gives the deepest cut at or above a name, so a lookup
+//    starts there instead of at the root;
+//  - the root comes from the hints and never expires.
+
+public class DNSDelegationCache {
+
+    public static class Delegation {
+        public final String[] zone_;
+        public final String[][] nameservers_;
+        // addresses of the nameservers, filled in later when there was no glue
+        public volatile InetSocketAddress[] addresses_;
+        // DNSClock millis, Long.MAX_VALUE for the root
+        public final long expiresAt_;
+
+        public Delegation(String[] zone, String[][] nameservers, InetSocketAddress[] addresses, long expiresAt) {
+            zone_ = zone;
+            nameservers_ = nameservers;
+            addresses_ = addresses;
+            expiresAt_ = expiresAt;
+        }
+
+        public boolean expired() {
+            return DNSClock.now() >= expiresAt_;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Delegation> zones_ = new ConcurrentHashMap<>();
+    private final int maxZones_;
+    private final Delegation root_;
+
+    public DNSDelegationCache(InetSocketAddress[] rootHints, int maxZones) {
+        root_ = new Delegation(new String[0], new String[0][], rootHints, Long.MAX_VALUE);
+        maxZones_ = maxZones;
+    }
+
+    public int size() {
+        return zones_.size();
+    }
+
+    // the deepest live delegation whose zone is name or one of its parents
+    public Delegation closest(String[] name) {
+        for (int i = 0; i < name.length; i++) {
+            Delegation d = zones_.get(key(name, i));
+            if (d != null) {
+                if (!d.expired()) {
+                    return d;
+                }
+                zones_.remove(key(name, i), d);
+            }
+        }
+        return root_;
+    }
+
+    public void add(Delegation d) {
+        if (d.zone_.length == 0) {
+            return;
+        }
+        if (zones_.size() >= maxZones_) {
+            makeRoom();
+        }
+        zones_.put(key(d.zone_, 0), d);
+    }
+
+    // drop the expired zones, or if none is, some zone
+    private void makeRoom() {
+        boolean removed = zones_.values().removeIf(Delegation::expired);
+        if (!removed) {
+            Iterator<String> it = zones_.keySet().iterator();
+            if (it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        }
+    }
+
+    // the name from label `from` on, lower case, as the map key
+    private static String key(String[] name, int from) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = from; i < name.length; i++) {
+            sb.append(name[i].toLowerCase(Locale.ROOT)).append('.');
+        }
+        return sb.toString();
+    }
+}
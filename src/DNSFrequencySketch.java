@@ -0,0 +1,75 @@
+// frequency sketch class:
+//  - a count-min sketch with 4-bit counters, used by DNSCache to estimate
+//    how often a question has been asked recently (the TinyLFU "popularity");
+//  - every counter is halved once the sample size is reached, so old
+//    popularity fades away;
+//  - not thread-safe, DNSCache only touches it while holding its eviction lock
+
+public class DNSFrequencySketch {
+
+    // seeds for the four hash functions
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    // 16 counters of 4 bits in every long
+    private final long[] table_;
+    private final int tableMask_;
+    private final int sampleSize_;
+    private int size_;
+
+    public DNSFrequencySketch(long maxEntries) {
+        int counters = (int) Math.min(1 << 30, Math.max(16, maxEntries));
+        int longs = Integer.highestOneBit(Math.max(1, counters / 16 - 1)) << 1;
+        table_ = new long[longs];
+        tableMask_ = longs - 1;
+        sampleSize_ = (int) Math.min(Integer.MAX_VALUE, 10L * Math.max(1, maxEntries));
+    }
+
+    // estimated number of times the hash was seen, 0 to 15
+    public int frequency(int hash) {
+        int min = 15;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int offset = counterOffset(hash, i);
+            min = Math.min(min, (int) ((table_[index] >>> offset) & 0xfL));
+        }
+        return min;
+    }
+
+    // count one more occurrence of the hash
+    public void increment(int hash) {
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int offset = counterOffset(hash, i);
+            long mask = 0xfL << offset;
+            if ((table_[index] & mask) != mask) {
+                table_[index] += 1L << offset;
+                added = true;
+            }
+        }
+        if (added && ++size_ == sampleSize_) {
+            reset();
+        }
+    }
+
+    // halve every counter
+    private void reset() {
+        for (int i = 0; i < table_.length; i++) {
+            table_[i] = (table_[i] >>> 1) & RESET_MASK;
+        }
+        size_ /= 2;
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return (int) h & tableMask_;
+    }
+
+    // which of the 16 counters in the long, times 4 bits
+    private int counterOffset(int hash, int i) {
+        return (((hash >>> (i << 3)) & 3) << 2) + (i << 4);
+    }
+}
@@ -1,6 +1,6 @@
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 // header class:
 //  - decode the header;
@@ -42,8 +42,8 @@ public class DNSHeader {
     public int arCount_;
 
 
-    // read the header from an input stream (ByteArrayInputStream)
-    public static DNSHeader decodeHeader(ByteArrayInputStream is) {
+    // read the header from the current position of the buffer
+    public static DNSHeader decodeHeader(ByteBuffer is) {
 
         DNSHeader header = new DNSHeader();
 
@@ -106,6 +106,15 @@ public class DNSHeader {
         return header;
     }
 
+    // create the header for a query we send upstream: recursion desired, one question.
+    public static DNSHeader buildQueryHeader(int id){
+        DNSHeader header = new DNSHeader();
+        header.id_ = id;
+        header.rd_ = 1;
+        header.qdCount_ = 1;
+        return header;
+    }
+
     // encode the header to bytes to be sent back to the client.
     // The OutputStream interface has methods to write a single byte
     // or an array of bytes.
@@ -116,13 +125,11 @@ public class DNSHeader {
         byte[] opArr = new byte[2];
         // opArr = (qr + opCode + aa + tc + rd) + (ra + z + rcode)
         //   | qr | opCode | aa | tc | rd |
-        // = |  1 |  000   | 0  | 0  | 1  |
-        // = 1000001 (binary) = 129 (decimal)
-        opArr[0] = (byte) 129;
+        // a plain response is 1000 0001 (binary) = 129 (decimal)
+        opArr[0] = (byte) ((qr_ << 7) | ((opcode_ & 0xf) << 3) | (aa_ << 2) | (tc_ << 1) | rd_);
         //   | ra |    z   |    rcode     |
-        // = | 1  |   000  |     0000     |
-        // = 1000000 (binary) = 128 (decimal)
-        opArr[1] = (byte) 128;
+        // a plain response is 1000 0000 (binary) = 128 (decimal)
+        opArr[1] = (byte) ((ra_ << 7) | ((z_ & 0x7) << 4) | (rCode_ & 0xf));
         os.write(opArr);
 
         os.write(DNSHelper.intToBytes(qdCount_));
@@ -1,12 +1,13 @@
-import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
 
 // this class is used for helper static functions: byte read, byte write
 public class DNSHelper {
 
-    public static int getNBytes(ByteArrayInputStream is, int n){
+    // read n bytes (big endian) from the current position of the buffer
+    public static int getNBytes(ByteBuffer buf, int n){
         int result = 0;
         for (int i = n - 1; i >= 0; i--) {
-            int current = is.read();
+            int current = buf.get();
             current = (current & 0xff) << (8 * i);
             result = result | current;
         }
@@ -0,0 +1,91 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// histogram class:
+//  - latencies in microseconds, bucketed like HdrHistogram: every power of two
+//    is split into SUB_BUCKETS linear buckets, so any value is off by at most
+//    1/SUB_BUCKETS (~3%) whatever its size, from 1 us to over an hour;
+//  - record() is one array increment, no lock and no allocation;
+//  - quantiles are read from the counts, for the metrics endpoint.
+
+public class DNSHistogram {
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    // values up to 2^MAX_BITS us (~ 1.2 hours), bigger ones go to the last bucket
+    private static final int MAX_BITS = 32;
+    private static final int BUCKETS = (MAX_BITS - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts_ = new AtomicLongArray(BUCKETS);
+    private final LongAdder count_ = new LongAdder();
+    private final LongAdder sum_ = new LongAdder();
+
+    // record a latency in microseconds
+    public void record(long micros) {
+        long value = Math.max(0, micros);
+        counts_.incrementAndGet(bucket(value));
+        count_.increment();
+        sum_.add(value);
+    }
+
+    // record the time since startNanos (a System.nanoTime() reading)
+    public void recordSince(long startNanos) {
+        record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    public long count() {
+        return count_.sum();
+    }
+
+    // sum of the recorded values, in microseconds
+    public long sum() {
+        return sum_.sum();
+    }
+
+    // the value (us) below which the fraction q of the recorded values are, 0 if none are
+    public long quantile(double q) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = counts_.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(q * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= Math.max(1, rank)) {
+                return highestValue(i);
+            }
+        }
+        return highestValue(BUCKETS - 1);
+    }
+
+    // values below SUB_BUCKETS have a bucket each; above that, the top SUB_BITS
+    // bits after the leading one pick the bucket within the power of two
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        if (magnitude >= MAX_BITS) {
+            return BUCKETS - 1;
+        }
+        int shift = magnitude - SUB_BITS;
+        int sub = (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    // the largest value that falls into the bucket
+    private static long highestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,401 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeMap;
+
+// local data class:
+//  - the local zones and hosts overrides, compiled once into an immutable trie
+//    of the name labels from the root down (com -> example -> www), laid out in
+//    flat arrays: every node has its label (lower cased, in one byte pool), its
+//    children (next to each other, sorted, found by binary search), its "*"
+//    child if it has one, the zone it is in, and its RRsets;
+//  - every RRset is kept encoded, with the owner name a pointer to the question
+//    (offset 12), so an answer is the question copied from the query followed by
+//    the bytes as they are: nothing is decoded, allocated or encoded per query;
+//  - in a zone: a name that does not exist is NXDOMAIN, a type it does not have
+//    NODATA, both with the zone's SOA; a "*" label matches names that don't exist
+//    (RFC 4592); a CNAME answers every type, ANY is answered with every RRset
+//    at the name (a node's RRsets are next to each other in the data, so that
+//    is one copy too). hosts entries are in no zone and only
+//    answer the types they have, anything else goes on to the cache and upstream;
+//  - never changed once built: DNSLocalZones swaps in a new one on reload.
+
+public class DNSLocalData {
+
+    private static final int TYPE_CNAME = 5;
+    private static final int TYPE_SOA = 6;
+    private static final int TYPE_ANY = 255;
+    private static final int NOERROR = 0;
+    private static final int NXDOMAIN = 3;
+    private static final int MAX_LABELS = 128;
+    // bytes of an OPT record without options
+    private static final int OPT_LENGTH = 11;
+
+    // nodes, node 0 is the root
+    private final byte[] labels_;
+    private final int[] labelStart_;
+    private final int[] labelLength_;
+    private final int[] childStart_;
+    private final int[] childCount_;
+    private final int[] wildcard_;
+    private final int[] zone_;
+    private final int[] rrStart_;
+    private final int[] rrCount_;
+    // RRsets, by node and then type: the encoded records in data_
+    private final int[] rrType_;
+    private final int[] rrRecords_;
+    private final int[] rrOffset_;
+    private final int[] rrLength_;
+    // zones: the encoded SOA record for the authority section
+    private final int[] soaOffset_;
+    private final int[] soaLength_;
+    private final byte[] data_;
+    private final int names_;
+
+    // the label offsets of the name in the query, per thread
+    private static final ThreadLocal<int[]> queryLabels_ = ThreadLocal.withInitial(() -> new int[MAX_LABELS]);
+
+    // the node being built
+    private static class Node {
+        final String label_;
+        final HashMap<String, Node> children_ = new HashMap<>();
+        final TreeMap<Integer, List<DNSRecord>> rrsets_ = new TreeMap<>();
+        int zone_ = -1;
+        int index_;
+
+        Node(String label) {
+            label_ = label;
+        }
+    }
+
+    private DNSLocalData(Node root, List<DNSRecord> zones) {
+        // number the nodes breadth first, so the children of a node are next to each other
+        ArrayList<Node> nodes = new ArrayList<>();
+        ArrayDeque<Node> queue = new ArrayDeque<>();
+        queue.add(root);
+        while (!queue.isEmpty()) {
+            Node node = queue.poll();
+            node.index_ = nodes.size();
+            nodes.add(node);
+            ArrayList<Node> children = new ArrayList<>(node.children_.values());
+            children.sort((a, b) -> compare(a.label_, b.label_));
+            queue.addAll(children);
+        }
+        int count = nodes.size();
+        labelStart_ = new int[count];
+        labelLength_ = new int[count];
+        childStart_ = new int[count];
+        childCount_ = new int[count];
+        wildcard_ = new int[count];
+        zone_ = new int[count];
+        rrStart_ = new int[count];
+        rrCount_ = new int[count];
+        ByteArrayOutputStream labels = new ByteArrayOutputStream();
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        ArrayList<int[]> rrsets = new ArrayList<>();
+        int names = 0;
+        // children were queued in order, so the first child of each node is found in order too
+        int next = 1;
+        for (Node node : nodes) {
+            int i = node.index_;
+            labelStart_[i] = labels.size();
+            labelLength_[i] = node.label_.length();
+            for (int c = 0; c < node.label_.length(); c++) {
+                labels.write(node.label_.charAt(c));
+            }
+            childStart_[i] = next;
+            childCount_[i] = node.children_.size();
+            next += node.children_.size();
+            Node star = node.children_.get("*");
+            wildcard_[i] = star == null ? -1 : star.index_;
+            rrStart_[i] = rrsets.size();
+            rrCount_[i] = node.rrsets_.size();
+            for (List<DNSRecord> rrset : node.rrsets_.values()) {
+                int offset = data.size();
+                for (DNSRecord record : rrset) {
+                    writeRecord(data, null, record);
+                }
+                rrsets.add(new int[]{rrset.get(0).recordType_, rrset.size(), offset, data.size() - offset});
+            }
+            if (!node.rrsets_.isEmpty()) {
+                names++;
+            }
+        }
+        // zones are inherited: a node is in the zone of its closest apex
+        zone_[0] = root.zone_;
+        for (Node node : nodes) {
+            int i = node.index_;
+            for (Node child : node.children_.values()) {
+                zone_[child.index_] = child.zone_ >= 0 ? child.zone_ : zone_[i];
+            }
+        }
+        soaOffset_ = new int[zones.size()];
+        soaLength_ = new int[zones.size()];
+        for (int z = 0; z < zones.size(); z++) {
+            DNSRecord soa = zones.get(z);
+            soaOffset_[z] = data.size();
+            writeRecord(data, soa.recordName_, withNegativeTTL(soa));
+            soaLength_[z] = data.size() - soaOffset_[z];
+        }
+        rrType_ = new int[rrsets.size()];
+        rrRecords_ = new int[rrsets.size()];
+        rrOffset_ = new int[rrsets.size()];
+        rrLength_ = new int[rrsets.size()];
+        for (int r = 0; r < rrsets.size(); r++) {
+            int[] rrset = rrsets.get(r);
+            rrType_[r] = rrset[0];
+            rrRecords_[r] = rrset[1];
+            rrOffset_[r] = rrset[2];
+            rrLength_[r] = rrset[3];
+        }
+        labels_ = labels.toByteArray();
+        data_ = data.toByteArray();
+        names_ = names;
+    }
+
+    // compile the records; zones are the SOA records of the zones, owned by their apex.
+    // the records of a zone are those at or under its apex (and no deeper zone's).
+    public static DNSLocalData compile(List<DNSRecord> records, List<DNSRecord> zones) {
+        Node root = new Node("");
+        for (DNSRecord record : records) {
+            Node node = nodeOf(root, record.recordName_);
+            node.rrsets_.computeIfAbsent(record.recordType_, t -> new ArrayList<>()).add(record);
+        }
+        for (int z = 0; z < zones.size(); z++) {
+            nodeOf(root, zones.get(z).recordName_).zone_ = z;
+        }
+        return new DNSLocalData(root, zones);
+    }
+
+    // names with records
+    public int names() {
+        return names_;
+    }
+
+    // answer the query (one question, class IN) from the local data into out, truncated
+    // if it is longer than limit, with an OPT record if ednsSize is not 0.
+    // false, and nothing written, if the name is not local or out has no room.
+    public boolean answer(DNSWireMessage query, ByteBuffer out, int ednsSize, int limit) {
+        if (query.qdCount() != 1 || query.opcode() != 0) {
+            return false;
+        }
+        // the labels of the question name, which has no pointers in a query
+        int[] offsets = queryLabels_.get();
+        int count = 0;
+        int at = 12;
+        for (int length = query.u8(at); length != 0; length = query.u8(at)) {
+            if ((length & 0xc0) != 0 || count == MAX_LABELS) {
+                return false;
+            }
+            offsets[count++] = at;
+            at += length + 1;
+        }
+        int type = query.u16(at + 1);
+        if (query.u16(at + 3) != 1) {
+            return false;
+        }
+        int questionEnd = at + 5;
+        // down the trie from the last label, as far as the name goes
+        int node = 0;
+        int matched = count;
+        while (matched > 0) {
+            int child = child(node, query, offsets[matched - 1]);
+            if (child < 0) {
+                break;
+            }
+            node = child;
+            matched--;
+        }
+        int zone = zone_[node];
+        if (matched > 0) {
+            // the name does not exist: the closest encloser's wildcard, or NXDOMAIN in a zone
+            if (wildcard_[node] >= 0) {
+                node = wildcard_[node];
+            } else if (zone >= 0) {
+                return render(query, questionEnd, out, NXDOMAIN, 0, 0, zone, ednsSize, limit);
+            } else {
+                return false;
+            }
+        }
+        if (type == TYPE_ANY && rrCount_[node] > 0) {
+            int first = rrStart_[node];
+            return render(query, questionEnd, out, NOERROR, first, first + rrCount_[node], -1, ednsSize, limit);
+        }
+        int rrset = type == TYPE_ANY ? -1 : rrset(node, type);
+        if (rrset < 0 && type != TYPE_CNAME) {
+            rrset = rrset(node, TYPE_CNAME);
+        }
+        if (rrset >= 0) {
+            return render(query, questionEnd, out, NOERROR, rrset, rrset + 1, -1, ednsSize, limit);
+        }
+        if (zone >= 0) {
+            // NODATA
+            return render(query, questionEnd, out, NOERROR, 0, 0, zone, ednsSize, limit);
+        }
+        return false;
+    }
+
+    // the RRset of the type at the node, or -1
+    private int rrset(int node, int type) {
+        int start = rrStart_[node];
+        int end = start + rrCount_[node];
+        for (int r = start; r < end; r++) {
+            if (rrType_[r] == type) {
+                return r;
+            }
+        }
+        return -1;
+    }
+
+    // the child of node with the label at offset in the query, or -1
+    private int child(int node, DNSWireMessage query, int offset) {
+        int low = childStart_[node];
+        int high = low + childCount_[node] - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int c = compare(middle, query, offset);
+            if (c == 0) {
+                return middle;
+            }
+            if (c < 0) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return -1;
+    }
+
+    // order of the node's label and the query label: by length, then lower cased bytes
+    private int compare(int node, DNSWireMessage query, int offset) {
+        int length = query.u8(offset);
+        if (labelLength_[node] != length) {
+            return labelLength_[node] - length;
+        }
+        int start = labelStart_[node];
+        for (int i = 0; i < length; i++) {
+            int c = lower(query.u8(offset + 1 + i));
+            int d = labels_[start + i] & 0xff;
+            if (c != d) {
+                return d - c;
+            }
+        }
+        return 0;
+    }
+
+    private static int compare(String a, String b) {
+        if (a.length() != b.length()) {
+            return a.length() - b.length();
+        }
+        return a.compareTo(b);
+    }
+
+    private static int lower(int c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    // header, the question as asked, the answer RRsets first to end (of one node, so
+    // their records are one run of data) and/or the zone's SOA, the OPT record
+    private boolean render(DNSWireMessage query, int questionEnd, ByteBuffer out, int rCode,
+                           int first, int end, int zone, int ednsSize, int limit) {
+        int answerLength = 0;
+        int answerCount = 0;
+        for (int r = first; r < end; r++) {
+            answerLength += rrLength_[r];
+            answerCount += rrRecords_[r];
+        }
+        int authorityLength = zone >= 0 ? soaLength_[zone] : 0;
+        int optLength = ednsSize > 0 ? OPT_LENGTH : 0;
+        boolean truncated = questionEnd + answerLength + authorityLength + optLength > limit;
+        if (truncated) {
+            answerLength = 0;
+            authorityLength = 0;
+        }
+        int length = questionEnd + answerLength + authorityLength + optLength;
+        if (length > out.remaining() || length > limit) {
+            return false;
+        }
+        int start = out.position();
+        // QR, AA, RD as asked, RA, TC if it did not fit
+        int flags = 0x8400 | (query.rd() << 8) | 0x80 | (truncated ? 0x200 : 0) | rCode;
+        out.putShort((short) query.id());
+        out.putShort((short) flags);
+        out.putShort((short) 1);
+        out.putShort((short) (answerLength > 0 ? answerCount : 0));
+        out.putShort((short) (authorityLength > 0 ? 1 : 0));
+        out.putShort((short) (optLength > 0 ? 1 : 0));
+        for (int i = 12; i < questionEnd; i++) {
+            out.put((byte) query.u8(i));
+        }
+        if (answerLength > 0) {
+            out.put(data_, rrOffset_[first], answerLength);
+        }
+        if (authorityLength > 0) {
+            out.put(data_, soaOffset_[zone], authorityLength);
+        }
+        if (optLength > 0) {
+            // root name, type 41, class = payload size, ttl 0, rdlength 0
+            out.put((byte) 0);
+            out.putShort((short) DNSCacheEntry.TYPE_OPT);
+            out.putShort((short) ednsSize);
+            out.putInt(0);
+            out.putShort((short) 0);
+        }
+        return out.position() - start == length;
+    }
+
+    // the record with the owner name written out, or a pointer to the question if owner is null
+    private static void writeRecord(ByteArrayOutputStream out, String[] owner, DNSRecord record) {
+        if (owner == null) {
+            out.write(0xc0);
+            out.write(12);
+        } else {
+            for (String label : owner) {
+                out.write(label.length());
+                for (int c = 0; c < label.length(); c++) {
+                    out.write(label.charAt(c));
+                }
+            }
+            out.write(0);
+        }
+        out.write(record.recordType_ >> 8);
+        out.write(record.recordType_);
+        out.write(record.recordClass_ >> 8);
+        out.write(record.recordClass_);
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            out.write(record.recordTTL_ >> shift);
+        }
+        out.write(record.recordData_.length >> 8);
+        out.write(record.recordData_.length);
+        out.write(record.recordData_, 0, record.recordData_.length);
+    }
+
+    // the SOA as it goes in negative answers: TTL min(TTL, MINIMUM) (RFC 2308)
+    private static DNSRecord withNegativeTTL(DNSRecord soa) {
+        DNSRecord record = new DNSRecord();
+        record.recordName_ = soa.recordName_;
+        record.recordType_ = TYPE_SOA;
+        record.recordClass_ = soa.recordClass_;
+        byte[] data = soa.recordData_;
+        int n = data.length;
+        long minimum = ((data[n - 4] & 0xffL) << 24) | ((data[n - 3] & 0xff) << 16)
+                | ((data[n - 2] & 0xff) << 8) | (data[n - 1] & 0xff);
+        record.recordTTL_ = (int) Math.min(soa.recordTTL_, minimum);
+        record.recordLength_ = data.length;
+        record.recordData_ = data;
+        return record;
+    }
+
+    private static Node nodeOf(Node root, String[] name) {
+        Node node = root;
+        for (int i = name.length - 1; i >= 0; i--) {
+            String label = name[i].toLowerCase(Locale.ROOT);
+            node = node.children_.computeIfAbsent(label, Node::new);
+        }
+        return node;
+    }
+}
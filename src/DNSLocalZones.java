@@ -0,0 +1,444 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+// local zones class:
+//  - reads the zone files (RFC 1035 master files: $ORIGIN, $TTL, @, relative
+//    names, ( ) over several lines, ; comments; A, AAAA, NS, CNAME, PTR, MX,
+//    TXT, SRV and SOA records, every zone starts with its SOA) and hosts files
+//    ("address name aliases..." a line, # comments) into a DNSLocalData;
+//  - answers from the current one, which is never locked: a reload builds a new
+//    one and swaps it in, queries already looking at the old one finish with it;
+//  - a daemon thread checks the files for changes every few seconds. A file that
+//    does not parse is logged and the data in use is kept.
+
+public class DNSLocalZones {
+
+    private static final int TYPE_A = 1;
+    private static final int TYPE_NS = 2;
+    private static final int TYPE_CNAME = 5;
+    private static final int TYPE_SOA = 6;
+    private static final int TYPE_PTR = 12;
+    private static final int TYPE_MX = 15;
+    private static final int TYPE_TXT = 16;
+    private static final int TYPE_AAAA = 28;
+    private static final int TYPE_SRV = 33;
+    private static final int CLASS_IN = 1;
+    // TTL of the hosts entries, and of zone records before any $TTL
+    private static final int HOSTS_TTL = 60;
+    private static final int DEFAULT_TTL = 3600;
+
+    private final List<Path> zoneFiles_;
+    private final List<Path> hostsFiles_;
+    private volatile DNSLocalData data_;
+    // last modified times of the files loaded, in the order above
+    private long[] modified_;
+
+    public DNSLocalZones(List<Path> zoneFiles, List<Path> hostsFiles) {
+        zoneFiles_ = zoneFiles;
+        hostsFiles_ = hostsFiles;
+    }
+
+    // read all the files and answer from them from now on
+    public void load() throws IOException {
+        long[] modified = modifiedTimes();
+        List<DNSRecord> records = new ArrayList<>();
+        List<DNSRecord> zones = new ArrayList<>();
+        for (Path file : zoneFiles_) {
+            readZone(file, records, zones);
+        }
+        for (Path file : hostsFiles_) {
+            readHosts(file, records);
+        }
+        data_ = DNSLocalData.compile(records, zones);
+        modified_ = modified;
+    }
+
+    // reload whenever a file changes, checking every interval seconds
+    public void startReloader(int interval) {
+        Thread t = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(interval * 1000L);
+                    if (!Arrays.equals(modifiedTimes(), modified_)) {
+                        load();
+                        System.out.println("> local data reloaded, " + names() + " names");
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException | RuntimeException e) {
+                    DNSLog.error("cannot reload local data, keeping the old: " + e.getMessage());
+                    // don't try again until the file changes again
+                    try {
+                        modified_ = modifiedTimes();
+                    } catch (IOException ignored) {
+                        // a file is gone, try again next time
+                    }
+                }
+            }
+        }, "dns-local-reload");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // see DNSLocalData.answer()
+    public boolean answer(DNSWireMessage query, ByteBuffer out, int ednsSize, int limit) {
+        return data_.answer(query, out, ednsSize, limit);
+    }
+
+    public long names() {
+        return data_.names();
+    }
+
+    private long[] modifiedTimes() throws IOException {
+        long[] times = new long[zoneFiles_.size() + hostsFiles_.size()];
+        int i = 0;
+        for (Path file : zoneFiles_) {
+            times[i++] = Files.getLastModifiedTime(file).toMillis();
+        }
+        for (Path file : hostsFiles_) {
+            times[i++] = Files.getLastModifiedTime(file).toMillis();
+        }
+        return times;
+    }
+
+    // a hosts file: an A or AAAA record for every name on a line
+    private static void readHosts(Path file, List<DNSRecord> records) throws IOException {
+        int number = 0;
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            number++;
+            int hash = line.indexOf('#');
+            String[] fields = (hash >= 0 ? line.substring(0, hash) : line).trim().split("\\s+");
+            if (fields.length < 2) {
+                continue;
+            }
+            boolean v6 = fields[0].indexOf(':') >= 0;
+            byte[] address;
+            try {
+                address = address(fields[0], v6);
+            } catch (IOException e) {
+                throw new IOException(file + ":" + number + ": " + e.getMessage());
+            }
+            for (int i = 1; i < fields.length; i++) {
+                records.add(record(absolute(fields[i]), v6 ? TYPE_AAAA : TYPE_A, HOSTS_TTL, address));
+            }
+        }
+    }
+
+    // a zone file; its SOA goes in zones too
+    private static void readZone(Path file, List<DNSRecord> records, List<DNSRecord> zones) throws IOException {
+        String[] origin = null;
+        int defaultTtl = DEFAULT_TTL;
+        String[] owner = null;
+        boolean soa = false;
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        for (int n = 0; n < lines.size(); n++) {
+            int number = n + 1;
+            // one entry: the line, and the next ones while a ( is open
+            List<String> tokens = new ArrayList<>();
+            boolean indented = !lines.get(n).isEmpty() && Character.isWhitespace(lines.get(n).charAt(0));
+            int depth = tokenize(lines.get(n), tokens, 0, file, number);
+            while (depth > 0) {
+                if (++n == lines.size()) {
+                    throw new IOException(file + ":" + number + ": ( is not closed");
+                }
+                depth = tokenize(lines.get(n), tokens, depth, file, n + 1);
+            }
+            if (tokens.isEmpty()) {
+                continue;
+            }
+            try {
+                String first = tokens.get(0);
+                if (first.equalsIgnoreCase("$ORIGIN")) {
+                    origin = absolute(tokens.get(1));
+                    continue;
+                }
+                if (first.equalsIgnoreCase("$TTL")) {
+                    defaultTtl = ttl(tokens.get(1));
+                    continue;
+                }
+                if (first.startsWith("$")) {
+                    throw new IOException(first + " is not supported");
+                }
+                int at = 0;
+                if (!indented) {
+                    owner = name(tokens.get(at++), origin);
+                } else if (owner == null) {
+                    throw new IOException("no owner name");
+                }
+                // [ttl] [class] or [class] [ttl], then the type
+                int ttl = defaultTtl;
+                for (int i = 0; i < 2 && at < tokens.size(); i++) {
+                    String token = tokens.get(at);
+                    if (token.equalsIgnoreCase("IN")) {
+                        at++;
+                    } else if (Character.isDigit(token.charAt(0))) {
+                        ttl = ttl(token);
+                        at++;
+                    }
+                }
+                if (at >= tokens.size()) {
+                    throw new IOException("no type");
+                }
+                String type = tokens.get(at++).toUpperCase(Locale.ROOT);
+                List<String> rdata = tokens.subList(at, tokens.size());
+                DNSRecord record = record(owner, typeCode(type), ttl, rdata(type, rdata, origin));
+                if (record.recordType_ == TYPE_SOA) {
+                    if (soa) {
+                        throw new IOException("a second SOA");
+                    }
+                    soa = true;
+                    zones.add(record);
+                } else if (!soa) {
+                    throw new IOException("the zone must start with its SOA");
+                }
+                records.add(record);
+            } catch (IOException | RuntimeException e) {
+                throw new IOException(file + ":" + number + ": " + e.getMessage());
+            }
+        }
+        if (!soa) {
+            throw new IOException(file + ": no SOA record");
+        }
+    }
+
+    // split the line into tokens ("quoted strings" keep their spaces and lose the quotes),
+    // dropping comments and parentheses; the ( still open at the end
+    private static int tokenize(String line, List<String> tokens, int depth, Path file, int number)
+            throws IOException {
+        int i = 0;
+        while (i < line.length()) {
+            char c = line.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == ';') {
+                break;
+            } else if (c == '(') {
+                depth++;
+                i++;
+            } else if (c == ')') {
+                if (--depth < 0) {
+                    throw new IOException(file + ":" + number + ": ) without (");
+                }
+                i++;
+            } else if (c == '"') {
+                StringBuilder token = new StringBuilder();
+                for (i++; i < line.length() && line.charAt(i) != '"'; i++) {
+                    if (line.charAt(i) == '\\' && i + 1 < line.length()) {
+                        i++;
+                    }
+                    token.append(line.charAt(i));
+                }
+                if (i == line.length()) {
+                    throw new IOException(file + ":" + number + ": \" is not closed");
+                }
+                i++;
+                // marks a quoted string, so TXT knows "" from nothing
+                tokens.add("\"" + token);
+            } else {
+                int start = i;
+                while (i < line.length() && !Character.isWhitespace(line.charAt(i))
+                        && "();\"".indexOf(line.charAt(i)) < 0) {
+                    i++;
+                }
+                tokens.add(line.substring(start, i));
+            }
+        }
+        return depth;
+    }
+
+    // the rdata in wire format, names uncompressed
+    private static byte[] rdata(String type, List<String> fields, String[] origin) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        switch (type) {
+            case "A":
+                return address(field(fields, 0), false);
+            case "AAAA":
+                return address(field(fields, 0), true);
+            case "NS":
+            case "CNAME":
+            case "PTR":
+                writeName(out, name(field(fields, 0), origin));
+                break;
+            case "MX":
+                writeShort(out, Integer.parseInt(field(fields, 0)));
+                writeName(out, name(field(fields, 1), origin));
+                break;
+            case "SRV":
+                writeShort(out, Integer.parseInt(field(fields, 0)));
+                writeShort(out, Integer.parseInt(field(fields, 1)));
+                writeShort(out, Integer.parseInt(field(fields, 2)));
+                writeName(out, name(field(fields, 3), origin));
+                break;
+            case "SOA":
+                writeName(out, name(field(fields, 0), origin));
+                writeName(out, name(field(fields, 1), origin));
+                writeInt(out, Long.parseLong(field(fields, 2)));
+                for (int i = 3; i < 7; i++) {
+                    writeInt(out, ttl(field(fields, i)));
+                }
+                break;
+            case "TXT":
+                if (fields.isEmpty()) {
+                    throw new IOException("missing rdata");
+                }
+                for (String field : fields) {
+                    byte[] text = (field.startsWith("\"") ? field.substring(1) : field)
+                            .getBytes(StandardCharsets.UTF_8);
+                    if (text.length > 255) {
+                        throw new IOException("TXT string longer than 255 bytes");
+                    }
+                    out.write(text.length);
+                    out.write(text, 0, text.length);
+                }
+                break;
+            default:
+                throw new IOException("type " + type + " is not supported");
+        }
+        return out.toByteArray();
+    }
+
+    private static String field(List<String> fields, int i) throws IOException {
+        if (i >= fields.size()) {
+            throw new IOException("missing rdata");
+        }
+        return fields.get(i);
+    }
+
+    // an address literal; never looked up, a name here is an error
+    private static byte[] address(String text, boolean v6) throws IOException {
+        boolean literal = v6 ? text.indexOf(':') >= 0 : text.matches("\\d{1,3}(\\.\\d{1,3}){3}");
+        if (!literal) {
+            throw new IOException("bad address: " + text);
+        }
+        byte[] address = InetAddress.getByName(text).getAddress();
+        if (address.length != (v6 ? 16 : 4)) {
+            throw new IOException("bad address: " + text);
+        }
+        return address;
+    }
+
+    // a name in a zone file: @ is the origin, names not ending with . are under it
+    private static String[] name(String text, String[] origin) throws IOException {
+        if (text.equals("@")) {
+            if (origin == null) {
+                throw new IOException("@ without $ORIGIN");
+            }
+            return origin;
+        }
+        if (text.endsWith(".")) {
+            return absolute(text);
+        }
+        if (origin == null) {
+            throw new IOException("relative name without $ORIGIN: " + text);
+        }
+        String[] relative = text.split("\\.");
+        String[] name = new String[relative.length + origin.length];
+        System.arraycopy(relative, 0, name, 0, relative.length);
+        System.arraycopy(origin, 0, name, relative.length, origin.length);
+        return check(name, text);
+    }
+
+    private static String[] absolute(String text) throws IOException {
+        if (text.equals(".")) {
+            return new String[0];
+        }
+        String name = text.endsWith(".") ? text.substring(0, text.length() - 1) : text;
+        return check(name.split("\\."), text);
+    }
+
+    private static String[] check(String[] labels, String text) throws IOException {
+        int length = 1;
+        for (String label : labels) {
+            if (label.isEmpty() || label.length() > 63) {
+                throw new IOException("bad name: " + text);
+            }
+            length += label.length() + 1;
+        }
+        if (length > 255) {
+            throw new IOException("name too long: " + text);
+        }
+        return labels;
+    }
+
+    // seconds, or with units: 1h30m, 2d, 1w
+    private static int ttl(String text) throws IOException {
+        long total = 0;
+        long value = 0;
+        boolean digits = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = Character.toLowerCase(text.charAt(i));
+            if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                digits = true;
+                continue;
+            }
+            int unit = c == 's' ? 1 : c == 'm' ? 60 : c == 'h' ? 3600 : c == 'd' ? 86400 : c == 'w' ? 604800 : 0;
+            if (unit == 0 || !digits) {
+                throw new IOException("bad TTL: " + text);
+            }
+            total += value * unit;
+            value = 0;
+            digits = false;
+        }
+        total += value;
+        if (text.isEmpty() || total > Integer.MAX_VALUE) {
+            throw new IOException("bad TTL: " + text);
+        }
+        return (int) total;
+    }
+
+    private static int typeCode(String type) throws IOException {
+        switch (type) {
+            case "A": return TYPE_A;
+            case "NS": return TYPE_NS;
+            case "CNAME": return TYPE_CNAME;
+            case "SOA": return TYPE_SOA;
+            case "PTR": return TYPE_PTR;
+            case "MX": return TYPE_MX;
+            case "TXT": return TYPE_TXT;
+            case "AAAA": return TYPE_AAAA;
+            case "SRV": return TYPE_SRV;
+            default: throw new IOException("type " + type + " is not supported");
+        }
+    }
+
+    private static DNSRecord record(String[] name, int type, int ttl, byte[] data) {
+        DNSRecord record = new DNSRecord();
+        record.recordName_ = name;
+        record.recordType_ = type;
+        record.recordClass_ = CLASS_IN;
+        record.recordTTL_ = ttl;
+        record.recordLength_ = data.length;
+        record.recordData_ = data;
+        return record;
+    }
+
+    private static void writeName(ByteArrayOutputStream out, String[] name) {
+        for (String label : name) {
+            byte[] bytes = label.getBytes(StandardCharsets.US_ASCII);
+            out.write(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+        out.write(0);
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value >> 8);
+        out.write(value);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, long value) {
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            out.write((int) (value >> shift));
+        }
+    }
+}
@@ -0,0 +1,98 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// log class:
+//  - the hot paths never print themselves: a message is put on a bounded
+//    queue and a daemon thread prints it, so a slow console can't hold up
+//    a packet (System.out.println is synchronized console I/O);
+//  - sampled: at most rate messages a second get through (a token bucket);
+//    the rest, and whatever does not fit the queue, are counted, and the
+//    count is printed with the next message that does get through.
+
+public class DNSLog {
+
+    private static final int QUEUE_SIZE = 1024;
+
+    private static final ArrayBlockingQueue<String> queue_ = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private static final LongAdder dropped_ = new LongAdder();
+    private static final LongAdder errors_ = new LongAdder();
+    private static final AtomicLong unreported_ = new AtomicLong();
+    // token bucket: one token per message, refilled at rate_ per second up to rate_
+    private static volatile int rate_ = 10;
+    private static double tokens_ = 10;
+    private static long refilledAt_ = DNSClock.now();
+
+    static {
+        Thread printer = new Thread(() -> {
+            while (true) {
+                try {
+                    System.out.println(queue_.take());
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "dns-log");
+        printer.setDaemon(true);
+        printer.start();
+    }
+
+    // messages let through per second, 0 lets everything through
+    public static void setRate(int rate) {
+        rate_ = rate;
+    }
+
+    // messages not printed so far
+    public static long dropped() {
+        return dropped_.sum();
+    }
+
+    // errors logged so far, printed or not
+    public static long errors() {
+        return errors_.sum();
+    }
+
+    // an error: "[!] Error: " + message
+    public static void error(String message) {
+        errors_.increment();
+        log("[!] Error: " + message);
+    }
+
+    // anything else, printed as is
+    public static void info(String message) {
+        log(message);
+    }
+
+    private static void log(String line) {
+        if (!take()) {
+            drop();
+            return;
+        }
+        long skipped = unreported_.getAndSet(0);
+        String text = skipped > 0 ? line + " (" + skipped + " more messages dropped)" : line;
+        if (!queue_.offer(text)) {
+            unreported_.addAndGet(skipped);
+            drop();
+        }
+    }
+
+    private static void drop() {
+        dropped_.increment();
+        unreported_.incrementAndGet();
+    }
+
+    private static synchronized boolean take() {
+        int rate = rate_;
+        if (rate <= 0) {
+            return true;
+        }
+        long now = DNSClock.now();
+        tokens_ = Math.min(rate, tokens_ + (now - refilledAt_) * rate / 1000.0);
+        refilledAt_ = now;
+        if (tokens_ < 1) {
+            return false;
+        }
+        tokens_--;
+        return true;
+    }
+}
@@ -1,10 +1,8 @@
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
 
 public class DNSMessage {
 
@@ -14,134 +12,209 @@ public class DNSMessage {
     public DNSRecord[] responses_;
     public DNSRecord[] nsRecords_;
     public DNSRecord[] addRecords_;
+    // UDP payload size from the EDNS0 OPT record, 0 if the message has none
+    public int udpPayloadSize_;
 
-    public static DNSMessage decodeMessage(byte[] bytesArr) throws IOException {
-        DNSMessage message = new DNSMessage();
+    // a name may not follow more compression pointers than this (protects against loops)
+    private static final int MAX_POINTERS = 32;
+
+    // the buffer the message was decoded from, used to follow compression pointers
+    private ByteBuffer data_;
+    private int base_;
 
+    public static DNSMessage decodeMessage(byte[] bytesArr) throws IOException {
+        DNSMessage message = decodeMessage(ByteBuffer.wrap(bytesArr));
         // originalData_ = byte array
         message.originalData_ = bytesArr;
-        ByteArrayInputStream input = new ByteArrayInputStream(bytesArr);
+        return message;
+    }
+
+    // decode the message between the position and the limit of the buffer,
+    // reading it in place. the buffer's position is moved past the message.
+    public static DNSMessage decodeMessage(ByteBuffer input) throws IOException {
+        DNSMessage message = new DNSMessage();
+        message.data_ = input;
+        message.base_ = input.position();
+
+        try {
+            message.decodeSections(input);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("malformed message: " + e.getMessage());
+        }
+        return message;
+    }
 
+    // decode only the header and the questions, which is all a query needs.
+    // the record sections are left empty.
+    public static DNSMessage decodeQuestions(DNSWireMessage wire) throws IOException {
+        DNSMessage message = new DNSMessage();
+        try {
+            ByteBuffer input = wire.buffer().duplicate();
+            message.header_ = DNSHeader.decodeHeader(input);
+            message.requests_ = new DNSQuestion[message.header_.qdCount_];
+            for (int i = 0; i < message.requests_.length; i++) {
+                message.requests_[i] = wire.question(i);
+            }
+            message.udpPayloadSize_ = wire.ednsPayloadSize();
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("malformed message: " + e.getMessage());
+        }
+        message.responses_ = new DNSRecord[0];
+        message.nsRecords_ = new DNSRecord[0];
+        message.addRecords_ = new DNSRecord[0];
+        return message;
+    }
+
+    private void decodeSections(ByteBuffer input) {
         // get the header
-        message.header_ = DNSHeader.decodeHeader(input);
+        header_ = DNSHeader.decodeHeader(input);
         // get the requests
-        message.requests_ = new DNSQuestion[message.header_.qdCount_];
-        for (int i = 0; i < message.requests_.length; i++) {
-            message.requests_[i] = DNSQuestion.decodeQuestion(input, message);
+        requests_ = new DNSQuestion[header_.qdCount_];
+        for (int i = 0; i < requests_.length; i++) {
+            requests_[i] = DNSQuestion.decodeQuestion(input, this);
         }
         // get the responses
-        message.responses_ = new DNSRecord[message.header_.anCount_];
-        for (int i = 0; i < message.responses_.length; i++) {
-            message.responses_[i] = DNSRecord.decodeRecord(input, message);
+        responses_ = new DNSRecord[header_.anCount_];
+        for (int i = 0; i < responses_.length; i++) {
+            responses_[i] = DNSRecord.decodeRecord(input, this);
         }
         // get the nsRecords
-        message.nsRecords_ = new DNSRecord[message.header_.nsCount_];
-        for (int i = 0; i < message.nsRecords_.length; i++) {
-            message.nsRecords_[i] = DNSRecord.decodeRecord(input, message);
+        nsRecords_ = new DNSRecord[header_.nsCount_];
+        for (int i = 0; i < nsRecords_.length; i++) {
+            nsRecords_[i] = DNSRecord.decodeRecord(input, this);
         }
         // get the additional records
-        message.addRecords_ = new DNSRecord[message.header_.arCount_];
-        for (int i = 0; i < message.addRecords_.length; i++) {
-            message.addRecords_[i] = DNSRecord.decodeRecord(input, message);
+        addRecords_ = new DNSRecord[header_.arCount_];
+        for (int i = 0; i < addRecords_.length; i++) {
+            addRecords_[i] = DNSRecord.decodeRecord(input, this);
+            if (addRecords_[i].recordType_ == DNSCacheEntry.TYPE_OPT) {
+                // sizes below 512 are treated as 512 (RFC 6891 section 6.2.5)
+                udpPayloadSize_ = Math.max(512, addRecords_[i].recordClass_);
+            }
         }
-
-        return message;
     }
 
-    // read the pieces of a domain name starting from the current position of the input stream
-    public String[] readDomainName(ByteArrayInputStream is){
-        ArrayList<String> domainName = new ArrayList<>();
+    // read the pieces of a domain name starting from the current position of the buffer,
+    // and move the position past the name
+    public String[] readDomainName(ByteBuffer is){
+        int start = is.position() - base_;
+        int end = start;
+        // find where the name ends in place, a pointer always ends it
         while (true) {
-            byte length = (byte) is.read();
+            int length = is.get(base_ + end) & 0xff;
             if (length == 0) {
+                end += 1;
+                break;
+            }
+            if ((length & 0xc0) == 0xc0) {
+                end += 2;
                 break;
             }
-            else if (length > 0){
-                StringBuilder data = new StringBuilder();
-                for (int i = 0; i < length; i++){
-                    data.append((char) is.read());
+            end += length + 1;
+        }
+        is.position(base_ + end);
+        return readDomainName(start);
+    }
+
+    // same, but used when there's compression and we need to find the domain from earlier in
+    // the message. the labels are read in place from the buffer, following pointers,
+    // without creating a new stream.
+    public String[] readDomainName(int firstByte){
+        // count the labels first so only the result array is allocated
+        int count = 0;
+        int pointers = 0;
+        for (int at = firstByte; ; ) {
+            int length = data_.get(base_ + at) & 0xff;
+            if ((length & 0xc0) == 0xc0) {
+                if (++pointers > MAX_POINTERS) {
+                    throw new IndexOutOfBoundsException("compression loop at " + at);
                 }
-                domainName.add(data.toString());
+                at = ((length & 0x3f) << 8) | (data_.get(base_ + at + 1) & 0xff);
+                continue;
             }
-            else{
-                length = (byte) ((length << 8) | is.read());
-                return readDomainName(length);
+            if (length == 0) {
+                break;
             }
+            count++;
+            at += length + 1;
         }
-        String[] domainNamesArr = new String[domainName.size()];
-        for (int i = 0; i < domainName.size(); i++) {
-            domainNamesArr[i] = domainName.get(i);
+        String[] domainNamesArr = new String[count];
+        int label = 0;
+        for (int at = firstByte; label < count; ) {
+            int length = data_.get(base_ + at) & 0xff;
+            if ((length & 0xc0) == 0xc0) {
+                at = ((length & 0x3f) << 8) | (data_.get(base_ + at + 1) & 0xff);
+                continue;
+            }
+            char[] piece = new char[length];
+            for (int i = 0; i < length; i++) {
+                piece[i] = (char) (data_.get(base_ + at + 1 + i) & 0xff);
+            }
+            domainNamesArr[label++] = new String(piece);
+            at += length + 1;
         }
         return domainNamesArr;
     }
 
-    // same, but used when there's compression and we need to find the domain from earlier in
-    // the message. This method should make a ByteArrayInputStream that starts at the
-    // specified byte and call the other version of this method.
-    public String[] readDomainName(int firstByte){
-        ByteArrayInputStream is = new ByteArrayInputStream(originalData_);
-        is.skip(firstByte);
-        return readDomainName(is);
+    public static DNSMessage buildResponse(DNSMessage request, DNSRecord[] answers){
+        return buildResponse(request, answers, request.nsRecords_, request.addRecords_, 0);
     }
 
-    public static DNSMessage buildResponse(DNSMessage request, DNSRecord[] answers){
+    // build a response with all three record sections and the given rcode
+    public static DNSMessage buildResponse(DNSMessage request, DNSRecord[] answers,
+                                           DNSRecord[] nsRecords, DNSRecord[] addRecords, int rCode){
         DNSMessage response = new DNSMessage();
         response.requests_ = request.requests_;
         response.responses_ = answers;
-        response.nsRecords_ = request.nsRecords_;
-        response.addRecords_ = request.addRecords_;
+        response.nsRecords_ = nsRecords;
+        response.addRecords_ = addRecords;
         response.header_ = DNSHeader.buildResponseHeader(request, response);
+        response.header_.rCode_ = rCode;
         return response;
     }
 
+    // build a single-question query to be sent upstream with the given transaction id
+    public static DNSMessage buildQuery(DNSQuestion question, int id){
+        return buildQuery(question, id, 0);
+    }
+
+    // same, with an EDNS0 OPT record advertising the UDP payload size (none if 0)
+    public static DNSMessage buildQuery(DNSQuestion question, int id, int udpPayloadSize){
+        DNSMessage query = new DNSMessage();
+        query.requests_ = new DNSQuestion[]{question};
+        query.responses_ = new DNSRecord[0];
+        query.nsRecords_ = new DNSRecord[0];
+        query.addRecords_ = udpPayloadSize > 0
+                ? new DNSRecord[]{DNSRecord.buildOpt(udpPayloadSize)} : new DNSRecord[0];
+        query.udpPayloadSize_ = udpPayloadSize;
+        query.header_ = DNSHeader.buildQueryHeader(id);
+        query.header_.arCount_ = query.addRecords_.length;
+        return query;
+    }
+
     public byte[] toBytes() throws IOException{
         ByteArrayOutputStream os = new ByteArrayOutputStream();
-        Map<String, Integer> domainLct = new HashMap<>();
+        DNSNameCompressor names = new DNSNameCompressor();
         header_.writeBytes(os);
         // write question
         for (DNSQuestion req: requests_) {
-            req.writeBytes(os, domainLct);
+            req.writeBytes(os, names);
         }
         // write record
         for (DNSRecord rep: responses_) {
-            rep.writeBytes(os, domainLct);
+            rep.writeBytes(os, names);
         }
         // write nsRecord
         for (DNSRecord ns: nsRecords_) {
-            ns.writeBytes(os, domainLct);
+            ns.writeBytes(os, names);
         }
         // write additional record
         for (DNSRecord add: addRecords_) {
-            add.writeBytes(os, domainLct);
+            add.writeBytes(os, names);
         }
         return os.toByteArray();
     }
 
-    public static void writeDomainName(ByteArrayOutputStream os, Map<String,Integer> domainLct,
-                                       String[] domainPieces){
-        // convert the domain name pieces to a string with dot
-        String domainName = octetsToString(domainPieces);
-        // check if our map has this domain name as a key
-        if (domainLct.containsKey(domainName)){
-            int value = domainLct.get(domainName);
-            byte leftByte = (byte) ((value >> 8) | 0xc0);
-            byte rightByte = (byte) value;
-            os.write(leftByte);
-            os.write(rightByte);
-        }
-        else {
-            domainLct.put(domainName, os.size());
-            for (String domainPiece : domainPieces) {
-                os.write(domainPiece.length());
-                char[] piece = domainPiece.toCharArray();
-                for (char c : piece) {
-                    os.write(c);
-                }
-            }
-            os.write(0);
-        }
-    }
-
     public static String octetsToString(String[] octets){
         StringBuilder sb = new StringBuilder();
         for (int i = 0; i < octets.length; i++) {
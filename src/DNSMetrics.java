@@ -0,0 +1,133 @@
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// metrics class:
+//  - the numbers the server keeps about itself: a latency histogram for every
+//    stage of a query (decode, cache lookup, upstream round trip, encode, send),
+//    counters, and gauges read from the components when asked (cache size,
+//    queries in flight...);
+//  - the stages and counters are static fields, so the hot paths just bump them;
+//  - text() writes them all in the Prometheus text format, see DNSMetricsServer.
+
+public class DNSMetrics {
+
+    // time spent in every stage of a query
+    public static final DNSHistogram DECODE = new DNSHistogram();
+    public static final DNSHistogram CACHE_LOOKUP = new DNSHistogram();
+    public static final DNSHistogram UPSTREAM_RTT = new DNSHistogram();
+    public static final DNSHistogram ENCODE = new DNSHistogram();
+    public static final DNSHistogram SEND = new DNSHistogram();
+
+    public static final LongAdder QUERIES = new LongAdder();
+    // questions answered from the cache, and sent upstream
+    public static final LongAdder CACHE_HITS = new LongAdder();
+    public static final LongAdder CACHE_MISSES = new LongAdder();
+    public static final LongAdder TRUNCATED = new LongAdder();
+    public static final LongAdder UPSTREAM_TIMEOUTS = new LongAdder();
+    // truncated upstream replies asked again over TCP
+    public static final LongAdder UPSTREAM_TCP = new LongAdder();
+    public static final LongAdder SERVFAIL = new LongAdder();
+    public static final LongAdder STALE_ANSWERS = new LongAdder();
+    public static final LongAdder LOCAL_ANSWERS = new LongAdder();
+    public static final LongAdder DROPPED = new LongAdder();
+    // queries over their client's rate (DNSRateLimiter)
+    public static final LongAdder RRL_DROPPED = new LongAdder();
+    public static final LongAdder RRL_TRUNCATED = new LongAdder();
+
+    private static class Histogram {
+        final String name_;
+        final String help_;
+        final DNSHistogram histogram_;
+
+        Histogram(String name, String help, DNSHistogram histogram) {
+            name_ = name;
+            help_ = help;
+            histogram_ = histogram;
+        }
+    }
+
+    private static class Value {
+        final String name_;
+        final String help_;
+        final String type_;
+        final LongSupplier value_;
+
+        Value(String name, String help, String type, LongSupplier value) {
+            name_ = name;
+            help_ = help;
+            type_ = type;
+            value_ = value;
+        }
+    }
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private static final CopyOnWriteArrayList<Histogram> histograms_ = new CopyOnWriteArrayList<>();
+    private static final CopyOnWriteArrayList<Value> values_ = new CopyOnWriteArrayList<>();
+
+    static {
+        histograms_.add(new Histogram("dns_decode_seconds", "Time to parse a query.", DECODE));
+        histograms_.add(new Histogram("dns_cache_lookup_seconds", "Time to look the questions up in the cache.",
+                CACHE_LOOKUP));
+        histograms_.add(new Histogram("dns_upstream_rtt_seconds", "Round trip of upstream queries.", UPSTREAM_RTT));
+        histograms_.add(new Histogram("dns_encode_seconds", "Time to encode a response.", ENCODE));
+        histograms_.add(new Histogram("dns_send_seconds", "Time to hand a response to the socket.", SEND));
+        counter("dns_queries_total", "Queries received, over UDP and TCP.", QUERIES::sum);
+        counter("dns_cache_hits_total", "Questions answered from the cache.", CACHE_HITS::sum);
+        counter("dns_cache_misses_total", "Questions that had to be resolved.", CACHE_MISSES::sum);
+        counter("dns_truncated_total", "UDP responses truncated to fit the client.", TRUNCATED::sum);
+        counter("dns_upstream_timeouts_total", "Upstream queries that got no reply in time.",
+                UPSTREAM_TIMEOUTS::sum);
+        counter("dns_upstream_tcp_total", "Upstream queries asked again over TCP after a truncated reply.",
+                UPSTREAM_TCP::sum);
+        counter("dns_servfail_total", "Queries answered with SERVFAIL.", SERVFAIL::sum);
+        counter("dns_stale_answers_total", "Expired answers served because the upstream was slow or failed.",
+                STALE_ANSWERS::sum);
+        counter("dns_local_answers_total", "Queries answered from the local zones and hosts files.",
+                LOCAL_ANSWERS::sum);
+        counter("dns_dropped_total", "Responses dropped because the socket could not keep up.", DROPPED::sum);
+        counter("dns_rrl_dropped_total", "Queries dropped for going over their client's rate.",
+                RRL_DROPPED::sum);
+        counter("dns_rrl_truncated_total", "Queries over their client's rate answered truncated.",
+                RRL_TRUNCATED::sum);
+        counter("dns_errors_total", "Errors logged.", DNSLog::errors);
+        counter("dns_log_dropped_total", "Log messages not printed (sampling).", DNSLog::dropped);
+    }
+
+    // a number that only goes up
+    public static void counter(String name, String help, LongSupplier value) {
+        values_.add(new Value(name, help, "counter", value));
+    }
+
+    // a number that goes up and down
+    public static void gauge(String name, String help, LongSupplier value) {
+        values_.add(new Value(name, help, "gauge", value));
+    }
+
+    // everything in the Prometheus text exposition format
+    public static String text() {
+        StringBuilder sb = new StringBuilder();
+        for (Histogram h : histograms_) {
+            sb.append("# HELP ").append(h.name_).append(' ').append(h.help_).append('\n');
+            sb.append("# TYPE ").append(h.name_).append(" summary\n");
+            for (double q : QUANTILES) {
+                sb.append(h.name_).append("{quantile=\"").append(q).append("\"} ")
+                        .append(seconds(h.histogram_.quantile(q))).append('\n');
+            }
+            sb.append(h.name_).append("_sum ").append(seconds(h.histogram_.sum())).append('\n');
+            sb.append(h.name_).append("_count ").append(h.histogram_.count()).append('\n');
+        }
+        for (Value v : values_) {
+            sb.append("# HELP ").append(v.name_).append(' ').append(v.help_).append('\n');
+            sb.append("# TYPE ").append(v.name_).append(' ').append(v.type_).append('\n');
+            sb.append(v.name_).append(' ').append(v.value_.getAsLong()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static String seconds(long micros) {
+        return String.format(Locale.ROOT, "%.6f", micros / 1e6);
+    }
+}
@@ -0,0 +1,38 @@
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+// metrics server class:
+//  - a small HTTP server (the JDK's own) on the loopback address, serving
+//    DNSMetrics.text() at /metrics for Prometheus to scrape;
+//  - one daemon thread, nothing on the DNS path.
+
+public class DNSMetricsServer {
+
+    private final HttpServer server_;
+
+    public DNSMetricsServer(int port) throws IOException {
+        server_ = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server_.createContext("/metrics", exchange -> {
+            byte[] body = DNSMetrics.text().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server_.setExecutor(null);
+    }
+
+    public void start() {
+        server_.start();
+    }
+
+    public void stop() {
+        server_.stop(0);
+    }
+}
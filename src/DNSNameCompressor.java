@@ -0,0 +1,230 @@
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+// name compressor class:
+//  - remembers where every name written into one message is, so a later name
+//    sharing any suffix with it (mail.example.com after www.example.com) is
+//    written as its own first labels and a pointer to the suffix (RFC 1035 4.1.4);
+//  - the written names form a trie, from the root label down: every node is a
+//    (parent, label) pair kept in an open-addressed hash table, with the offset
+//    where that suffix starts in the message. Labels are compared as bytes,
+//    exactly, so every name keeps its case, and no strings are built;
+//  - also compresses the names in the rdata of NS, CNAME, PTR, MX and SOA
+//    records, the types RFC 3597 allows it for;
+//  - one per message, not thread safe.
+
+public class DNSNameCompressor {
+
+    // pointers have 14 bits
+    private static final int MAX_POINTER = 0x3fff;
+
+    // node 0 is the root; for every other node: its parent, where its label is in
+    // labels_ (length byte, then the bytes), and its offset in the message
+    private int[] parent_ = new int[16];
+    private int[] labelAt_ = new int[16];
+    private int[] offset_ = new int[16];
+    private int nodes_ = 1;
+    private byte[] labels_ = new byte[64];
+    private int labelsLength_;
+    // hash table of node numbers, 0 = empty; always at least half empty
+    private int[] table_ = new int[32];
+
+    // the name being written, in wire format without the final 0, and where its labels start
+    private byte[] name_ = new byte[64];
+    private int[] starts_ = new int[16];
+
+    // write the name at the end of os, compressed against the names written before
+    public void writeName(ByteArrayOutputStream os, String[] labels) {
+        // the root name is always the single 0 byte, never a pointer (the OPT record needs this)
+        if (labels.length == 0) {
+            os.write(0);
+            return;
+        }
+        int length = 0;
+        for (String label : labels) {
+            length += label.length() + 1;
+        }
+        ensureName(length, labels.length);
+        int at = 0;
+        for (int i = 0; i < labels.length; i++) {
+            String label = labels[i];
+            starts_[i] = at;
+            name_[at++] = (byte) label.length();
+            for (int c = 0; c < label.length(); c++) {
+                name_[at++] = (byte) label.charAt(c);
+            }
+        }
+        write(os, os.size(), labels.length, length);
+    }
+
+    // the rdata of a record written at offset at in the message, with its names
+    // compressed; data itself if the type has no names that may be compressed
+    public byte[] compressData(int type, byte[] data, int at) {
+        int prefix;
+        int names;
+        switch (type) {
+            case 2:   // NS
+            case 5:   // CNAME
+            case 12:  // PTR
+                prefix = 0;
+                names = 1;
+                break;
+            case 6:   // SOA: mname, rname, then five 32-bit numbers
+                prefix = 0;
+                names = 2;
+                break;
+            case 15:  // MX: preference, exchange
+                prefix = 2;
+                names = 1;
+                break;
+            default:
+                // SRV targets must not be compressed (RFC 2782), nor any newer type
+                return data;
+        }
+        ByteArrayOutputStream os = new ByteArrayOutputStream(data.length);
+        os.write(data, 0, Math.min(prefix, data.length));
+        int from = prefix;
+        for (int n = 0; n < names; n++) {
+            // the names are uncompressed, DNSRecord.expandNames() made sure of that
+            int count = 0;
+            int end = from;
+            while (end < data.length && data[end] != 0) {
+                end += (data[end] & 0xff) + 1;
+                count++;
+            }
+            if (end >= data.length) {
+                // not a well formed name, leave the rdata alone
+                return data;
+            }
+            ensureName(end - from, count);
+            System.arraycopy(data, from, name_, 0, end - from);
+            int label = 0;
+            for (int i = 0; i < count; i++) {
+                starts_[i] = label;
+                label += (name_[label] & 0xff) + 1;
+            }
+            if (count == 0) {
+                os.write(0);
+            } else {
+                write(os, at + os.size(), count, end - from);
+            }
+            from = end + 1;
+        }
+        os.write(data, from, data.length - from);
+        return os.toByteArray();
+    }
+
+    // write name_ (count labels, length bytes) at offset at of the message
+    private void write(ByteArrayOutputStream os, int at, int count, int length) {
+        // the longest suffix already in the trie: labels matched to count - 1
+        int node = 0;
+        int matched = count;
+        for (int i = count - 1; i >= 0; i--) {
+            int child = find(node, starts_[i]);
+            if (child == 0) {
+                break;
+            }
+            node = child;
+            matched = i;
+        }
+        int pointer = matched < count ? offset_[node] : -1;
+        int prefix = matched < count ? starts_[matched] : length;
+        os.write(name_, 0, prefix);
+        // the labels written here become new suffixes, from the one nearest the root
+        for (int i = matched - 1; i >= 0 && at + starts_[i] <= MAX_POINTER; i--) {
+            node = add(node, starts_[i], at + starts_[i]);
+        }
+        if (pointer >= 0) {
+            os.write(0xc0 | (pointer >> 8));
+            os.write(pointer);
+        } else {
+            os.write(0);
+        }
+    }
+
+    // the child of parent with the label at name_[start], or 0
+    private int find(int parent, int start) {
+        int mask = table_.length - 1;
+        for (int slot = hash(parent, name_, start) & mask; ; slot = (slot + 1) & mask) {
+            int node = table_[slot];
+            if (node == 0) {
+                return 0;
+            }
+            if (parent_[node] == parent && sameLabel(labels_, labelAt_[node], name_, start)) {
+                return node;
+            }
+        }
+    }
+
+    private int add(int parent, int start, int offset) {
+        if (nodes_ == parent_.length) {
+            parent_ = Arrays.copyOf(parent_, nodes_ * 2);
+            labelAt_ = Arrays.copyOf(labelAt_, nodes_ * 2);
+            offset_ = Arrays.copyOf(offset_, nodes_ * 2);
+        }
+        int length = (name_[start] & 0xff) + 1;
+        if (labelsLength_ + length > labels_.length) {
+            labels_ = Arrays.copyOf(labels_, Math.max(labels_.length * 2, labelsLength_ + length));
+        }
+        System.arraycopy(name_, start, labels_, labelsLength_, length);
+        int node = nodes_++;
+        parent_[node] = parent;
+        labelAt_[node] = labelsLength_;
+        offset_[node] = offset;
+        labelsLength_ += length;
+        if (nodes_ * 2 > table_.length) {
+            rehash();
+        } else {
+            insert(node);
+        }
+        return node;
+    }
+
+    private void insert(int node) {
+        int mask = table_.length - 1;
+        int slot = hash(parent_[node], labels_, labelAt_[node]) & mask;
+        while (table_[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table_[slot] = node;
+    }
+
+    private void rehash() {
+        table_ = new int[table_.length * 2];
+        for (int node = 1; node < nodes_; node++) {
+            insert(node);
+        }
+    }
+
+    private void ensureName(int length, int count) {
+        if (name_.length < length) {
+            name_ = new byte[Math.max(length, name_.length * 2)];
+        }
+        if (starts_.length < count) {
+            starts_ = new int[Math.max(count, starts_.length * 2)];
+        }
+    }
+
+    // hash of the parent and the label at bytes[start] (length byte first)
+    private static int hash(int parent, byte[] bytes, int start) {
+        int h = parent * 0x9e3779b1;
+        int end = start + (bytes[start] & 0xff);
+        for (int i = start; i <= end; i++) {
+            h = (h ^ (bytes[i] & 0xff)) * 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean sameLabel(byte[] a, int aStart, byte[] b, int bStart) {
+        int length = a[aStart] & 0xff;
+        if (length != (b[bStart] & 0xff)) {
+            return false;
+        }
+        for (int i = 1; i <= length; i++) {
+            if (a[aStart + i] != b[bStart + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
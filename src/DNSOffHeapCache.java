@@ -0,0 +1,624 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+// off-heap cache class:
+//  - the DNSCache storage for millions of entries: nothing about an entry is a
+//    Java object while it sits in the cache, so the GC never has to walk it.
+//    DNSCache hands everything over to it when built with offHeap;
+//  - split in segments, each with its own lock, a ring of direct memory holding
+//    the records one after the other, and an open-addressed index (linear
+//    probing, two flat arrays) from the hash of the key to the record position;
+//  - a record is the key (the wire name, type and class), the encoded response
+//    (DNSWireResponse.wire()) with the offsets of its TTLs, and a small header:
+//    expiry, how long it may be served stale after that, creation time, TTL,
+//    hits and flags;
+//  - new records go at the tail of the ring; to make room the record at the head
+//    is dropped, unless it was read since it was written: then it gets a second
+//    chance and is moved to the tail (like CLOCK). so eviction is the ring's own,
+//    and a dropped or replaced record is just bytes the head will pass over;
+//  - a hit copies the record out into a new DNSWireResponse, which only lives
+//    as long as the query does.
+
+public class DNSOffHeapCache {
+
+    // record layout: header, key, TTL offsets (2 bytes each), wire; 8-byte aligned
+    private static final int LENGTH = 0;        // int, bytes of the record; negative for padding
+    private static final int HASH = 4;          // int
+    private static final int EXPIRES = 8;       // long, DNSClock millis
+    private static final int CREATED = 16;      // long, DNSClock millis
+    private static final int TTL = 24;          // int, seconds
+    private static final int HITS = 28;         // int
+    private static final int KEY_LENGTH = 32;   // short
+    private static final int TTL_COUNT = 34;    // short
+    private static final int WIRE_LENGTH = 36;  // int
+    private static final int FLAGS = 40;        // byte
+    private static final int STALE = 44;        // long, DNSClock millis, see DNSCacheEntry.staleUntil_
+    private static final int HEADER = 52;
+
+    private static final int ACCESSED = 1;
+    private static final int REFRESHING = 2;
+
+    // segments hold at most 1 GB, and at least 256 KB when the budget allows
+    private static final long MAX_SEGMENT = 1L << 30;
+    private static final long MIN_SEGMENT = 256 * 1024;
+    private static final int MAX_KEY = 260;
+
+    private class Segment {
+        final ReentrantLock lock_ = new ReentrantLock();
+        final ByteBuffer ring_;
+        final int capacity_;
+        // positions in the ring as if it never wrapped; offset = position % capacity_
+        long head_;
+        long tail_;
+        // the index: position + 1 of the record (0 = empty slot), and its hash
+        final long[] positions_;
+        final int[] hashes_;
+        final int mask_;
+        final int maxEntries_;
+        int count_;
+        // a record on its way to a second chance
+        byte[] scratch_ = new byte[1024];
+
+        Segment(int capacity, int maxEntries) {
+            capacity_ = capacity;
+            ring_ = ByteBuffer.allocateDirect(capacity);
+            maxEntries_ = maxEntries;
+            int slots = Integer.highestOneBit(Math.max(4, maxEntries) * 2 - 1) << 1;
+            positions_ = new long[slots];
+            hashes_ = new int[slots];
+            mask_ = slots - 1;
+        }
+
+        // the slot of the key, or -1
+        int find(int hash, byte[] key, int keyLength) {
+            for (int slot = hash & mask_; positions_[slot] != 0; slot = (slot + 1) & mask_) {
+                if (hashes_[slot] == hash && sameKey(offset(positions_[slot] - 1), key, keyLength)) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        // the slot pointing at the record at position, or -1 if it is not in the index anymore
+        int slotOf(int hash, long position) {
+            for (int slot = hash & mask_; positions_[slot] != 0; slot = (slot + 1) & mask_) {
+                if (positions_[slot] == position + 1) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        boolean sameKey(int at, byte[] key, int keyLength) {
+            if ((ring_.getShort(at + KEY_LENGTH) & 0xffff) != keyLength) {
+                return false;
+            }
+            for (int i = 0; i < keyLength; i++) {
+                if (ring_.get(at + HEADER + i) != key[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // take the slot out of the index, moving the entries after it back
+        // so that no lookup stops early at the hole (no tombstones)
+        void removeSlot(int slot) {
+            int hole = slot;
+            for (int i = (slot + 1) & mask_; positions_[i] != 0; i = (i + 1) & mask_) {
+                int home = hashes_[i] & mask_;
+                // stays if its home is cyclically in (hole, i]
+                boolean stays = hole <= i ? hole < home && home <= i : hole < home || home <= i;
+                if (!stays) {
+                    positions_[hole] = positions_[i];
+                    hashes_[hole] = hashes_[i];
+                    hole = i;
+                }
+            }
+            positions_[hole] = 0;
+            hashes_[hole] = 0;
+            count_--;
+        }
+
+        int offset(long position) {
+            return (int) (position % capacity_);
+        }
+
+        // bytes skipped at the end of the ring if length bytes were written at the tail now
+        int padding(int length) {
+            int left = capacity_ - offset(tail_);
+            return left < length ? left : 0;
+        }
+
+        // drop records from the head until length bytes fit at the tail
+        void reserve(int length) {
+            long moved = 0;
+            while (capacity_ - (tail_ - head_) < length + padding(length)) {
+                moved += dropHead(moved < capacity_ / 2);
+            }
+        }
+
+        // drop (or move to the tail) the record at the head; the bytes moved
+        int dropHead(boolean secondChance) {
+            int at = offset(head_);
+            int length = ring_.getInt(at + LENGTH);
+            if (length < 0) {
+                head_ -= length;
+                return 0;
+            }
+            long position = head_;
+            head_ += length;
+            int hash = ring_.getInt(at + HASH);
+            int slot = slotOf(hash, position);
+            if (slot < 0) {
+                // replaced or removed already
+                return 0;
+            }
+            if (ring_.getLong(at + STALE) <= DNSClock.now()) {
+                expired_.increment();
+                removeSlot(slot);
+                return 0;
+            }
+            if (secondChance && (ring_.get(at + FLAGS) & ACCESSED) != 0
+                    && capacity_ - (tail_ - head_) >= length + padding(length)) {
+                if (scratch_.length < length) {
+                    scratch_ = new byte[Math.max(length, scratch_.length * 2)];
+                }
+                ring_.get(at, scratch_, 0, length);
+                scratch_[FLAGS] &= ~ACCESSED;
+                positions_[slot] = append(scratch_, length) + 1;
+                return length;
+            }
+            evicted_.increment();
+            removeSlot(slot);
+            return 0;
+        }
+
+        // write the record at the tail, there must be room; returns its position
+        long append(byte[] record, int length) {
+            int pad = padding(length);
+            if (pad > 0) {
+                ring_.putInt(offset(tail_) + LENGTH, -pad);
+                tail_ += pad;
+            }
+            long position = tail_;
+            ring_.put(offset(position), record, 0, length);
+            tail_ += length;
+            return position;
+        }
+
+        void put(int hash, byte[] key, int keyLength, byte[] record, int length) {
+            int slot = find(hash, key, keyLength);
+            if (slot < 0) {
+                while (count_ >= maxEntries_ && tail_ > head_) {
+                    dropHead(false);
+                }
+            }
+            reserve(length);
+            // dropping records may have moved the slot
+            slot = find(hash, key, keyLength);
+            long position = append(record, length);
+            if (slot >= 0) {
+                positions_[slot] = position + 1;
+                return;
+            }
+            slot = hash & mask_;
+            while (positions_[slot] != 0) {
+                slot = (slot + 1) & mask_;
+            }
+            positions_[slot] = position + 1;
+            hashes_[slot] = hash;
+            count_++;
+        }
+
+        // drop dead and expired records from the head, and padding
+        void sweep() {
+            while (tail_ > head_) {
+                int at = offset(head_);
+                int length = ring_.getInt(at + LENGTH);
+                if (length >= 0 && slotOf(ring_.getInt(at + HASH), head_) >= 0
+                        && ring_.getLong(at + STALE) > DNSClock.now()) {
+                    return;
+                }
+                dropHead(false);
+            }
+        }
+
+        // the response of the record at position, copied out
+        DNSWireResponse response(long position) {
+            int at = offset(position);
+            int keyLength = ring_.getShort(at + KEY_LENGTH) & 0xffff;
+            int ttlCount = ring_.getShort(at + TTL_COUNT) & 0xffff;
+            int[] ttlOffsets = new int[ttlCount];
+            int from = at + HEADER + keyLength;
+            for (int i = 0; i < ttlCount; i++) {
+                ttlOffsets[i] = ring_.getShort(from + 2 * i) & 0xffff;
+            }
+            byte[] wire = new byte[ring_.getInt(at + WIRE_LENGTH)];
+            ring_.get(from + 2 * ttlCount, wire);
+            return DNSWireResponse.restore(wire, ttlOffsets, ring_.getLong(at + CREATED));
+        }
+    }
+
+    private final Segment[] segments_;
+    private final int segmentShift_;
+
+    private final LongAdder expired_ = new LongAdder();
+    private final LongAdder evicted_ = new LongAdder();
+
+    private volatile Function<DNSQuestion, CompletableFuture<?>> refresher_;
+    private volatile double prefetchFraction_;
+    private volatile int prefetchHits_;
+    private volatile long staleWindow_;
+
+    // the key and the record being built, per thread
+    private static final ThreadLocal<byte[]> key_ = ThreadLocal.withInitial(() -> new byte[MAX_KEY]);
+
+    public DNSOffHeapCache(long maxEntries, long maxBytes) {
+        int segments = 64;
+        while (segments < (1 << 16) && maxBytes / segments > MAX_SEGMENT) {
+            segments *= 2;
+        }
+        while (segments > 1 && maxBytes / segments < MIN_SEGMENT) {
+            segments /= 2;
+        }
+        long segmentBytes = Math.max(MIN_SEGMENT, maxBytes / segments) & ~7L;
+        int segmentEntries = (int) Math.min(Integer.MAX_VALUE / 4, Math.max(1, maxEntries / segments));
+        segments_ = new Segment[segments];
+        for (int i = 0; i < segments; i++) {
+            segments_[i] = new Segment((int) segmentBytes, segmentEntries);
+        }
+        segmentShift_ = 32 - Integer.numberOfTrailingZeros(segments);
+    }
+
+    // see DNSCache.setRefresher()
+    public void setRefresher(Function<DNSQuestion, CompletableFuture<?>> refresher, double fraction, int minHits) {
+        prefetchFraction_ = fraction;
+        prefetchHits_ = minHits;
+        refresher_ = refresher;
+    }
+
+    // see DNSCache.setStaleWindow()
+    public void setStaleWindow(int seconds) {
+        staleWindow_ = seconds * 1000L;
+    }
+
+    // the encoded response for the request, or null if it is not cached (or expired)
+    public DNSWireResponse getResponse(DNSQuestion request) {
+        return get(request, null, false);
+    }
+
+    // the same for the question at offset in the packet: its name is copied into the
+    // key as it is, and no DNSQuestion is built unless the entry is refreshed
+    public DNSWireResponse getResponse(DNSWireMessage wire, int offset) {
+        byte[] key = key_.get();
+        int at = wire.copyName(offset, key, 0);
+        if (at < 0 || at + 4 > MAX_KEY) {
+            return null;
+        }
+        int end = wire.skipName(offset);
+        for (int i = 0; i < 4; i++) {
+            key[at++] = (byte) wire.u8(end + i);
+        }
+        return get(key, at, null, null, false);
+    }
+
+    // the cached answer to the request, decoded from the response; null if it is not cached
+    public DNSCacheEntry getEntry(DNSQuestion request) {
+        long[] times = new long[2];
+        DNSWireResponse response = get(request, times, false);
+        return response == null ? null : toEntry(request, response, times[0], times[1]);
+    }
+
+    // the same, expired or not, as long as it may still be served stale
+    public DNSCacheEntry getStale(DNSQuestion request) {
+        long[] times = new long[2];
+        DNSWireResponse response = get(request, times, true);
+        return response == null ? null : toEntry(request, response, times[0], times[1]);
+    }
+
+    // the response, and its expiry and stale limit into times if it is not null.
+    // stale: return it even if it has expired, as long as it may be served stale
+    private DNSWireResponse get(DNSQuestion request, long[] times, boolean stale) {
+        byte[] key = key_.get();
+        int keyLength = key(request, key);
+        if (keyLength < 0) {
+            return null;
+        }
+        return get(key, keyLength, request, times, stale);
+    }
+
+    // the same by key; request is the question of the key, or null to build it if needed
+    private DNSWireResponse get(byte[] key, int keyLength, DNSQuestion request, long[] times, boolean stale) {
+        int hash = hash(key, keyLength);
+        Segment segment = segmentOf(hash);
+        DNSWireResponse response;
+        boolean refresh = false;
+        segment.lock_.lock();
+        try {
+            int slot = segment.find(hash, key, keyLength);
+            if (slot < 0) {
+                return null;
+            }
+            long position = segment.positions_[slot] - 1;
+            ByteBuffer ring = segment.ring_;
+            int at = segment.offset(position);
+            long now = DNSClock.now();
+            long expires = ring.getLong(at + EXPIRES);
+            long staleUntil = ring.getLong(at + STALE);
+            if (staleUntil <= now) {
+                expired_.increment();
+                segment.removeSlot(slot);
+                return null;
+            }
+            if (times != null) {
+                times[0] = expires;
+                times[1] = staleUntil;
+            }
+            if (stale) {
+                // no hit and no refresh-ahead, the caller is refreshing it
+                return segment.response(position);
+            }
+            if (expires <= now) {
+                // only kept to be served stale
+                return null;
+            }
+            int hits = ring.getInt(at + HITS) + 1;
+            ring.putInt(at + HITS, hits);
+            int flags = ring.get(at + FLAGS) | ACCESSED;
+            // refresh-ahead, once per record, as in DNSCache
+            int ttl = ring.getInt(at + TTL);
+            if (refresher_ != null && hits >= prefetchHits_ && (flags & REFRESHING) == 0
+                    && (ttl <= 0 || (now - ring.getLong(at + CREATED)) / 1000.0 / ttl >= prefetchFraction_)) {
+                flags |= REFRESHING;
+                refresh = true;
+            }
+            ring.put(at + FLAGS, (byte) flags);
+            response = segment.response(position);
+        } finally {
+            segment.lock_.unlock();
+        }
+        Function<DNSQuestion, CompletableFuture<?>> refresher = refresher_;
+        if (refresh && refresher != null) {
+            // the key buffer is the thread's, keep a copy for when the refresh is done
+            byte[] refreshed = Arrays.copyOf(key, keyLength);
+            try {
+                refresher.apply(request != null ? request : question(key, keyLength))
+                        .whenComplete((done, error) -> refreshed(refreshed, hash));
+            } catch (RuntimeException e) {
+                refreshed(refreshed, hash);
+                DNSLog.error("cannot refresh: " + e.getMessage());
+            }
+        }
+        return response;
+    }
+
+    // cache the entry, unless it may not be cached or is not encoded; unless
+    // replace, not over a record that has not expired
+    public void add(DNSQuestion request, DNSCacheEntry entry, boolean replace) {
+        DNSWireResponse response = entry.response_;
+        if (!entry.cacheable() || response == null) {
+            return;
+        }
+        byte[] key = key_.get();
+        int keyLength = key(request, key);
+        if (keyLength < 0) {
+            return;
+        }
+        int[] ttlOffsets = response.ttlOffsets();
+        byte[] wire = response.wire();
+        int length = (HEADER + keyLength + 2 * ttlOffsets.length + wire.length + 7) & ~7;
+        int hash = hash(key, keyLength);
+        Segment segment = segmentOf(hash);
+        // a record that would take more than a quarter of its segment is not worth it
+        if (length > segment.capacity_ / 4) {
+            return;
+        }
+        ByteBuffer record = ByteBuffer.allocate(length);
+        record.putInt(LENGTH, length);
+        record.putInt(HASH, hash);
+        record.putLong(EXPIRES, entry.expiresAt_);
+        record.putLong(CREATED, response.createdAt());
+        record.putInt(TTL, entry.ttl_);
+        record.putShort(KEY_LENGTH, (short) keyLength);
+        record.putShort(TTL_COUNT, (short) ttlOffsets.length);
+        record.putInt(WIRE_LENGTH, wire.length);
+        record.putLong(STALE, entry.staleUntil_ != 0 ? entry.staleUntil_ : entry.expiresAt_ + staleWindow_);
+        record.position(HEADER);
+        record.put(key, 0, keyLength);
+        for (int offset : ttlOffsets) {
+            record.putShort((short) offset);
+        }
+        record.put(wire);
+        segment.lock_.lock();
+        try {
+            if (!replace) {
+                int slot = segment.find(hash, key, keyLength);
+                if (slot >= 0 && segment.ring_.getLong(segment.offset(segment.positions_[slot] - 1) + EXPIRES)
+                        > DNSClock.now()) {
+                    return;
+                }
+            }
+            segment.put(hash, key, keyLength, record.array(), length);
+        } finally {
+            segment.lock_.unlock();
+        }
+    }
+
+    // call the action for every entry that has not expired, one segment at a time
+    public void forEach(BiConsumer<DNSQuestion, DNSCacheEntry> action) {
+        for (Segment segment : segments_) {
+            ArrayList<DNSWireResponse> responses = new ArrayList<>();
+            ArrayList<long[]> times = new ArrayList<>();
+            segment.lock_.lock();
+            try {
+                long now = DNSClock.now();
+                for (long position : segment.positions_) {
+                    if (position == 0) {
+                        continue;
+                    }
+                    int at = segment.offset(position - 1);
+                    long expires = segment.ring_.getLong(at + EXPIRES);
+                    if (expires > now) {
+                        responses.add(segment.response(position - 1));
+                        times.add(new long[]{expires, segment.ring_.getLong(at + STALE)});
+                    }
+                }
+            } finally {
+                segment.lock_.unlock();
+            }
+            for (int i = 0; i < responses.size(); i++) {
+                try {
+                    DNSQuestion question = DNSMessage.decodeMessage(responses.get(i).render(0)).requests_[0];
+                    DNSCacheEntry entry = toEntry(question, responses.get(i), times.get(i)[0], times.get(i)[1]);
+                    if (entry != null) {
+                        action.accept(question, entry);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // skip it
+                }
+            }
+        }
+    }
+
+    // drop the dead and expired records at the head of every ring
+    public void sweep() {
+        for (Segment segment : segments_) {
+            segment.lock_.lock();
+            try {
+                segment.sweep();
+            } finally {
+                segment.lock_.unlock();
+            }
+        }
+    }
+
+    public int size() {
+        long size = 0;
+        for (Segment segment : segments_) {
+            size += segment.count_;
+        }
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    // bytes of the rings in use, dead records included
+    public long bytes() {
+        long bytes = 0;
+        for (Segment segment : segments_) {
+            segment.lock_.lock();
+            try {
+                bytes += segment.tail_ - segment.head_;
+            } finally {
+                segment.lock_.unlock();
+            }
+        }
+        return bytes;
+    }
+
+    public long expired() {
+        return expired_.sum();
+    }
+
+    public long evicted() {
+        return evicted_.sum();
+    }
+
+    // the refresh of the record is over: if it is still there (the refresh failed),
+    // it may be refreshed again
+    private void refreshed(byte[] key, int hash) {
+        Segment segment = segmentOf(hash);
+        segment.lock_.lock();
+        try {
+            int slot = segment.find(hash, key, key.length);
+            if (slot >= 0) {
+                int at = segment.offset(segment.positions_[slot] - 1);
+                segment.ring_.put(at + FLAGS, (byte) (segment.ring_.get(at + FLAGS) & ~REFRESHING));
+            }
+        } finally {
+            segment.lock_.unlock();
+        }
+    }
+
+    private Segment segmentOf(int hash) {
+        return segments_.length == 1 ? segments_[0] : segments_[hash >>> segmentShift_];
+    }
+
+    // the entry of a cached response: decoded, with no more time left than the record had
+    private static DNSCacheEntry toEntry(DNSQuestion request, DNSWireResponse response,
+                                         long expiresAt, long staleUntil) {
+        try {
+            DNSCacheEntry entry = DNSCacheEntry.fromResponse(request, DNSMessage.decodeMessage(response.render(0)));
+            entry.limitTTL((int) Math.max(0, (expiresAt - DNSClock.now()) / 1000));
+            entry.staleUntil_ = staleUntil;
+            return entry;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    // the key of the question into key: the name in wire format, type and class.
+    // its length, or -1 if the name is too long to be a DNS name
+    private static int key(DNSQuestion question, byte[] key) {
+        int at = 0;
+        for (String label : question.qName_) {
+            if (label.length() > 63 || at + label.length() + 6 > MAX_KEY) {
+                return -1;
+            }
+            key[at++] = (byte) label.length();
+            for (int i = 0; i < label.length(); i++) {
+                key[at++] = (byte) label.charAt(i);
+            }
+        }
+        key[at++] = 0;
+        key[at++] = (byte) (question.qType_ >> 8);
+        key[at++] = (byte) question.qType_;
+        key[at++] = (byte) (question.qClass_ >> 8);
+        key[at++] = (byte) question.qClass_;
+        return at;
+    }
+
+    // the question a key was made from
+    private static DNSQuestion question(byte[] key, int keyLength) {
+        DNSWireMessage view = new DNSWireMessage().wrap(ByteBuffer.wrap(key, 0, keyLength));
+        DNSQuestion question = new DNSQuestion();
+        question.qName_ = view.nameLabels(0);
+        int end = view.skipName(0);
+        question.qType_ = view.u16(end);
+        question.qClass_ = view.u16(end + 2);
+        return question;
+    }
+
+    // murmur3 of the key
+    private static int hash(byte[] key, int length) {
+        int h = 0x9747b28c;
+        int i = 0;
+        for (; i + 4 <= length; i += 4) {
+            int k = (key[i] & 0xff) | (key[i + 1] & 0xff) << 8 | (key[i + 2] & 0xff) << 16 | key[i + 3] << 24;
+            h ^= mix(k);
+            h = Integer.rotateLeft(h, 13) * 5 + 0xe6546b64;
+        }
+        int k = 0;
+        for (int shift = 0; i < length; i++, shift += 8) {
+            k |= (key[i] & 0xff) << shift;
+        }
+        h ^= mix(k) ^ length;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        return h ^ (h >>> 16);
+    }
+
+    private static int mix(int k) {
+        k *= 0xcc9e2d51;
+        k = Integer.rotateLeft(k, 15);
+        return k * 0x1b873593;
+    }
+}
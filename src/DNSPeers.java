@@ -0,0 +1,438 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+// peers class:
+//  - a cache shared by several servers (--peers): every question has an owner,
+//    found on a consistent-hash ring of the peers (VIRTUAL_NODES points each, so
+//    adding or removing one only moves the questions next to its points);
+//  - on a cache miss a server asks the owner's cache before the upstream, and
+//    may push the answers it gets from the upstream to their owner, so every
+//    name is fetched upstream about once for the whole group;
+//  - the peers talk over UDP, one socket per server, a message being an op
+//    byte, a 16-bit id, then for GET the question (name, type, class), for HIT
+//    and PUSH the response as the cache renders it (id 0, TTLs as of now),
+//    for MISS nothing. Only the owner's cache is looked at, a GET never goes
+//    upstream, and messages from anything not on the ring are ignored;
+//  - with a shared key every message ends with the time it was sent and an
+//    HMAC-SHA256 of it all (truncated to TAG bytes): messages without a valid
+//    one, or sent more than MAX_SKEW ms away from now, are dropped. Without a
+//    key anyone who can send from a peer's address may answer GETs, so the
+//    peers must be on a trusted network, and PUSHes are not taken at all;
+//  - a peer that does not answer within the timeout is a miss: the question
+//    goes upstream as it would without peers.
+
+public class DNSPeers {
+
+    private static final int GET = 1;
+    private static final int HIT = 2;
+    private static final int MISS = 3;
+    private static final int PUSH = 4;
+    private static final int HEADER = 3;
+    // the signature: the sending time (wall clock ms), then the tag
+    private static final int TIME = 8;
+    private static final int TAG = 16;
+    private static final long MAX_SKEW = 10000;
+    private static final int VIRTUAL_NODES = 64;
+    // the biggest UDP payload
+    private static final int MAX_MESSAGE = 65507;
+
+    // one GET waiting for its HIT or MISS
+    private static class Pending {
+        final DNSQuestion question_;
+        final InetSocketAddress target_;
+        final CompletableFuture<DNSCacheEntry> result_ = new CompletableFuture<>();
+
+        Pending(DNSQuestion question, InetSocketAddress target) {
+            question_ = question;
+            target_ = target;
+        }
+    }
+
+    private final InetSocketAddress[] peers_;
+    private final int self_;
+    private final int timeout_;
+    private final DNSCache cache_;
+    // the ring: sorted points, and the peer of each
+    private final long[] points_;
+    private final int[] owners_;
+    private final DatagramSocket socket_;
+    private final ConcurrentHashMap<Integer, Pending> pending_ = new ConcurrentHashMap<>();
+    private final SecureRandom random_ = new SecureRandom();
+    // null without a key; a Mac per thread, they are not thread-safe
+    private final ThreadLocal<Mac> mac_;
+    private final int trailer_;
+    private final ScheduledExecutorService timer_;
+    private final Thread receiver_;
+    // only used by the receiver thread
+    private final DNSWireMessage wire_ = new DNSWireMessage();
+
+    private final LongAdder hits_ = new LongAdder();
+    private final LongAdder misses_ = new LongAdder();
+    private final LongAdder timeouts_ = new LongAdder();
+    private final LongAdder served_ = new LongAdder();
+    private final LongAdder pushed_ = new LongAdder();
+    private final LongAdder rejected_ = new LongAdder();
+
+    // peers are all the servers of the group, this one being peers[self]; it listens
+    // for the others on that address. GETs are given up on after timeout ms.
+    // key signs the messages, null for none
+    public DNSPeers(InetSocketAddress[] peers, int self, int timeout, DNSCache cache, byte[] key)
+            throws SocketException {
+        peers_ = peers;
+        self_ = self;
+        timeout_ = timeout;
+        cache_ = cache;
+        if (key != null) {
+            SecretKeySpec spec = new SecretKeySpec(key, "HmacSHA256");
+            // fail now rather than on the first message
+            mac(spec);
+            mac_ = ThreadLocal.withInitial(() -> mac(spec));
+            trailer_ = TIME + TAG;
+        } else {
+            mac_ = null;
+            trailer_ = 0;
+        }
+        points_ = new long[peers.length * VIRTUAL_NODES];
+        owners_ = new int[points_.length];
+        long[] sorted = new long[points_.length];
+        for (int p = 0; p < peers.length; p++) {
+            String name = peers[p].getAddress().getHostAddress() + ":" + peers[p].getPort();
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                // the point in the high bits, the peer in the low ones, to sort them together
+                long point = hash(name + "#" + v);
+                sorted[p * VIRTUAL_NODES + v] = (point & ~0xffffL) | p;
+            }
+        }
+        Arrays.sort(sorted);
+        for (int i = 0; i < sorted.length; i++) {
+            points_[i] = sorted[i] & ~0xffffL;
+            owners_[i] = (int) (sorted[i] & 0xffff);
+        }
+        socket_ = new DatagramSocket(peers[self]);
+        timer_ = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "dns-peer-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        receiver_ = new Thread(this::receiveLoop, "dns-peer-receiver");
+        receiver_.setDaemon(true);
+        receiver_.start();
+    }
+
+    // whether this server owns the question: then there is no one else to ask
+    public boolean isMine(DNSQuestion question) {
+        return owner(question) == self_;
+    }
+
+    // the owner's cached answer to the question, or null if it has none or
+    // does not answer in time; never completes exceptionally
+    public CompletableFuture<DNSCacheEntry> get(DNSQuestion question) {
+        InetSocketAddress target = peers_[owner(question)];
+        Pending p = new Pending(question, target);
+        int id = register(p);
+        if (id < 0) {
+            // no free id, too many GETs outstanding: don't wait for this one
+            misses_.increment();
+            return CompletableFuture.completedFuture(null);
+        }
+        try {
+            ByteArrayOutputStream os = new ByteArrayOutputStream(64);
+            question.writeBytes(os, new DNSNameCompressor());
+            byte[] data = message(GET, id, os.toByteArray());
+            socket_.send(new DatagramPacket(data, data.length, target));
+        } catch (IOException e) {
+            DNSLog.error("cannot ask peer " + target + ": " + e.getMessage());
+            finish(id, p, null);
+            return p.result_;
+        }
+        timer_.schedule(() -> {
+            if (pending_.remove(id, p)) {
+                timeouts_.increment();
+                misses_.increment();
+                p.result_.complete(null);
+            }
+        }, timeout_, TimeUnit.MILLISECONDS);
+        return p.result_;
+    }
+
+    // give the owner an answer fresh from the upstream, unless this server owns it
+    public void push(DNSQuestion question, DNSCacheEntry entry) {
+        int owner = owner(question);
+        if (owner == self_ || entry.response_ == null
+                || (entry.rCode_ != DNSCacheEntry.NOERROR && entry.rCode_ != DNSCacheEntry.NXDOMAIN)) {
+            return;
+        }
+        byte[] response = entry.response_.render(0);
+        if (response.length + HEADER + trailer_ > MAX_MESSAGE) {
+            return;
+        }
+        send(PUSH, 0, response, peers_[owner]);
+        pushed_.increment();
+    }
+
+    // GETs answered from the owner's cache, and not (including timeouts)
+    public long hits() {
+        return hits_.sum();
+    }
+
+    public long misses() {
+        return misses_.sum();
+    }
+
+    public long timeouts() {
+        return timeouts_.sum();
+    }
+
+    // GETs from the other peers answered from this cache
+    public long served() {
+        return served_.sum();
+    }
+
+    public long pushed() {
+        return pushed_.sum();
+    }
+
+    // messages dropped for a missing or bad signature
+    public long rejected() {
+        return rejected_.sum();
+    }
+
+    public void close() {
+        socket_.close();
+        timer_.shutdownNow();
+        for (Integer id : pending_.keySet()) {
+            Pending p = pending_.remove(id);
+            if (p != null) {
+                p.result_.complete(null);
+            }
+        }
+    }
+
+    // put the GET into the pending table under an unused random id, so a reply
+    // can't be forged without seeing the GET; -1 if none was found
+    private int register(Pending p) {
+        for (int tries = 0; tries < 64; tries++) {
+            int id = random_.nextInt(0x10000);
+            if (pending_.putIfAbsent(id, p) == null) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    // the peer owning the question: the first point on the ring at or after its hash
+    private int owner(DNSQuestion question) {
+        StringBuilder key = new StringBuilder();
+        for (String label : question.qName_) {
+            key.append(label.toLowerCase(Locale.ROOT)).append('.');
+        }
+        key.append(' ').append(question.qType_).append(' ').append(question.qClass_);
+        long point = hash(key.toString()) & ~0xffffL;
+        int i = Arrays.binarySearch(points_, point);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return owners_[i == points_.length ? 0 : i];
+    }
+
+    private void receiveLoop() {
+        byte[] buffer = new byte[MAX_MESSAGE];
+        DatagramPacket pkt = new DatagramPacket(buffer, buffer.length);
+        while (!socket_.isClosed()) {
+            try {
+                pkt.setLength(buffer.length);
+                socket_.receive(pkt);
+                InetSocketAddress from = (InetSocketAddress) pkt.getSocketAddress();
+                if (pkt.getLength() < HEADER || peerIndex(from) < 0) {
+                    continue;
+                }
+                int length = verify(buffer, pkt.getLength());
+                if (length < 0) {
+                    rejected_.increment();
+                    continue;
+                }
+                int op = buffer[0];
+                int id = ((buffer[1] & 0xff) << 8) | (buffer[2] & 0xff);
+                switch (op) {
+                    case GET:
+                        answer(buffer, length, id, from);
+                        break;
+                    case HIT:
+                    case MISS:
+                        Pending p = pending_.get(id);
+                        if (p != null && p.target_.equals(from)) {
+                            finish(id, p, op == HIT ? entry(buffer, length, p.question_) : null);
+                        }
+                        break;
+                    case PUSH:
+                        if (mac_ != null) {
+                            store(buffer, length);
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            } catch (IOException | RuntimeException e) {
+                if (!socket_.isClosed()) {
+                    DNSLog.error("bad peer message: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // a GET: the question's response from the cache, if it is there
+    private void answer(byte[] buffer, int length, int id, InetSocketAddress from) {
+        DNSWireMessage wire = wire_.wrap(ByteBuffer.wrap(buffer, 0, length));
+        DNSQuestion question = new DNSQuestion();
+        question.qName_ = wire.nameLabels(HEADER);
+        int end = wire.skipName(HEADER);
+        question.qType_ = wire.u16(end);
+        question.qClass_ = wire.u16(end + 2);
+        DNSWireResponse cached = cache_.getResponse(question);
+        byte[] response = cached != null ? cached.render(0) : null;
+        if (response != null && response.length + HEADER + trailer_ <= MAX_MESSAGE) {
+            served_.increment();
+            send(HIT, id, response, from);
+        } else {
+            send(MISS, id, new byte[0], from);
+        }
+    }
+
+    // a PUSH: cached if this server owns the question and has no answer yet;
+    // like a HIT, only an answer or a name error is taken
+    private void store(byte[] buffer, int length) throws IOException {
+        DNSMessage response = DNSMessage.decodeMessage(Arrays.copyOfRange(buffer, HEADER, length));
+        if (response.requests_.length != 1) {
+            return;
+        }
+        DNSQuestion question = response.requests_[0];
+        if (!isMine(question)) {
+            return;
+        }
+        DNSCacheEntry entry = DNSCacheEntry.fromResponse(question, response);
+        if (entry.rCode_ == DNSCacheEntry.NOERROR || entry.rCode_ == DNSCacheEntry.NXDOMAIN) {
+            cache_.addIfAbsent(question, entry);
+        }
+    }
+
+    // the entry of a HIT, if it is an answer to the question asked
+    private static DNSCacheEntry entry(byte[] buffer, int length, DNSQuestion question) throws IOException {
+        DNSMessage response = DNSMessage.decodeMessage(Arrays.copyOfRange(buffer, HEADER, length));
+        if (response.requests_.length != 1 || !response.requests_[0].equals(question)) {
+            return null;
+        }
+        DNSCacheEntry entry = DNSCacheEntry.fromResponse(question, response);
+        return entry.rCode_ == DNSCacheEntry.NOERROR || entry.rCode_ == DNSCacheEntry.NXDOMAIN ? entry : null;
+    }
+
+    private void finish(int id, Pending p, DNSCacheEntry entry) {
+        if (pending_.remove(id, p)) {
+            if (entry != null) {
+                hits_.increment();
+            } else {
+                misses_.increment();
+            }
+            p.result_.complete(entry);
+        }
+    }
+
+    private void send(int op, int id, byte[] payload, InetSocketAddress to) {
+        byte[] data = message(op, id, payload);
+        try {
+            socket_.send(new DatagramPacket(data, data.length, to));
+        } catch (IOException e) {
+            DNSLog.error("cannot send to peer " + to + ": " + e.getMessage());
+        }
+    }
+
+    // the header, the payload and, with a key, the signature
+    private byte[] message(int op, int id, byte[] payload) {
+        int length = HEADER + payload.length;
+        byte[] data = new byte[length + trailer_];
+        data[0] = (byte) op;
+        data[1] = (byte) (id >> 8);
+        data[2] = (byte) id;
+        System.arraycopy(payload, 0, data, HEADER, payload.length);
+        if (mac_ != null) {
+            ByteBuffer.wrap(data).putLong(length, System.currentTimeMillis());
+            Mac mac = mac_.get();
+            mac.update(data, 0, length + TIME);
+            System.arraycopy(mac.doFinal(), 0, data, length + TIME, TAG);
+        }
+        return data;
+    }
+
+    // the length of the message without its signature, or -1 if the signature is
+    // missing, wrong or too old; without a key, the length as is
+    private int verify(byte[] data, int length) {
+        if (mac_ == null) {
+            return length;
+        }
+        int signed = length - TAG;
+        if (signed - TIME < HEADER) {
+            return -1;
+        }
+        long sent = ByteBuffer.wrap(data).getLong(signed - TIME);
+        if (Math.abs(System.currentTimeMillis() - sent) > MAX_SKEW) {
+            return -1;
+        }
+        Mac mac = mac_.get();
+        mac.update(data, 0, signed);
+        byte[] tag = Arrays.copyOf(mac.doFinal(), TAG);
+        if (!MessageDigest.isEqual(tag, Arrays.copyOfRange(data, signed, length))) {
+            return -1;
+        }
+        return signed - TIME;
+    }
+
+    private static Mac mac(SecretKeySpec key) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("cannot sign peer messages: " + e.getMessage(), e);
+        }
+    }
+
+    private int peerIndex(InetSocketAddress address) {
+        for (int i = 0; i < peers_.length; i++) {
+            if (i != self_ && peers_[i].equals(address)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // FNV-1a, then murmur3's fmix64 to spread the bits
+    private static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h = (h ^ s.charAt(i)) * 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
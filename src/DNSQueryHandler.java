@@ -0,0 +1,19 @@
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+// query handler interface:
+//  - what a listener (UDP or TCP) hands every query it reads to;
+//  - the handler is done with the query bytes once handle() returns, and gives
+//    the response to respond when it has one, possibly later on another thread;
+//  - respond is called exactly once per query: with null if there is no response
+//    (not a query, malformed, dropped), so the listener knows it is done with it.
+
+public interface DNSQueryHandler {
+    void handle(ByteBuffer query, Consumer<byte[]> respond);
+
+    // write the response straight into out if it can be had right away (a cache hit),
+    // so the listener sends it from its own buffer. false means call handle() instead.
+    default boolean answer(ByteBuffer query, ByteBuffer out) {
+        return false;
+    }
+}
@@ -1,10 +1,7 @@
-import javax.print.attribute.standard.JobKOctets;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.Map;
-import java.util.Objects;
 
 /*
                                 1  1  1  1  1  1
@@ -26,10 +23,10 @@ public class DNSQuestion {
     public int qType_;
     public int qClass_;
 
-    // read a question from the input stream.
+    // read a question from the current position of the buffer.
     // due to compression, may have to ask the DNSMessage containing this
     // question to read some fields.
-    public static DNSQuestion decodeQuestion(ByteArrayInputStream is, DNSMessage msg){
+    public static DNSQuestion decodeQuestion(ByteBuffer is, DNSMessage msg){
         DNSQuestion question = new DNSQuestion();
         // get name
         question.qName_ = msg.readDomainName(is);
@@ -41,10 +38,10 @@ public class DNSQuestion {
     }
 
     // write the question bytes which will be sent to the client.
-    // the hash map is used for us to compress the message.
-    public void writeBytes(ByteArrayOutputStream byteOS, Map<String,Integer> domainNameLocations) throws IOException {
+    // the compressor remembers the names already written, to compress the message.
+    public void writeBytes(ByteArrayOutputStream byteOS, DNSNameCompressor names) throws IOException {
         // write name
-        DNSMessage.writeDomainName(byteOS, domainNameLocations, qName_);
+        names.writeName(byteOS, qName_);
         // write type
         byteOS.write(DNSHelper.intToBytes(qType_));
         // write class
@@ -62,9 +59,31 @@ public class DNSQuestion {
         return question;
     }
 
-    // reference: used '31' as seed
+    // case-insensitive, and the same as hash(wire.nameHash(offset), type, class) of the
+    // question in a packet, so a cache can be searched without building a DNSQuestion
     public int hashCode(){
-        return 31 * (Objects.hash(qType_, qClass_)) + Arrays.hashCode(qName_);
+        return hash(nameHash(qName_), qType_, qClass_);
+    }
+
+    // reference: used '31' as seed; what Objects.hash(type, qClass) gives, without boxing
+    public static int hash(int nameHash, int type, int qClass) {
+        return 31 * (31 * (31 + type) + qClass) + nameHash;
+    }
+
+    // the same as DNSWireMessage.nameHash() of the name in wire format
+    private static int nameHash(String[] labels) {
+        int hash = 1;
+        for (String label : labels) {
+            hash = 31 * hash + label.length();
+            for (int i = 0; i < label.length(); i++) {
+                int c = label.charAt(i);
+                if (c >= 'A' && c <= 'Z') {
+                    c += 'a' - 'A';
+                }
+                hash = 31 * hash + c;
+            }
+        }
+        return 31 * hash;
     }
 
     @Override
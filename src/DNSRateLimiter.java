@@ -0,0 +1,128 @@
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// rate limiter class:
+//  - response rate limiting of UDP clients, by address prefix (a /24 for IPv4,
+//    a /56 for IPv6 by default), so one client or a reflection flood aimed at
+//    one victim cannot take up all the answers;
+//  - a token bucket per prefix, in a fixed table of slots: its memory does not
+//    depend on the number of clients. A slot is one long (a tag of the prefix,
+//    the time of the last refill, the tokens) updated with a single CAS, no locks;
+//  - approximate on purpose: prefixes landing on the same slot with the same tag
+//    share a bucket, and a new prefix takes over the slot of another (which then
+//    starts over with a full bucket); a slot too contended to update lets the
+//    query through. None of that ever limits a client that is within its rate;
+//  - over the rate, a query is dropped or answered truncated (TC, no records)
+//    so a real client retries over TCP, which can't be spoofed; "slip" truncates
+//    one in rrlSlip_ of them and drops the others, like BIND.
+
+public class DNSRateLimiter {
+
+    public static final int ALLOW = 0;
+    public static final int DROP = 1;
+    public static final int TRUNCATE = 2;
+
+    // tokens are counted in 1/256ths
+    private static final long SCALE = 256;
+    private static final long MAX_TOKENS = 0xffffff;
+    // time in ticks of 2^24 ns (about 17 ms), kept in 24 bits (about 78 hours)
+    private static final int TICK_SHIFT = 24;
+    private static final long TICK_MASK = 0xffffff;
+    private static final int ATTEMPTS = 2;
+
+    // slots: tag (16 bits) | tick of the last refill (24 bits) | tokens (24 bits); 0 is unused
+    private final AtomicLongArray slots_;
+    private final int mask_;
+    private final long refill_;
+    private final long capacity_;
+    private final int action_;
+    private final int slip_;
+    private final long mask4_;
+    private final long mask6_;
+
+    // rate responses per second and prefix, up to burst at once; action is "slip",
+    // "truncate" or "drop"; slots is rounded up to a power of two
+    public DNSRateLimiter(int rate, int burst, String action, int slip, int prefix4, int prefix6, int slots) {
+        int size = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+        slots_ = new AtomicLongArray(size);
+        mask_ = size - 1;
+        refill_ = Math.max(1, Math.round(rate * SCALE * (1L << TICK_SHIFT) / 1e9));
+        capacity_ = Math.min(MAX_TOKENS, Math.max(1, burst > 0 ? burst : rate) * SCALE);
+        action_ = action.equals("drop") ? DROP : TRUNCATE;
+        slip_ = action.equals("slip") ? slip : 1;
+        mask4_ = prefix4 <= 0 ? 0 : -1L << (32 - Math.min(32, prefix4));
+        mask6_ = prefix6 <= 0 ? 0 : -1L << (64 - Math.min(64, prefix6));
+    }
+
+    // what to do with a query from the client: ALLOW, DROP or TRUNCATE
+    public int check(SocketAddress client) {
+        if (!(client instanceof InetSocketAddress)) {
+            return ALLOW;
+        }
+        long hash = mix(prefix(((InetSocketAddress) client).getAddress()));
+        int index = (int) hash & mask_;
+        // never 0, so a used slot is never 0 either
+        long tag = (hash >>> 48) | 1;
+        long now = (System.nanoTime() >>> TICK_SHIFT) & TICK_MASK;
+        for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+            long slot = slots_.get(index);
+            long tokens;
+            if (slot >>> 48 != tag) {
+                // a new prefix, or another one that had this slot
+                tokens = capacity_;
+            } else {
+                long elapsed = (now - (slot >>> TICK_SHIFT)) & TICK_MASK;
+                tokens = Math.min(capacity_, (slot & MAX_TOKENS) + elapsed * refill_);
+            }
+            boolean allowed = tokens >= SCALE;
+            if (allowed) {
+                tokens -= SCALE;
+            }
+            if (slots_.compareAndSet(index, slot, tag << 48 | now << TICK_SHIFT | tokens)) {
+                return allowed ? ALLOW : limited();
+            }
+        }
+        return ALLOW;
+    }
+
+    private int limited() {
+        if (action_ == DROP || slip_ <= 0) {
+            DNSMetrics.RRL_DROPPED.increment();
+            return DROP;
+        }
+        if (slip_ == 1 || ThreadLocalRandom.current().nextInt(slip_) == 0) {
+            DNSMetrics.RRL_TRUNCATED.increment();
+            return TRUNCATE;
+        }
+        DNSMetrics.RRL_DROPPED.increment();
+        return DROP;
+    }
+
+    // the prefix of the address, IPv4 and IPv6 kept apart by the top bit
+    private long prefix(InetAddress address) {
+        if (address instanceof Inet4Address) {
+            // an Inet4Address's hash code is the address itself, nothing to copy
+            return (address.hashCode() & 0xffffffffL & mask4_) | (1L << 63);
+        }
+        byte[] bytes = address.getAddress();
+        long high = 0;
+        for (int i = 0; i < 8; i++) {
+            high = high << 8 | (bytes[i] & 0xff);
+        }
+        return (high & mask6_) & Long.MAX_VALUE;
+    }
+
+    // murmur3 fmix64
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
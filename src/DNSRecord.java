@@ -1,13 +1,12 @@
 // Everything after the header and question parts of the DNS message are stored as records.
 // This should have all the fields listed in the spec
-// as well as a Date object storing when this record was created by your program.
+// as well as the DNSClock deadline when this record expires.
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Calendar;
-import java.util.Map;
 
 /*
                                     1  1  1  1  1  1
@@ -37,56 +36,126 @@ public class DNSRecord {
     public int recordType_;
     public int recordClass_;
     public int recordTTL_;
-    public Calendar recordLastsTime_;
+    // DNSClock millis when the TTL runs out, 0 for records that did not come off the wire
+    public long recordExpiresAt_;
     public int recordLength_;
     public byte[] recordData_;
 
 
-    public static DNSRecord decodeRecord(ByteArrayInputStream is, DNSMessage msg){
+    public static DNSRecord decodeRecord(ByteBuffer is, DNSMessage msg){
         DNSRecord record = new DNSRecord();
 
         record.recordName_ = msg.readDomainName(is);
         record.recordType_ = DNSHelper.getNBytes(is, 2);
         record.recordClass_ = DNSHelper.getNBytes(is, 2);
         record.recordTTL_ = DNSHelper.getNBytes(is, 4);
+        // a TTL with the top bit set means 0 (RFC 2181 section 8)
+        if (record.recordTTL_ < 0) {
+            record.recordTTL_ = 0;
+        }
         record.recordLength_ = DNSHelper.getNBytes(is, 2);
 
         // record data has N = recordLength_ bytes of data
+        ByteBuffer data = is.duplicate();
         record.recordData_ = new byte[record.recordLength_];
         // read all of them and store in the array
-        for (int i = 0; i < record.recordLength_; i++) {
-            record.recordData_[i] = (byte) is.read();
+        is.get(record.recordData_);
+        // names in the data may point into this message, write them out in full
+        // so the record can be copied into another message (a cached response)
+        byte[] expanded = expandNames(data, msg, record.recordType_, record.recordLength_);
+        if (expanded != null) {
+            record.recordData_ = expanded;
+            record.recordLength_ = expanded.length;
         }
 
         // use the TTL, record the lasts time for this record
         // if time > lasts time, timestampValid == false
-        record.recordLastsTime_ = Calendar.getInstance();
-        record.recordLastsTime_.add(Calendar.SECOND, record.recordTTL_);
+        record.recordExpiresAt_ = DNSClock.deadline(record.recordTTL_);
 
         return record;
     }
 
-    public void writeBytes(ByteArrayOutputStream byteOS, Map<String, Integer> dnMap) throws IOException {
+    // the EDNS0 OPT pseudo-record (RFC 6891): root name, type 41, the class field is the
+    // UDP payload size we can take, extended rcode / version / flags 0, no options
+    public static DNSRecord buildOpt(int udpPayloadSize) {
+        DNSRecord record = new DNSRecord();
+        record.recordName_ = new String[0];
+        record.recordType_ = DNSCacheEntry.TYPE_OPT;
+        record.recordClass_ = udpPayloadSize;
+        record.recordTTL_ = 0;
+        record.recordLength_ = 0;
+        record.recordData_ = new byte[0];
+        return record;
+    }
+
+    // rdata of NS, CNAME, PTR, MX, SOA and SRV records with the names decompressed,
+    // or null for the other types. data is positioned at the start of the rdata.
+    private static byte[] expandNames(ByteBuffer data, DNSMessage msg, int type, int length) {
+        int end = data.position() + length;
+        // bytes before the first name, and how many names follow
+        int prefix;
+        int names;
+        switch (type) {
+            case 2:   // NS
+            case 5:   // CNAME
+            case 12:  // PTR
+                prefix = 0;
+                names = 1;
+                break;
+            case 6:   // SOA: mname, rname, then five 32-bit numbers
+                prefix = 0;
+                names = 2;
+                break;
+            case 15:  // MX: preference, exchange
+                prefix = 2;
+                names = 1;
+                break;
+            case 33:  // SRV: priority, weight, port, target
+                prefix = 6;
+                names = 1;
+                break;
+            default:
+                return null;
+        }
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        for (int i = 0; i < prefix; i++) {
+            os.write(data.get());
+        }
+        for (int i = 0; i < names; i++) {
+            for (String label : msg.readDomainName(data)) {
+                os.write(label.length());
+                for (int c = 0; c < label.length(); c++) {
+                    os.write(label.charAt(c));
+                }
+            }
+            os.write(0);
+        }
+        while (data.position() < end) {
+            os.write(data.get());
+        }
+        return os.toByteArray();
+    }
+
+    public void writeBytes(ByteArrayOutputStream byteOS, DNSNameCompressor names) throws IOException {
         // write name
-        DNSMessage.writeDomainName(byteOS, dnMap, recordName_);
+        names.writeName(byteOS, recordName_);
         // write type
         byteOS.write(DNSHelper.intToBytes(recordType_));
         // write class
         byteOS.write(DNSHelper.intToBytes(recordClass_));
-        // write ttl
+        // write ttl, what is left of it by now
+        int ttl = remainingTTL();
         byte[] ttlArr = new byte[4];
         for (int i = 0; i < 4; i++){
-            ttlArr[i] = (byte) (recordTTL_ >> (8 * (3 - i)));
+            ttlArr[i] = (byte) (ttl >> (8 * (3 - i)));
         }
         for (byte ttlByte : ttlArr) {
             byteOS.write(ttlByte);
         }
-        // write length
-        byteOS.write(DNSHelper.intToBytes(recordLength_));
-        // write data
-        for (byte data: recordData_) {
-            byteOS.write(data);
-        }
+        // write length and data, with the names in the data compressed too
+        byte[] data = names.compressData(recordType_, recordData_, byteOS.size() + 2);
+        byteOS.write(DNSHelper.intToBytes(data.length));
+        byteOS.write(data);
     }
 
     @Override
@@ -100,10 +169,34 @@ public class DNSRecord {
         return record;
     }
 
-    // return whether the creation date + the time to live is after the current time.
-    // The Date and Calendar classes will be useful for this.
+    // return whether the record is still within its TTL.
+    // a plain compare with the cached clock, nothing is allocated.
     public boolean timestampValid(){
-        Calendar newTime = Calendar.getInstance();
-        return newTime.before(recordLastsTime_);
+        return recordExpiresAt_ == 0 || DNSClock.now() < recordExpiresAt_;
+    }
+
+    // the domain name at offset in the rdata (the NS, CNAME... name), which is
+    // uncompressed: expandNames() took care of that when the record was decoded
+    public String[] dataName(int offset){
+        ArrayList<String> labels = new ArrayList<>();
+        int at = offset;
+        while (at < recordData_.length && recordData_[at] != 0) {
+            int length = recordData_[at] & 0xff;
+            char[] chars = new char[length];
+            for (int i = 0; i < length; i++) {
+                chars[i] = (char) (recordData_[at + 1 + i] & 0xff);
+            }
+            labels.add(new String(chars));
+            at += length + 1;
+        }
+        return labels.toArray(new String[0]);
+    }
+
+    // seconds of the TTL that are left, the full TTL for records that did not come off the wire
+    public int remainingTTL(){
+        if (recordExpiresAt_ == 0) {
+            return recordTTL_;
+        }
+        return (int) DNSClock.secondsLeft(recordExpiresAt_);
     }
 }
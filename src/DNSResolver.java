@@ -0,0 +1,278 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+// resolver class:
+//  - iterative resolution (--resolution=iterative): instead of forwarding to a
+//    recursive resolver, ask the authoritative servers ourselves, starting at
+//    the root hints and following referrals down the tree;
+//  - every referral (NS records in the authority section, glue addresses in
+//    the additional one) is kept in the delegation cache, so the next lookup
+//    under the same zone starts at the deepest nameserver known;
+//  - nameservers without glue are looked up the same way, CNAMEs are followed,
+//    both with a depth limit so a loop of them ends in a failure.
+// queries go out through DNSUpstream.ask(), so they share its socket, ids and timeouts.
+
+public class DNSResolver {
+
+    private static final int TYPE_A = 1;
+    private static final int TYPE_NS = 2;
+    private static final int TYPE_CNAME = 5;
+    private static final int TYPE_AAAA = 28;
+    private static final int CLASS_IN = 1;
+
+    private static final int REFUSED = 5;
+
+    // referrals followed for one name, and nested lookups (nameserver addresses, CNAMEs)
+    private static final int MAX_REFERRALS = 16;
+    private static final int MAX_DEPTH = 6;
+
+    private final DNSUpstream transport_;
+    private final DNSDelegationCache delegations_;
+    // port the authoritative servers learned from referrals listen on
+    private final int authorityPort_;
+    // question --> lookup already running for it
+    private final ConcurrentHashMap<DNSQuestion, CompletableFuture<DNSMessage>> outstanding_ =
+            new ConcurrentHashMap<>();
+
+    public DNSResolver(DNSUpstream transport, InetSocketAddress[] rootHints, int authorityPort, int maxZones) {
+        transport_ = transport;
+        authorityPort_ = authorityPort;
+        delegations_ = new DNSDelegationCache(rootHints, maxZones);
+    }
+
+    public DNSDelegationCache delegations() {
+        return delegations_;
+    }
+
+    // resolve the question; the future completes with the final answer (or the
+    // negative one), or exceptionally if no server would give one.
+    // identical questions asked meanwhile share the lookup.
+    public CompletableFuture<DNSMessage> resolve(DNSQuestion question) {
+        CompletableFuture<DNSMessage> mine = new CompletableFuture<>();
+        CompletableFuture<DNSMessage> shared = outstanding_.putIfAbsent(question, mine);
+        if (shared != null) {
+            return shared;
+        }
+        mine.whenComplete((reply, error) -> outstanding_.remove(question, mine));
+        resolve(question, 0).whenComplete((reply, error) -> {
+            if (error != null) {
+                mine.completeExceptionally(error);
+            } else {
+                mine.complete(reply);
+            }
+        });
+        return mine;
+    }
+
+    private CompletableFuture<DNSMessage> resolve(DNSQuestion question, int depth) {
+        if (depth > MAX_DEPTH) {
+            return failed("too many nested lookups for " + DNSMessage.octetsToString(question.qName_));
+        }
+        DNSDelegationCache.Delegation start = delegations_.closest(question.qName_);
+        return iterate(question, start, 0, depth)
+                .thenCompose(reply -> followCname(question, reply, depth));
+    }
+
+    // ask the servers of the delegation, and go down the referrals they give
+    private CompletableFuture<DNSMessage> iterate(DNSQuestion question, DNSDelegationCache.Delegation zone,
+                                                  int referrals, int depth) {
+        if (referrals > MAX_REFERRALS) {
+            return failed("too many referrals for " + DNSMessage.octetsToString(question.qName_));
+        }
+        return addresses(zone, depth)
+                .thenCompose(servers -> askAny(question, servers, ThreadLocalRandom.current().nextInt(servers.length), 0))
+                .thenCompose(reply -> {
+                    DNSDelegationCache.Delegation next = referral(question, zone, reply);
+                    if (next == null) {
+                        return CompletableFuture.completedFuture(reply);
+                    }
+                    delegations_.add(next);
+                    return iterate(question, next, referrals + 1, depth);
+                });
+    }
+
+    // ask the servers one after the other, from first on, until one gives a usable reply
+    private CompletableFuture<DNSMessage> askAny(DNSQuestion question, InetSocketAddress[] servers,
+                                                 int first, int tried) {
+        InetSocketAddress server = servers[(first + tried) % servers.length];
+        return transport_.ask(question, server, false).handle((reply, error) -> {
+            boolean usable = error == null && reply.header_.rCode_ != DNSCacheEntry.SERVFAIL
+                    && reply.header_.rCode_ != REFUSED;
+            if (usable) {
+                return CompletableFuture.completedFuture(reply);
+            }
+            if (tried + 1 < servers.length) {
+                return askAny(question, servers, first, tried + 1);
+            }
+            return DNSResolver.<DNSMessage>failed("no nameserver answered for "
+                    + DNSMessage.octetsToString(question.qName_));
+        }).thenCompose(next -> next);
+    }
+
+    // the addresses of the zone's nameservers: the glue, or else look the names up
+    private CompletableFuture<InetSocketAddress[]> addresses(DNSDelegationCache.Delegation zone, int depth) {
+        InetSocketAddress[] known = zone.addresses_;
+        if (known.length > 0) {
+            return CompletableFuture.completedFuture(known);
+        }
+        return lookupNameserver(zone, 0, depth);
+    }
+
+    private CompletableFuture<InetSocketAddress[]> lookupNameserver(DNSDelegationCache.Delegation zone,
+                                                                   int index, int depth) {
+        if (index >= zone.nameservers_.length) {
+            return failed("no address for any nameserver of " + DNSMessage.octetsToString(zone.zone_));
+        }
+        DNSQuestion question = new DNSQuestion();
+        question.qName_ = zone.nameservers_[index];
+        question.qType_ = TYPE_A;
+        question.qClass_ = CLASS_IN;
+        return resolve(question, depth + 1).handle((reply, error) -> {
+            ArrayList<InetSocketAddress> found = new ArrayList<>();
+            if (error == null) {
+                for (DNSRecord record : reply.responses_) {
+                    addAddress(found, record);
+                }
+            }
+            if (found.isEmpty()) {
+                return lookupNameserver(zone, index + 1, depth);
+            }
+            InetSocketAddress[] addresses = found.toArray(new InetSocketAddress[0]);
+            zone.addresses_ = addresses;
+            return CompletableFuture.completedFuture(addresses);
+        }).thenCompose(next -> next);
+    }
+
+    // the delegation the reply refers us to, or null if it is an answer.
+    // a referral has no answers, is not authoritative, and has NS records
+    // for a zone below the one we asked and above the name.
+    private DNSDelegationCache.Delegation referral(DNSQuestion question, DNSDelegationCache.Delegation asked,
+                                                   DNSMessage reply) {
+        if (reply.header_.rCode_ != DNSCacheEntry.NOERROR || reply.header_.aa_ == 1
+                || reply.responses_.length > 0) {
+            return null;
+        }
+        String[] zone = null;
+        ArrayList<String[]> nameservers = new ArrayList<>();
+        long ttl = Long.MAX_VALUE;
+        for (DNSRecord record : reply.nsRecords_) {
+            if (record.recordType_ != TYPE_NS || record.recordName_.length <= asked.zone_.length
+                    || !isSubdomain(question.qName_, record.recordName_)
+                    || !isSubdomain(record.recordName_, asked.zone_)) {
+                continue;
+            }
+            if (zone == null) {
+                zone = record.recordName_;
+            } else if (!sameName(zone, record.recordName_)) {
+                continue;
+            }
+            nameservers.add(record.dataName(0));
+            ttl = Math.min(ttl, record.remainingTTL());
+        }
+        if (zone == null) {
+            return null;
+        }
+        // glue, only for nameservers inside the zone of the server that sent it
+        ArrayList<InetSocketAddress> glue = new ArrayList<>();
+        for (DNSRecord record : reply.addRecords_) {
+            if (!isSubdomain(record.recordName_, asked.zone_)) {
+                continue;
+            }
+            for (String[] nameserver : nameservers) {
+                if (sameName(nameserver, record.recordName_)) {
+                    addAddress(glue, record);
+                    break;
+                }
+            }
+        }
+        return new DNSDelegationCache.Delegation(zone, nameservers.toArray(new String[0][]),
+                glue.toArray(new InetSocketAddress[0]), DNSClock.deadline(ttl));
+    }
+
+    // if the answer is a CNAME chain that does not end in the type asked for,
+    // resolve where it ends and put the two answers together
+    private CompletableFuture<DNSMessage> followCname(DNSQuestion question, DNSMessage reply, int depth) {
+        if (reply.header_.rCode_ != DNSCacheEntry.NOERROR || question.qType_ == TYPE_CNAME) {
+            return CompletableFuture.completedFuture(reply);
+        }
+        String[] name = question.qName_;
+        boolean followed = true;
+        for (int hops = 0; followed && hops <= reply.responses_.length; hops++) {
+            followed = false;
+            for (DNSRecord record : reply.responses_) {
+                if (!sameName(record.recordName_, name)) {
+                    continue;
+                }
+                if (record.recordType_ == question.qType_) {
+                    return CompletableFuture.completedFuture(reply);
+                }
+                if (record.recordType_ == TYPE_CNAME) {
+                    name = record.dataName(0);
+                    followed = true;
+                    break;
+                }
+            }
+        }
+        if (name == question.qName_) {
+            // no CNAME at all, NODATA
+            return CompletableFuture.completedFuture(reply);
+        }
+        DNSQuestion target = new DNSQuestion();
+        target.qName_ = name;
+        target.qType_ = question.qType_;
+        target.qClass_ = question.qClass_;
+        return resolve(target, depth + 1).thenApply(tail -> {
+            DNSMessage merged = new DNSMessage();
+            merged.header_ = tail.header_;
+            merged.requests_ = reply.requests_;
+            DNSRecord[] answers = new DNSRecord[reply.responses_.length + tail.responses_.length];
+            System.arraycopy(reply.responses_, 0, answers, 0, reply.responses_.length);
+            System.arraycopy(tail.responses_, 0, answers, reply.responses_.length, tail.responses_.length);
+            merged.responses_ = answers;
+            merged.nsRecords_ = tail.nsRecords_;
+            merged.addRecords_ = tail.addRecords_;
+            return merged;
+        });
+    }
+
+    private void addAddress(ArrayList<InetSocketAddress> addresses, DNSRecord record) {
+        if ((record.recordType_ == TYPE_A && record.recordData_.length == 4)
+                || (record.recordType_ == TYPE_AAAA && record.recordData_.length == 16)) {
+            try {
+                addresses.add(new InetSocketAddress(InetAddress.getByAddress(record.recordData_), authorityPort_));
+            } catch (UnknownHostException e) {
+                // not an address after all
+            }
+        }
+    }
+
+    // whether name is zone or below it
+    private static boolean isSubdomain(String[] name, String[] zone) {
+        if (name.length < zone.length) {
+            return false;
+        }
+        int offset = name.length - zone.length;
+        for (int i = 0; i < zone.length; i++) {
+            if (!name[offset + i].equalsIgnoreCase(zone[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean sameName(String[] a, String[] b) {
+        return a.length == b.length && isSubdomain(a, b);
+    }
+
+    private static <T> CompletableFuture<T> failed(String message) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        result.completeExceptionally(new IOException(message));
+        return result;
+    }
+}
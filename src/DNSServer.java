@@ -1,94 +1,588 @@
 import java.net.*;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// server class:
+//  - the UDP listeners receive client packets and answer cache hits right away,
+//    with --sockets=N there are N of them sharing the port, see DNSUdpListener;
+//  - cache misses are sent upstream without blocking, see DNSUpstream,
+//    or resolved from the root down with --resolution=iterative, see DNSResolver;
+//  - with --peers, a group of servers shares its caches: a miss asks the
+//    server owning the question before the upstream, see DNSPeers;
+//  - the responses to those are built and sent by a pool of workers,
+//    with --workers=0 this is done on the upstream receiver thread instead;
+//  - names in the local zones and hosts files are answered from those first,
+//    before the cache, see DNSLocalZones;
+//  - UDP clients going over --rrl-rate are dropped or truncated, see DNSRateLimiter;
+//  - the same queries are also served over TCP, see DNSTcpServer, and UDP
+//    responses too big for the client are truncated so it retries over TCP
 
 public class DNSServer {
 
-    public static void main(String[] args) throws SocketException {
+    // zone cuts kept by the iterative resolver
+    private static final int MAX_ZONES = 10_000;
+
+    private final DNSConfig config_;
+    private final DNSUdpListener[] listeners_;
+    private final DNSCache cache_;
+    // the local zones and hosts files, null when there are none
+    private final DNSLocalZones local_;
+    private final DNSUpstream upstream_;
+    // the other servers sharing their caches, null when there are none
+    private final DNSPeers peers_;
+    // iterative resolution, null when forwarding to the upstreams
+    private final DNSResolver resolver_;
+    private final ExecutorService workers_;
+    private DNSMetricsServer metrics_;
+    // every thread reading queries (UDP listeners, TCP loop) reuses its own view
+    private final ThreadLocal<DNSWireMessage> wire_ = ThreadLocal.withInitial(DNSWireMessage::new);
+    // local answers are rendered here before handle() copies them out
+    private final ThreadLocal<ByteBuffer> localOut_ = ThreadLocal.withInitial(() -> ByteBuffer.allocate(65535));
+
+    public DNSServer(DNSConfig config) throws IOException {
+        config_ = config;
+        // open the client sockets, several only with SO_REUSEPORT
+        int sockets = Math.max(1, config.sockets_);
+        int bufferSize = Math.max(512, config.ednsSize_);
+        DNSQueryHandler udp = new DNSQueryHandler() {
+            @Override
+            public void handle(ByteBuffer query, Consumer<byte[]> respond) {
+                DNSServer.this.handle(query, true, respond);
+            }
 
-        // open client socket
-        DatagramSocket clientSkt = new DatagramSocket(8053);
-        // open google socket
-        DatagramSocket googleSkt = new DatagramSocket(53);
+            @Override
+            public boolean answer(ByteBuffer query, ByteBuffer out) {
+                return answerCached(query, out);
+            }
+        };
+        // one rate limiter for all the sockets, a client may land on any of them
+        DNSRateLimiter limiter = config.rrlRate_ > 0 ? new DNSRateLimiter(config.rrlRate_, config.rrlBurst_,
+                config.rrlAction_, config.rrlSlip_, config.rrlPrefix4_, config.rrlPrefix6_, config.rrlTable_) : null;
+        listeners_ = new DNSUdpListener[sockets];
+        for (int i = 0; i < sockets; i++) {
+            listeners_[i] = new DNSUdpListener(config.port_, sockets > 1, bufferSize, udp, limiter);
+        }
+        // one shared socket for all the upstream queries
+        boolean iterative = config.resolution_.equals("iterative");
+        String[] names = iterative ? new String[0] : config.upstream_.split(",");
+        DNSUpstreamServer[] servers = new DNSUpstreamServer[names.length];
+        for (int i = 0; i < names.length; i++) {
+            servers[i] = DNSUpstreamServer.parse(names[i].trim(), config.upstreamPort_, config.hedgePercentile_);
+        }
+        upstream_ = new DNSUpstream(servers, config.upstreamTimeout_, config.upstreamRetries_,
+                config.ednsSize_, config.hedgePercentile_ > 0);
+        if (iterative) {
+            String[] hints = config.rootHints_.split(",");
+            InetSocketAddress[] roots = new InetSocketAddress[hints.length];
+            for (int i = 0; i < hints.length; i++) {
+                roots[i] = DNSUpstreamServer.parseAddress(hints[i].trim(), config.authorityPort_);
+            }
+            resolver_ = new DNSResolver(upstream_, roots, config.authorityPort_, MAX_ZONES);
+        } else {
+            resolver_ = null;
+        }
+        // read the local data; a file that does not parse stops the server, like a bad option
+        if (config.zones_ != null || config.hosts_ != null) {
+            local_ = new DNSLocalZones(paths(config.zones_), paths(config.hosts_));
+            local_.load();
+            System.out.println("> " + local_.names() + " local names loaded");
+        } else {
+            local_ = null;
+        }
         // create the cache
-        DNSCache cache = new DNSCache();
-        // start listening
-        System.out.println("DNS server is running. Start listening on Port: 8053...");
-
-        while(true) {
-            // create packet
-            byte[] buffer = new byte[512];
-            DatagramPacket pkt = new DatagramPacket(buffer, buffer.length);
-            ArrayList<DNSRecord> responses = new ArrayList<>();
-            // try to receive packets...
-            try {
-                clientSkt.receive(pkt);
-                System.out.println("> [1] packet received.");
-                // decode the packet data
-                DNSMessage msg = DNSMessage.decodeMessage(buffer);
-                System.out.println("> [2] packet data decoded successfully.");
-                // get the requests
-                DNSQuestion[] requests = msg.requests_;
-                System.out.println("> [3] requests are received.");
-                // iterate all the requests 1 by 1
-                for (DNSQuestion request : requests) {
-                    System.out.println("> [4] request: " +
-                            DNSMessage.octetsToString(request.qName_));
-                    // if cache table contains the results
-                    if (cache.contains(request)) {
-                        System.out.println("> [5] answer is found in cache.");
-                        DNSRecord answer = cache.getRecord(request);
-                        responses.add(answer);
-                    }
-                    // if cache doesn't have the result, ask google then
-                    else {
-                        System.out.println("> [5] answer is not found in cache." +
-                                           "start requesting from Google.");
-                        InetAddress google = InetAddress.getByName("8.8.8.8");
-                        byte[] originalData = msg.originalData_;
-                        DatagramPacket requestPkt = new DatagramPacket(
-                                originalData, originalData.length, google, 53);
-                        googleSkt.send(requestPkt);
-                        System.out.println("> [6] request is sent to Google.");
-                        byte[] ggResponse = new byte[512];
-                        DatagramPacket ggPkt = new DatagramPacket(ggResponse,ggResponse.length);
-                        googleSkt.receive(ggPkt);
-                        System.out.println("> [7] get response from Google.");
-                        DNSMessage ggMsg = DNSMessage.decodeMessage(ggResponse);
-                        if (ggMsg.responses_.length != 0 && ggMsg.responses_[0] != null) {
-                            // add the response from Google to local cache
-                            cache.add(request, ggMsg.responses_[0]);
-                            responses.add(ggMsg.responses_[0]);
-                        }
-                        // handle the error: if the user request for illegal domain name
-                        else {
-                            System.out.println("> [!] Error: user requests for illegal domain name.");
-                        }
-                    }
+        cache_ = new DNSCache(config.cacheEntries_, config.cacheBytes_, config.cacheStore_.equals("offheap"));
+        cache_.startSweeper();
+        if (config.staleWindow_ > 0) {
+            cache_.setStaleWindow(config.staleWindow_);
+        }
+        if (config.prefetchFraction_ > 0) {
+            cache_.setRefresher(this::refresh, config.prefetchFraction_, config.prefetchHits_);
+        }
+        if (config.peers_ != null) {
+            String[] list = config.peers_.split(",");
+            InetSocketAddress[] peers = new InetSocketAddress[list.length];
+            InetSocketAddress self = DNSUpstreamServer.parseAddress(config.peerSelf_.trim(), config.peerPort_);
+            if (self.getPort() == config.port_) {
+                throw new IllegalArgumentException("bad option: --peer-self=" + config.peerSelf_
+                        + " (the DNS port, peers need one of their own)");
+            }
+            int selfIndex = -1;
+            for (int i = 0; i < list.length; i++) {
+                peers[i] = DNSUpstreamServer.parseAddress(list[i].trim(), config.peerPort_);
+                if (peers[i].equals(self)) {
+                    selfIndex = i;
                 }
-                // send back responses
-                DNSRecord[] responseArr = new DNSRecord[responses.size()];
-                for (int i = 0; i < responses.size(); i++){
-                    responseArr[i] = responses.get(i);
+            }
+            if (selfIndex < 0) {
+                throw new IllegalArgumentException("bad option: --peer-self=" + config.peerSelf_
+                        + " (not one of --peers)");
+            }
+            byte[] key = null;
+            if (config.peerKeyFile_ != null) {
+                key = Files.readString(Paths.get(config.peerKeyFile_)).trim().getBytes(StandardCharsets.UTF_8);
+                if (key.length == 0) {
+                    throw new IllegalArgumentException("bad option: --peer-key-file=" + config.peerKeyFile_
+                            + " (empty)");
                 }
-                DNSMessage response = DNSMessage.buildResponse(msg, responseArr);
-                byte[] responseBuffer = response.toBytes();
-                DatagramPacket responsePkt = new DatagramPacket(responseBuffer,
-                        responseBuffer.length, pkt.getAddress(), pkt.getPort());
-                clientSkt.send(responsePkt);
-                System.out.println("> [!] response is sent to client.");
-//                System.out.println("> " + msg.toString());
-//                System.out.println("> " + response.toString());
-                System.out.println("> [!] request successfully replied!");
-                System.out.println("------------------------------");
+            }
+            peers_ = new DNSPeers(peers, selfIndex, config.peerTimeout_, cache_, key);
+        } else {
+            peers_ = null;
+        }
+        workers_ = config.workers_ > 0 ? Executors.newFixedThreadPool(config.workers_) : null;
+    }
+
+    private static List<Path> paths(String files) {
+        List<Path> paths = new ArrayList<>();
+        if (files != null) {
+            for (String file : files.split(",")) {
+                paths.add(Paths.get(file.trim()));
+            }
+        }
+        return paths;
+    }
+
+    // load the snapshot if there is one, then save the cache periodically and on exit
+    private void startSnapshots() {
+        Path file = Paths.get(config_.snapshot_);
+        if (Files.exists(file)) {
+            try {
+                int loaded = DNSCacheSnapshot.load(cache_, file);
+                System.out.println("> " + loaded + " cache entries loaded from " + file);
+            } catch (IOException e) {
+                System.out.println("[!] Error: cannot load cache snapshot: " + e.getMessage());
+            }
+        }
+        Runnable save = () -> {
+            try {
+                DNSCacheSnapshot.write(cache_, file);
+            } catch (IOException | RuntimeException e) {
+                System.out.println("[!] Error: cannot write cache snapshot: " + e.getMessage());
+            }
+        };
+        ScheduledExecutorService saver = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "dns-cache-snapshot");
+            t.setDaemon(true);
+            return t;
+        });
+        saver.scheduleWithFixedDelay(save, config_.snapshotInterval_, config_.snapshotInterval_, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(save, "dns-cache-snapshot-exit"));
+    }
+
+    // the gauges and counters of the components, and the endpoint serving them
+    private void startMetrics() {
+        DNSMetrics.gauge("dns_cache_entries", "Entries in the cache.", cache_::size);
+        DNSMetrics.gauge("dns_cache_bytes", "Estimated bytes used by the cache.", cache_::bytes);
+        DNSMetrics.counter("dns_cache_expired_total", "Cache entries that expired.", cache_::expired);
+        DNSMetrics.counter("dns_cache_evicted_total", "Cache entries evicted to stay within budget.",
+                cache_::evicted);
+        if (local_ != null) {
+            DNSMetrics.gauge("dns_local_names", "Names with records in the local zones and hosts files.",
+                    local_::names);
+        }
+        if (peers_ != null) {
+            DNSMetrics.counter("dns_peer_hits_total", "Cache misses answered by the peer owning the question.",
+                    peers_::hits);
+            DNSMetrics.counter("dns_peer_misses_total", "Cache misses the owning peer could not answer.",
+                    peers_::misses);
+            DNSMetrics.counter("dns_peer_timeouts_total", "Peer lookups that got no reply in time.",
+                    peers_::timeouts);
+            DNSMetrics.counter("dns_peer_served_total", "Peer lookups answered from this cache.", peers_::served);
+            DNSMetrics.counter("dns_peer_pushed_total", "Upstream answers given to the peer owning them.",
+                    peers_::pushed);
+            DNSMetrics.counter("dns_peer_rejected_total", "Peer messages dropped for a missing or bad signature.",
+                    peers_::rejected);
+        }
+        DNSMetrics.gauge("dns_upstream_in_flight", "Upstream queries waiting for a reply.", upstream_::inFlight);
+        DNSMetrics.counter("dns_upstream_coalesced_total", "Upstream queries saved by sharing one in flight.",
+                upstream_::coalesced);
+        DNSMetrics.counter("dns_upstream_hedged_total", "Hedged upstream queries sent.", upstream_::hedged);
+        try {
+            metrics_ = new DNSMetricsServer(config_.metricsPort_);
+            metrics_.start();
+        } catch (IOException e) {
+            System.out.println("[!] Error: cannot serve metrics: " + e.getMessage());
+        }
+    }
+
+    // serve TCP clients on the same port, on a thread of their own
+    private void startTcp() {
+        try {
+            DNSTcpServer tcp = new DNSTcpServer(config_.port_,
+                    (query, respond) -> handle(query, false, respond), config_.tcpIdleTimeout_,
+                    config_.tcpMaxConnections_, config_.tcpMaxPipelined_);
+            DNSMetrics.gauge("dns_tcp_connections", "Open TCP connections.", tcp::connections);
+            DNSMetrics.counter("dns_tcp_refused_total", "TCP connections closed on arrival, over the limit.",
+                    tcp::refused);
+            Thread t = new Thread(tcp, "dns-tcp");
+            t.setDaemon(true);
+            t.start();
+        } catch (IOException e) {
+            System.out.println("[!] Error: cannot listen on TCP: " + e.getMessage());
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        DNSConfig config = DNSConfig.parse(args);
+        new DNSServer(config).run();
+    }
+
+    public void run() {
+        // start listening
+        System.out.println("DNS server is running. Start listening on Port: " + config_.port_ + "...");
+        System.out.println("> " + config_);
+        if (config_.snapshot_ != null) {
+            startSnapshots();
+        }
+        if (config_.tcp_) {
+            startTcp();
+        }
+        if (local_ != null && config_.localReload_ > 0) {
+            local_.startReloader(config_.localReload_);
+        }
+        DNSLog.setRate(config_.logRate_);
+        if (config_.metricsPort_ > 0) {
+            startMetrics();
+        }
+
+        // every extra socket gets a loop of its own, the first one runs here
+        for (int i = 1; i < listeners_.length; i++) {
+            Thread t = new Thread(listeners_[i], "dns-udp-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        listeners_[0].run();
+        // after listening, close the sockets and stop the workers
+        for (DNSUdpListener listener : listeners_) {
+            try {
+                listener.close();
             } catch (IOException e) {
                 System.out.println("[!] Error occurred: " + e.getMessage());
-                break;
             }
         }
-        // after listening, close the sockets
-        clientSkt.close();
-        googleSkt.close();
+        upstream_.close();
+        if (peers_ != null) {
+            peers_.close();
+        }
+        if (workers_ != null) {
+            workers_.shutdown();
+        }
+        if (metrics_ != null) {
+            metrics_.stop();
+        }
+    }
+
+    // the UDP fast path: a single local or cached question rendered straight into out.
+    // false for anything else, or if it does not fit the client; handle() then takes it.
+    public boolean answerCached(ByteBuffer query, ByteBuffer out) {
+        try {
+            long start = System.nanoTime();
+            DNSWireMessage wire = wire_.get().wrap(query);
+            if (wire.qr() != 0 || wire.qdCount() != 1) {
+                return false;
+            }
+            int clientPayloadSize = wire.ednsPayloadSize();
+            if (local_ != null
+                    && local_.answer(wire, out, ednsSize(clientPayloadSize), udpLimit(clientPayloadSize))) {
+                DNSMetrics.QUERIES.increment();
+                DNSMetrics.LOCAL_ANSWERS.increment();
+                DNSMetrics.ENCODE.recordSince(start);
+                return true;
+            }
+            // looked up as it is in the packet, no DNSQuestion is built for a hit
+            int question = wire.questionOffset(0);
+            long decoded = System.nanoTime();
+            DNSWireResponse cached = cache_.getResponse(wire, question);
+            if (cached == null) {
+                return false;
+            }
+            long found = System.nanoTime();
+            if (!cached.renderTo(out, wire.id(), ednsSize(clientPayloadSize), udpLimit(clientPayloadSize))) {
+                return false;
+            }
+            DNSMetrics.QUERIES.increment();
+            DNSMetrics.CACHE_HITS.increment();
+            DNSMetrics.DECODE.record((decoded - start) / 1000);
+            DNSMetrics.CACHE_LOOKUP.record((found - decoded) / 1000);
+            DNSMetrics.ENCODE.recordSince(found);
+            return true;
+        } catch (RuntimeException e) {
+            // malformed, handle() will say so
+            return false;
+        }
+    }
 
+    // answer one query, whatever transport it came from: right away if every question
+    // is cached, otherwise send the missing ones upstream and answer once they are back.
+    // the response is handed to respond, which may happen on another thread, or null
+    // if there is none. UDP responses that don't fit the client's limit are truncated (TC bit set).
+    public void handle(ByteBuffer query, boolean udp, Consumer<byte[]> respond) {
+        try {
+            DNSMetrics.QUERIES.increment();
+            long start = System.nanoTime();
+            // look at the packet in place, and only decode the questions of real queries
+            DNSWireMessage wire = wire_.get().wrap(query);
+            if (wire.qr() != 0) {
+                respond.accept(null);
+                return;
+            }
+            int clientPayloadSize = wire.ednsPayloadSize();
+            int ednsSize = ednsSize(clientPayloadSize);
+            int limit = udp ? udpLimit(clientPayloadSize) : 65535;
+            // a local name: answered from the local data, never cached or sent upstream
+            if (local_ != null) {
+                ByteBuffer out = localOut_.get();
+                out.clear();
+                if (local_.answer(wire, out, ednsSize, limit)) {
+                    DNSMetrics.LOCAL_ANSWERS.increment();
+                    DNSMetrics.ENCODE.recordSince(start);
+                    respond.accept(Arrays.copyOf(out.array(), out.position()));
+                    return;
+                }
+            }
+            // the common case, one cached question: send the pre-encoded response
+            if (wire.qdCount() == 1) {
+                // looked up as it is in the packet, no DNSQuestion is built for a hit
+                int question = wire.questionOffset(0);
+                long decoded = System.nanoTime();
+                DNSWireResponse cached = cache_.getResponse(wire, question);
+                if (cached != null) {
+                    long found = System.nanoTime();
+                    byte[] response = fit(cached.render(wire.id(), ednsSize), limit, ednsSize);
+                    DNSMetrics.CACHE_HITS.increment();
+                    DNSMetrics.DECODE.record((decoded - start) / 1000);
+                    DNSMetrics.CACHE_LOOKUP.record((found - decoded) / 1000);
+                    DNSMetrics.ENCODE.recordSince(found);
+                    respond.accept(response);
+                    return;
+                }
+            }
+            DNSMessage msg = DNSMessage.decodeQuestions(wire);
+            long decoded = System.nanoTime();
+            DNSMetrics.DECODE.record((decoded - start) / 1000);
+            DNSCacheEntry[] cached = lookupAll(msg.requests_);
+            if (cached != null) {
+                long found = System.nanoTime();
+                DNSMetrics.CACHE_HITS.add(cached.length);
+                DNSMetrics.CACHE_LOOKUP.record((found - decoded) / 1000);
+                byte[] response = fit(encode(msg, cached, ednsSize), limit, ednsSize);
+                DNSMetrics.ENCODE.recordSince(found);
+                respond.accept(response);
+                return;
+            }
+            DNSMetrics.CACHE_LOOKUP.recordSince(decoded);
+            // the upstream replies arrive on its receiver thread,
+            // building and sending the response is done by the workers
+            resolve(msg).handleAsync((entries, error) -> {
+                byte[] response = null;
+                try {
+                    if (error != null) {
+                        DNSLog.error(error.getMessage());
+                    } else {
+                        long encoding = System.nanoTime();
+                        response = fit(encode(msg, entries, ednsSize), limit, ednsSize);
+                        DNSMetrics.ENCODE.recordSince(encoding);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    DNSLog.error(e.getMessage());
+                }
+                respond.accept(response);
+                return null;
+            }, workers()).exceptionally(error -> {
+                // the workers would not take it
+                DNSLog.error("worker pool is shut down, request dropped.");
+                respond.accept(null);
+                return null;
+            });
+        } catch (IOException | RuntimeException e) {
+            DNSLog.error(e.getMessage());
+            respond.accept(null);
+        }
+    }
+
+    // where the work following an upstream reply runs: the workers, or with
+    // --workers=0 the thread that completed it
+    private Executor workers() {
+        return workers_ != null ? workers_ : Runnable::run;
+    }
+
+    // the biggest UDP response the client can take: 512 without EDNS0,
+    // otherwise what it advertised, but no more than our own buffers
+    private int udpLimit(int clientPayloadSize) {
+        if (clientPayloadSize <= 0 || config_.ednsSize_ <= 0) {
+            return 512;
+        }
+        return Math.min(clientPayloadSize, Math.max(512, config_.ednsSize_));
+    }
+
+    // the response itself if it fits the limit, otherwise its truncated version
+    private static byte[] fit(byte[] response, int limit, int ednsSize) {
+        if (response.length <= limit) {
+            return response;
+        }
+        DNSMetrics.TRUNCATED.increment();
+        return DNSWireResponse.truncate(response, ednsSize);
+    }
+
+    // return the cached entries of all the requests, or null if any of them is missing
+    private DNSCacheEntry[] lookupAll(DNSQuestion[] requests) {
+        DNSCacheEntry[] entries = new DNSCacheEntry[requests.length];
+        for (int i = 0; i < requests.length; i++) {
+            entries[i] = cache_.getEntry(requests[i]);
+            if (entries[i] == null) {
+                return null;
+            }
+        }
+        return entries;
+    }
+
+    // resolve every request, asking the upstream for the ones that are not cached.
+    // the future completes once every upstream query is answered or has failed.
+    private CompletableFuture<DNSCacheEntry[]> resolve(DNSMessage msg) {
+        DNSQuestion[] requests = msg.requests_;
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        CompletableFuture<DNSCacheEntry>[] entries = new CompletableFuture[requests.length];
+        for (int i = 0; i < requests.length; i++) {
+            DNSCacheEntry cached = cache_.getEntry(requests[i]);
+            if (cached != null) {
+                DNSMetrics.CACHE_HITS.increment();
+                entries[i] = CompletableFuture.completedFuture(cached);
+            } else {
+                DNSMetrics.CACHE_MISSES.increment();
+                DNSCacheEntry stale = config_.staleWindow_ > 0 ? cache_.getStale(requests[i]) : null;
+                entries[i] = stale != null ? askOrServeStale(requests[i], stale) : ask(requests[i]);
+            }
+        }
+        return CompletableFuture.allOf(entries).thenApply(done -> {
+            DNSCacheEntry[] result = new DNSCacheEntry[entries.length];
+            for (int i = 0; i < entries.length; i++) {
+                result[i] = entries[i].join();
+            }
+            return result;
+        });
+    }
+
+    // a cache miss: the peer owning the request may have it cached, otherwise ask the upstream
+    private CompletableFuture<DNSCacheEntry> ask(DNSQuestion request) {
+        if (peers_ == null || peers_.isMine(request)) {
+            return askGoogle(request);
+        }
+        return peers_.get(request).thenCompose(entry -> {
+            if (entry == null) {
+                return askGoogle(request);
+            }
+            cache_.add(request, entry);
+            return CompletableFuture.completedFuture(entry);
+        });
+    }
+
+    // ask the upstream (or resolve iteratively) for one request; a failure becomes a SERVFAIL entry.
+    // the reply arrives on the upstream's receiver thread, the entry is built, cached
+    // and pushed to the peers by the workers, so the next replies don't wait for that
+    private CompletableFuture<DNSCacheEntry> askGoogle(DNSQuestion request) {
+        CompletableFuture<DNSMessage> reply = resolver_ != null ? resolver_.resolve(request) : upstream_.query(request);
+        return reply.handleAsync((ggMsg, error) -> {
+            if (error != null) {
+                DNSLog.error(error.getMessage());
+                DNSMetrics.SERVFAIL.increment();
+                return DNSCacheEntry.serverFailure(request);
+            }
+            // add the whole response from Google to local cache,
+            // NXDOMAIN and NODATA included (if it carries an SOA)
+            DNSCacheEntry entry = DNSCacheEntry.fromResponse(request, ggMsg);
+            cache_.add(request, entry);
+            if (peers_ != null && config_.peerPush_) {
+                peers_.push(request, entry);
+            }
+            return entry;
+        }, workers());
+    }
+
+    // ask the upstream, but settle for the stale entry (RFC 8767) if the answer takes
+    // longer than the client should wait, or is a failure. the upstream query goes on,
+    // and its answer replaces the stale one in the cache when it arrives.
+    private CompletableFuture<DNSCacheEntry> askOrServeStale(DNSQuestion request, DNSCacheEntry stale) {
+        CompletableFuture<DNSCacheEntry> result = new CompletableFuture<>();
+        ask(request).thenAccept(entry -> {
+            if (entry.rCode_ == DNSCacheEntry.NOERROR || entry.rCode_ == DNSCacheEntry.NXDOMAIN) {
+                result.complete(entry);
+            } else if (!result.isDone()) {
+                result.complete(serveStale(request, stale));
+            }
+        });
+        CompletableFuture.delayedExecutor(config_.staleTimeout_, TimeUnit.MILLISECONDS).execute(() -> {
+            if (!result.isDone()) {
+                result.complete(serveStale(request, stale));
+            }
+        });
+        return result;
+    }
+
+    // the stale entry with short TTLs. it is cached for that long too, so meanwhile
+    // the next queries get it right away and don't wait on the upstream again
+    // (the failure recheck timer of RFC 8767)
+    private DNSCacheEntry serveStale(DNSQuestion request, DNSCacheEntry stale) {
+        long left = (stale.staleUntil_ - DNSClock.now()) / 1000;
+        DNSCacheEntry entry = DNSCacheEntry.stale(request, stale, (int) Math.max(1, Math.min(config_.staleTtl_, left)));
+        DNSMetrics.STALE_ANSWERS.increment();
+        // unless a fresh answer got there first
+        cache_.addIfAbsent(request, entry);
+        return entry;
+    }
+
+    // the payload size to put in our OPT record for a client that sent the given one:
+    // 0 (no OPT) if the client did not use EDNS0 or it is turned off
+    private int ednsSize(int clientPayloadSize) {
+        return clientPayloadSize > 0 && config_.ednsSize_ > 0 ? config_.ednsSize_ : 0;
+    }
+
+    // refresh-ahead of a popular cache entry, nobody waits for the result. the cache
+    // calls this from a lookup, on a UDP listener loop, so the upstream query is sent
+    // from the workers (or the common pool without them)
+    private CompletableFuture<DNSCacheEntry> refresh(DNSQuestion request) {
+        Executor executor = workers_ != null ? workers_ : ForkJoinPool.commonPool();
+        return CompletableFuture.supplyAsync(() -> askGoogle(request), executor).thenCompose(entry -> entry);
+    }
+
+    // encode the response to the query from the cache entries of its questions
+    private byte[] encode(DNSMessage msg, DNSCacheEntry[] entries, int ednsSize) throws IOException {
+        if (entries.length == 1 && entries[0].response_ != null) {
+            return entries[0].response_.render(msg.header_.id_, ednsSize);
+        }
+        // several questions: put all the sections together, the first error wins
+        ArrayList<DNSRecord> answers = new ArrayList<>();
+        ArrayList<DNSRecord> authority = new ArrayList<>();
+        ArrayList<DNSRecord> additional = new ArrayList<>();
+        int rCode = DNSCacheEntry.NOERROR;
+        for (DNSCacheEntry entry : entries) {
+            answers.addAll(Arrays.asList(entry.answers_));
+            authority.addAll(Arrays.asList(entry.authority_));
+            additional.addAll(Arrays.asList(entry.additional_));
+            if (rCode == DNSCacheEntry.NOERROR) {
+                rCode = entry.rCode_;
+            }
+        }
+        if (ednsSize > 0) {
+            additional.add(DNSRecord.buildOpt(ednsSize));
+        }
+        DNSMessage response = DNSMessage.buildResponse(msg, answers.toArray(new DNSRecord[0]),
+                authority.toArray(new DNSRecord[0]), additional.toArray(new DNSRecord[0]), rCode);
+        return response.toBytes();
     }
-}
\ No newline at end of file
+}
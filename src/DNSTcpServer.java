@@ -0,0 +1,272 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+// TCP server class:
+//  - DNS over TCP (RFC 7766) on one thread with a Selector: every message
+//    is prefixed by its 2-byte length;
+//  - a client may send several queries without waiting (pipelining), each one
+//    is handed to the handler right away, and the answers are written back in
+//    whatever order they are ready;
+//  - a connection costs its buffers, not a thread. idle connections are closed,
+//    looked for once a second;
+//  - limits (RFC 7766 6.2.1 and 6.2.3): past maxConnections new connections are
+//    closed right away, and a connection with maxPipelined queries unanswered
+//    is not read from until one is answered, so the kernel pushes back on it.
+
+public class DNSTcpServer implements Runnable {
+
+    private static final int READ_BUFFER_SIZE = 4096;
+    private static final int MAX_MESSAGE = 65535;
+    // queued for a query that got no response: nothing to write, one less pending
+    private static final ByteBuffer NO_RESPONSE = ByteBuffer.allocate(0);
+    // how often to look for idle connections (ms)
+    private static final int IDLE_CHECK = 1000;
+
+    private class Connection {
+        final SocketChannel channel_;
+        final SelectionKey key_;
+        ByteBuffer in_ = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        // responses ready to be written, filled by whichever thread answered
+        final ConcurrentLinkedQueue<ByteBuffer> out_ = new ConcurrentLinkedQueue<>();
+        ByteBuffer writing_;
+        // queries handed out and not answered yet
+        int pending_;
+        // not read from until fewer queries are pending
+        boolean paused_;
+        // the client is done sending
+        boolean eof_;
+        long lastActive_ = DNSClock.now();
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            channel_ = channel;
+            key_ = key;
+        }
+    }
+
+    private final ServerSocketChannel server_;
+    private final Selector selector_;
+    private final DNSQueryHandler handler_;
+    private final int idleTimeout_;
+    private final int maxConnections_;
+    private final int maxPipelined_;
+    private int connections_;
+    private long lastIdleCheck_ = DNSClock.now();
+    private final LongAdder refused_ = new LongAdder();
+    // connections that got a response since the last select, their key needs OP_WRITE
+    private final ConcurrentLinkedQueue<Connection> ready_ = new ConcurrentLinkedQueue<>();
+
+    public DNSTcpServer(int port, DNSQueryHandler handler, int idleTimeout, int maxConnections,
+                        int maxPipelined) throws IOException {
+        handler_ = handler;
+        idleTimeout_ = idleTimeout;
+        maxConnections_ = maxConnections;
+        maxPipelined_ = Math.max(1, maxPipelined);
+        selector_ = Selector.open();
+        server_ = ServerSocketChannel.open();
+        server_.bind(new InetSocketAddress(port));
+        server_.configureBlocking(false);
+        server_.register(selector_, SelectionKey.OP_ACCEPT);
+    }
+
+    @Override
+    public void run() {
+        while (server_.isOpen()) {
+            try {
+                // wake up in time for the next look for idle connections
+                selector_.select(Math.max(1, lastIdleCheck_ + IDLE_CHECK - DNSClock.now()));
+                Connection conn;
+                while ((conn = ready_.poll()) != null) {
+                    if (conn.key_.isValid()) {
+                        conn.key_.interestOps(conn.key_.interestOps() | SelectionKey.OP_WRITE);
+                    }
+                }
+                Iterator<SelectionKey> keys = selector_.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection c = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            read(c);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(c);
+                        }
+                    } catch (IOException e) {
+                        close(c);
+                    }
+                }
+                if (DNSClock.now() - lastIdleCheck_ >= IDLE_CHECK) {
+                    closeIdle();
+                }
+            } catch (IOException e) {
+                DNSLog.error("TCP listener: " + e.getMessage());
+            }
+        }
+    }
+
+    // number of open connections
+    public int connections() {
+        return Math.max(0, selector_.keys().size() - 1);
+    }
+
+    // connections closed on arrival, over maxConnections
+    public long refused() {
+        return refused_.sum();
+    }
+
+    public void close() throws IOException {
+        server_.close();
+        selector_.close();
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = server_.accept()) != null) {
+            if (connections_ >= maxConnections_) {
+                refused_.increment();
+                channel.close();
+                continue;
+            }
+            connections_++;
+            channel.configureBlocking(false);
+            SelectionKey key = channel.register(selector_, SelectionKey.OP_READ);
+            key.attach(new Connection(channel, key));
+        }
+    }
+
+    private void read(Connection c) throws IOException {
+        int n = c.channel_.read(c.in_);
+        if (n < 0) {
+            // the client is done sending; close once everything it asked is answered
+            c.eof_ = true;
+            c.key_.interestOps(c.key_.interestOps() & ~SelectionKey.OP_READ);
+            if (c.pending_ == 0 && c.out_.isEmpty() && c.writing_ == null) {
+                close(c);
+            }
+            return;
+        }
+        c.lastActive_ = DNSClock.now();
+        dispatch(c);
+    }
+
+    // hand out every complete message in the buffer, up to maxPipelined_ pending
+    private void dispatch(Connection c) {
+        c.in_.flip();
+        while (c.in_.remaining() >= 2) {
+            if (c.pending_ >= maxPipelined_) {
+                c.paused_ = true;
+                c.key_.interestOps(c.key_.interestOps() & ~SelectionKey.OP_READ);
+                break;
+            }
+            int length = c.in_.getShort(c.in_.position()) & 0xffff;
+            if (c.in_.remaining() < 2 + length) {
+                if (2 + length > c.in_.capacity()) {
+                    // a message bigger than the buffer: grow it just for this connection
+                    ByteBuffer bigger = ByteBuffer.allocate(2 + MAX_MESSAGE);
+                    bigger.put(c.in_);
+                    bigger.flip();
+                    c.in_ = bigger;
+                }
+                break;
+            }
+            c.in_.position(c.in_.position() + 2);
+            byte[] query = new byte[length];
+            c.in_.get(query);
+            c.pending_++;
+            handler_.handle(ByteBuffer.wrap(query), response -> queue(c, response));
+        }
+        c.in_.compact();
+    }
+
+    // called from any thread once a response is ready, null for none
+    private void queue(Connection c, byte[] response) {
+        if (response == null) {
+            c.out_.add(NO_RESPONSE);
+        } else {
+            ByteBuffer framed = ByteBuffer.allocate(2 + response.length);
+            framed.putShort((short) response.length);
+            framed.put(response);
+            framed.flip();
+            c.out_.add(framed);
+        }
+        ready_.add(c);
+        selector_.wakeup();
+    }
+
+    private void write(Connection c) throws IOException {
+        while (true) {
+            if (c.writing_ == null) {
+                c.writing_ = c.out_.poll();
+                if (c.writing_ == null) {
+                    break;
+                }
+            }
+            if (c.writing_.hasRemaining()) {
+                long start = System.nanoTime();
+                c.channel_.write(c.writing_);
+                DNSMetrics.SEND.recordSince(start);
+                if (c.writing_.hasRemaining()) {
+                    // the socket is full, carry on when it is writable again
+                    return;
+                }
+            }
+            c.writing_ = null;
+            c.pending_--;
+            c.lastActive_ = DNSClock.now();
+            if (c.paused_ && c.pending_ < maxPipelined_) {
+                // room again: the queries already read first, then the socket
+                c.paused_ = false;
+                c.key_.interestOps(c.key_.interestOps() | SelectionKey.OP_READ);
+                dispatch(c);
+            }
+        }
+        c.key_.interestOps(c.key_.interestOps() & ~SelectionKey.OP_WRITE);
+        if (c.eof_ && c.pending_ == 0) {
+            close(c);
+        }
+    }
+
+    private void closeIdle() {
+        long now = DNSClock.now();
+        lastIdleCheck_ = now;
+        // a cancelled key leaves the set at the next select, closing here is safe
+        for (SelectionKey key : selector_.keys()) {
+            if (key.attachment() instanceof Connection) {
+                Connection c = (Connection) key.attachment();
+                // a query that got no answer in all this time is not going to get one
+                if (key.isValid() && now - c.lastActive_ > idleTimeout_) {
+                    close(c);
+                }
+            }
+        }
+    }
+
+    private void close(Connection c) {
+        if (!c.key_.isValid()) {
+            return;
+        }
+        connections_--;
+        c.key_.cancel();
+        try {
+            c.channel_.close();
+        } catch (IOException e) {
+            // nothing left to do with it
+        }
+    }
+}
@@ -0,0 +1,112 @@
+import java.util.ArrayList;
+import java.util.function.Consumer;
+
+// timer wheel class:
+//  - a hierarchical timing wheel: 4 levels of 64 slots, level 0 has one slot
+//    per second, every level above is 64 times coarser (64 s, ~68 min, ~3 days);
+//  - schedule() drops an item into the slot of its deadline, advance() walks
+//    the level 0 slots up to now and hands out everything that is due, and
+//    moves items down from the coarser levels as their slot comes up;
+//  - both are O(1) per item, however many items there are.
+// cancelling is left to the caller: an item that is no longer wanted simply
+// gets ignored when it comes out. not thread-safe, DNSCache uses it under its lock.
+
+public class DNSTimerWheel<T> {
+
+    private static final int LEVELS = 4;
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final long TICK_MS = 1000;
+
+    private static class Timer<T> {
+        final T item_;
+        final long tick_;
+
+        Timer(T item, long tick) {
+            item_ = item;
+            tick_ = tick;
+        }
+    }
+
+    private final ArrayList<ArrayList<Timer<T>>> slots_ = new ArrayList<>();
+    // the last tick that advance() has handled
+    private long currentTick_;
+    private int size_;
+
+    public DNSTimerWheel(long now) {
+        for (int i = 0; i < LEVELS * SLOTS; i++) {
+            slots_.add(new ArrayList<>());
+        }
+        currentTick_ = now / TICK_MS;
+    }
+
+    // number of scheduled items
+    public int size() {
+        return size_;
+    }
+
+    // hand the item to advance() once the deadline (DNSClock millis) has passed
+    public void schedule(T item, long deadline) {
+        // round up, so an item never comes out before its deadline
+        long tick = Math.max(currentTick_ + 1, (deadline + TICK_MS - 1) / TICK_MS);
+        place(new Timer<>(item, tick));
+        size_++;
+    }
+
+    // hand every item that is due at now to the consumer
+    public void advance(long now, Consumer<T> expired) {
+        long target = now / TICK_MS;
+        while (currentTick_ < target) {
+            long tick = ++currentTick_;
+            // at every wrap of a level, pour the next slot of the level above into the lower ones
+            for (int level = 1; level < LEVELS; level++) {
+                if ((tick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+                    break;
+                }
+                cascade(level, tick);
+            }
+            ArrayList<Timer<T>> slot = slots_.get((int) (tick & (SLOTS - 1)));
+            if (slot.isEmpty()) {
+                continue;
+            }
+            ArrayList<Timer<T>> due = new ArrayList<>(slot);
+            slot.clear();
+            for (Timer<T> timer : due) {
+                if (timer.tick_ <= tick) {
+                    size_--;
+                    expired.accept(timer.item_);
+                } else {
+                    // beyond the last level's span, it went around once more
+                    place(timer);
+                }
+            }
+        }
+    }
+
+    private void cascade(int level, long tick) {
+        ArrayList<Timer<T>> slot = slots_.get(level * SLOTS + (int) ((tick >> (SLOT_BITS * level)) & (SLOTS - 1)));
+        if (slot.isEmpty()) {
+            return;
+        }
+        ArrayList<Timer<T>> moved = new ArrayList<>(slot);
+        slot.clear();
+        for (Timer<T> timer : moved) {
+            place(timer);
+        }
+    }
+
+    private void place(Timer<T> timer) {
+        long delay = timer.tick_ - currentTick_;
+        int level = 0;
+        while (level < LEVELS - 1 && delay >= (1L << (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+        long tick = timer.tick_;
+        if (level == LEVELS - 1 && delay >= (1L << (SLOT_BITS * LEVELS))) {
+            // too far away for the wheel: park it in the furthest slot, it is placed again from there
+            tick = currentTick_ + (1L << (SLOT_BITS * LEVELS)) - 1;
+        }
+        int slot = (int) ((tick >> (SLOT_BITS * level)) & (SLOTS - 1));
+        slots_.get(level * SLOTS + slot).add(timer);
+    }
+}
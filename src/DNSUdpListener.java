@@ -0,0 +1,217 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// UDP listener class:
+//  - one non-blocking DatagramChannel on the server port and the loop serving it;
+//  - with --sockets=N the server opens N of them on the same port with
+//    SO_REUSEPORT, each on a thread of its own: the kernel spreads the
+//    clients over the sockets, so there is no single receive queue, and the
+//    loops share nothing but the cache (the handler's state);
+//  - every wakeup drains up to BATCH ready packets, then sends all the
+//    answers in one go: no blocking receive/send per packet;
+//  - packets are read into a direct buffer and handed to the handler as is,
+//    cache hits are looked up from the packet's bytes and rendered straight
+//    into pooled direct buffers: with the heap cache a hit allocates no
+//    question, no array and no buffer (the off-heap cache copies the response
+//    out of its segment, and the channel makes a sender address when the
+//    client is not the previous one);
+//  - with a DNSRateLimiter, clients over their rate are dropped or sent a
+//    truncated answer before anything else is done with their query.
+// answers built later by other threads (cache misses) are queued, and the
+// loop is woken up to send them.
+
+public class DNSUdpListener implements Runnable {
+
+    // packets received per wakeup before the answers are sent
+    private static final int BATCH = 64;
+    // answers waiting for room in the socket, past this they are dropped
+    private static final int MAX_QUEUED = 4096;
+    // send buffers kept in the pool
+    private static final int POOL_SIZE = 256;
+
+    private static class Late {
+        final byte[] response_;
+        final SocketAddress client_;
+
+        Late(byte[] response, SocketAddress client) {
+            response_ = response;
+            client_ = client;
+        }
+    }
+
+    private final DatagramChannel channel_;
+    private final Selector selector_;
+    private final SelectionKey key_;
+    private final DNSQueryHandler handler_;
+    // null when rate limiting is off
+    private final DNSRateLimiter limiter_;
+    private final DNSWireMessage wire_ = new DNSWireMessage();
+    private final DNSBufferPool pool_;
+    // the packet being read, handlers are done with it once they return
+    private final ByteBuffer in_;
+    // answers to send, in order, with their clients; only the loop touches these
+    private final ArrayDeque<ByteBuffer> out_ = new ArrayDeque<>();
+    private final ArrayDeque<SocketAddress> outClients_ = new ArrayDeque<>();
+    // answers from other threads, and whether the loop has been woken up for them
+    private final ConcurrentLinkedQueue<Late> late_ = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeup_ = new AtomicBoolean();
+    private volatile Thread loop_;
+
+    public DNSUdpListener(int port, boolean reusePort, int bufferSize, DNSQueryHandler handler,
+                          DNSRateLimiter limiter) throws IOException {
+        handler_ = handler;
+        limiter_ = limiter;
+        pool_ = new DNSBufferPool(bufferSize, POOL_SIZE);
+        in_ = ByteBuffer.allocateDirect(bufferSize);
+        channel_ = DatagramChannel.open();
+        if (reusePort) {
+            if (!channel_.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                channel_.close();
+                throw new IOException("SO_REUSEPORT is not supported on this platform");
+            }
+            channel_.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        channel_.bind(new InetSocketAddress(port));
+        channel_.configureBlocking(false);
+        selector_ = Selector.open();
+        key_ = channel_.register(selector_, SelectionKey.OP_READ);
+    }
+
+    @Override
+    public void run() {
+        loop_ = Thread.currentThread();
+        while (channel_.isOpen()) {
+            try {
+                selector_.select();
+                selector_.selectedKeys().clear();
+                wakeup_.set(false);
+                for (int i = 0; i < BATCH; i++) {
+                    in_.clear();
+                    SocketAddress client = channel_.receive(in_);
+                    if (client == null) {
+                        break;
+                    }
+                    in_.flip();
+                    answer(client);
+                }
+                Late late;
+                while ((late = late_.poll()) != null) {
+                    enqueue(late.response_, late.client_);
+                }
+                flush();
+            } catch (ClosedChannelException | ClosedSelectorException e) {
+                break;
+            } catch (IOException e) {
+                DNSLog.error(e.getMessage());
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        channel_.close();
+        selector_.close();
+    }
+
+    // a cache hit goes straight into a send buffer, anything else through handle()
+    private void answer(SocketAddress client) {
+        if (out_.size() >= MAX_QUEUED) {
+            // the socket can't keep up, let the client ask again
+            DNSMetrics.DROPPED.increment();
+            return;
+        }
+        int action = limiter_ != null ? limiter_.check(client) : DNSRateLimiter.ALLOW;
+        if (action == DNSRateLimiter.DROP) {
+            return;
+        }
+        ByteBuffer out = pool_.acquire();
+        if (action == DNSRateLimiter.TRUNCATE) {
+            boolean truncated;
+            try {
+                truncated = DNSWireResponse.truncateQuery(wire_.wrap(in_), out);
+            } catch (RuntimeException e) {
+                // malformed, not worth an answer
+                truncated = false;
+            }
+            if (truncated) {
+                out.flip();
+                out_.add(out);
+                outClients_.add(client);
+            } else {
+                pool_.release(out);
+            }
+            return;
+        }
+        if (handler_.answer(in_, out)) {
+            out.flip();
+            out_.add(out);
+            outClients_.add(client);
+            return;
+        }
+        pool_.release(out);
+        handler_.handle(in_, response -> respond(response, client));
+    }
+
+    // called from any thread once a response is ready, null for none
+    private void respond(byte[] response, SocketAddress client) {
+        if (response == null) {
+            return;
+        }
+        if (Thread.currentThread() == loop_) {
+            enqueue(response, client);
+            return;
+        }
+        late_.add(new Late(response, client));
+        if (wakeup_.compareAndSet(false, true)) {
+            selector_.wakeup();
+        }
+    }
+
+    private void enqueue(byte[] response, SocketAddress client) {
+        if (out_.size() >= MAX_QUEUED) {
+            DNSMetrics.DROPPED.increment();
+            return;
+        }
+        ByteBuffer out = response.length <= pool_.bufferSize() ? pool_.acquire() : ByteBuffer.allocate(response.length);
+        out.put(response).flip();
+        out_.add(out);
+        outClients_.add(client);
+    }
+
+    // send what is queued until the socket is full; then wait for it to be writable
+    private void flush() {
+        while (!out_.isEmpty()) {
+            ByteBuffer out = out_.peek();
+            try {
+                long start = System.nanoTime();
+                int sent = channel_.send(out, outClients_.peek());
+                DNSMetrics.SEND.recordSince(start);
+                if (sent == 0) {
+                    setInterest(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+            } catch (IOException e) {
+                DNSLog.error(e.getMessage());
+            }
+            pool_.release(out_.poll());
+            outClients_.poll();
+        }
+        setInterest(SelectionKey.OP_READ);
+    }
+
+    private void setInterest(int ops) {
+        if (key_.interestOps() != ops) {
+            key_.interestOps(ops);
+        }
+    }
+}
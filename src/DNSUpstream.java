@@ -0,0 +1,480 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+// upstream class:
+//  - send queries to the upstream resolvers, all of them over one shared socket;
+//  - every query goes to the fastest healthy server (see DNSUpstreamServer),
+//    and if it has not answered after its usual percentile round trip, the
+//    same query is also sent to the next best one (hedging): the first reply wins;
+//  - every query gets its own random transaction id, and the reply is matched
+//    back through the pending table by id and question;
+//  - a query that is not answered in time counts as a failure of the servers
+//    asked, is sent again to one not tried yet, and failed once it runs out of retries;
+//  - identical questions asked while one is already outstanding share
+//    that query and all get its reply;
+//  - ask() sends a question to one given server instead, without sharing or
+//    hedging: the iterative resolver uses it to talk to authoritative servers;
+//  - a truncated reply (TC) is never handed out: the query is asked again over
+//    TCP to the server that sent it, on a thread of its own, and fails if that
+//    does not work out.
+// nothing blocks on the caller's side: query() returns a future that is
+// completed by the receiver thread (or by the timer on a timeout).
+
+public class DNSUpstream {
+
+    // one outstanding upstream query
+    private static class Pending {
+        final int id_;
+        final DNSQuestion question_;
+        final byte[] data_;
+        // the one server to ask, null to use the pool
+        final InetSocketAddress target_;
+        final CompletableFuture<DNSMessage> result_ = new CompletableFuture<>();
+        // DNSClock.precise() of the last send to every server
+        final long[] sentAt_;
+        // servers (bit per index) asked by the current attempt, and by any attempt
+        long asked_;
+        long tried_;
+        int attempts_;
+        // asked again over TCP: the UDP timers are off and UDP replies ignored
+        boolean tcp_;
+        ScheduledFuture<?> timeout_;
+        ScheduledFuture<?> hedge_;
+
+        Pending(int id, DNSQuestion question, byte[] data, InetSocketAddress target, int servers) {
+            id_ = id;
+            question_ = question;
+            data_ = data;
+            target_ = target;
+            sentAt_ = new long[servers];
+        }
+    }
+
+    // a query's tried servers are a bit mask
+    private static final int MAX_SERVERS = 64;
+    // never hedge sooner than this (ms), however fast the server usually is
+    private static final int MIN_HEDGE_DELAY = 5;
+
+    private final DatagramSocket socket_;
+    private final DNSUpstreamServer[] servers_;
+    private final boolean hedge_;
+    private final int timeout_;
+    private final int retries_;
+    // EDNS0 UDP payload size we advertise, 0 for no EDNS0
+    private final int ednsSize_;
+    // transaction id --> query waiting for its reply
+    private final ConcurrentHashMap<Integer, Pending> pending_ = new ConcurrentHashMap<>();
+    // question --> reply of the query already outstanding for it
+    private final ConcurrentHashMap<DNSQuestion, CompletableFuture<DNSMessage>> outstanding_ =
+            new ConcurrentHashMap<>();
+    // upstream queries saved by sharing an outstanding one
+    private final LongAdder coalesced_ = new LongAdder();
+    // second queries sent by hedging
+    private final LongAdder hedged_ = new LongAdder();
+    private final SecureRandom random_ = new SecureRandom();
+    private final ScheduledExecutorService timer_;
+    // TCP queries block, they get threads of their own
+    private final ExecutorService tcp_;
+    private final Thread receiver_;
+    // only used by the receiver thread
+    private final DNSWireMessage wire_ = new DNSWireMessage();
+
+    public DNSUpstream(DNSUpstreamServer[] servers, int timeout, int retries, int ednsSize,
+                       boolean hedge) throws SocketException {
+        if (servers.length > MAX_SERVERS) {
+            throw new IllegalArgumentException("at most " + MAX_SERVERS + " upstream servers");
+        }
+        servers_ = servers;
+        hedge_ = hedge && servers.length > 1;
+        timeout_ = timeout;
+        retries_ = retries;
+        ednsSize_ = ednsSize;
+        socket_ = new DatagramSocket();
+        timer_ = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "dns-upstream-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        tcp_ = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "dns-upstream-tcp");
+            t.setDaemon(true);
+            return t;
+        });
+        receiver_ = new Thread(this::receiveLoop, "dns-upstream-receiver");
+        receiver_.setDaemon(true);
+        receiver_.start();
+    }
+
+    // number of queries waiting for a reply
+    public int inFlight() {
+        return pending_.size();
+    }
+
+    // number of upstream queries that were not sent because
+    // the same question was already outstanding
+    public long coalesced() {
+        return coalesced_.sum();
+    }
+
+    // number of hedged (second) queries sent
+    public long hedged() {
+        return hedged_.sum();
+    }
+
+    public DNSUpstreamServer[] servers() {
+        return servers_;
+    }
+
+    // send the question upstream; the future completes with the reply,
+    // or exceptionally with a TimeoutException once all retries are used.
+    // if the same question is already outstanding, its future is returned instead.
+    public CompletableFuture<DNSMessage> query(DNSQuestion question) {
+        CompletableFuture<DNSMessage> mine = new CompletableFuture<>();
+        CompletableFuture<DNSMessage> shared = outstanding_.putIfAbsent(question, mine);
+        if (shared != null) {
+            coalesced_.increment();
+            return shared;
+        }
+        // the next identical question after this reply starts a new query
+        mine.whenComplete((reply, error) -> outstanding_.remove(question, mine));
+
+        if (servers_.length == 0) {
+            mine.completeExceptionally(new IOException("no upstream servers"));
+            return mine;
+        }
+        Pending p = register(question, null, true);
+        if (p == null) {
+            mine.completeExceptionally(
+                    new IOException("no free transaction id, too many queries in flight"));
+            return mine;
+        }
+        p.result_.whenComplete((reply, error) -> {
+            if (error != null) {
+                mine.completeExceptionally(error);
+            } else {
+                mine.complete(reply);
+            }
+        });
+        send(p);
+        return mine;
+    }
+
+    // send the question to that server only, once: on a timeout the caller moves
+    // on to another server itself. recursionDesired is false when asking authoritative servers
+    public CompletableFuture<DNSMessage> ask(DNSQuestion question, InetSocketAddress server,
+                                             boolean recursionDesired) {
+        Pending p = register(question, server, recursionDesired);
+        if (p == null) {
+            CompletableFuture<DNSMessage> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IOException("no free transaction id, too many queries in flight"));
+            return failed;
+        }
+        send(p);
+        return p.result_;
+    }
+
+    // pick an unused random id and put the query into the pending table
+    private Pending register(DNSQuestion question, InetSocketAddress target, boolean recursionDesired) {
+        for (int tries = 0; tries < 64; tries++) {
+            int id = random_.nextInt(0x10000);
+            if (pending_.containsKey(id)) {
+                continue;
+            }
+            Pending p;
+            try {
+                DNSMessage query = DNSMessage.buildQuery(question, id, ednsSize_);
+                query.header_.rd_ = recursionDesired ? 1 : 0;
+                p = new Pending(id, question, query.toBytes(), target, target != null ? 1 : servers_.length);
+            } catch (IOException e) {
+                return null;
+            }
+            if (pending_.putIfAbsent(id, p) == null) {
+                return p;
+            }
+        }
+        return null;
+    }
+
+    // the fastest healthy server, preferring one the query has not been sent to (not in skip).
+    // if none is healthy, the one that comes back first.
+    private int pick(long skip) {
+        int best = -1;
+        boolean bestFresh = false;
+        for (int i = 0; i < servers_.length; i++) {
+            DNSUpstreamServer server = servers_[i];
+            if (!server.healthy()) {
+                continue;
+            }
+            boolean fresh = (skip & (1L << i)) == 0;
+            if (best < 0 || (fresh && !bestFresh)
+                    || (fresh == bestFresh && server.srtt() < servers_[best].srtt())) {
+                best = i;
+                bestFresh = fresh;
+            }
+        }
+        if (best >= 0) {
+            return best;
+        }
+        best = 0;
+        for (int i = 1; i < servers_.length; i++) {
+            if (servers_[i].downUntil() < servers_[best].downUntil()) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    // a new attempt: to the best server, with the timeout and the hedge armed
+    private void send(Pending p) {
+        if (p.target_ != null) {
+            synchronized (p) {
+                p.attempts_++;
+                p.sentAt_[0] = DNSClock.precise();
+                p.timeout_ = timer_.schedule(() -> onTimeout(p), timeout_, TimeUnit.MILLISECONDS);
+            }
+            try {
+                socket_.send(new DatagramPacket(p.data_, p.data_.length, p.target_));
+            } catch (IOException e) {
+                finish(p, null, e);
+            }
+            return;
+        }
+        int server;
+        synchronized (p) {
+            server = pick(p.tried_);
+            p.attempts_++;
+            p.asked_ = 0;
+            p.timeout_ = timer_.schedule(() -> onTimeout(p), timeout_, TimeUnit.MILLISECONDS);
+            if (hedge_) {
+                p.hedge_ = timer_.schedule(() -> onHedge(p), hedgeDelay(servers_[server]), TimeUnit.MILLISECONDS);
+            }
+        }
+        transmit(p, server);
+    }
+
+    private void transmit(Pending p, int server) {
+        synchronized (p) {
+            p.asked_ |= 1L << server;
+            p.tried_ |= 1L << server;
+            p.sentAt_[server] = DNSClock.precise();
+        }
+        try {
+            socket_.send(new DatagramPacket(p.data_, p.data_.length, servers_[server].address_));
+        } catch (IOException e) {
+            finish(p, null, e);
+        }
+    }
+
+    // how long to wait for the server before hedging: its percentile round trip
+    // once it is known, a quarter of the timeout until then
+    private long hedgeDelay(DNSUpstreamServer server) {
+        long rtt = server.percentileRTT();
+        long delay = rtt < 0 ? timeout_ / 4 : rtt;
+        return Math.max(MIN_HEDGE_DELAY, Math.min(delay, timeout_ / 2));
+    }
+
+    // the server is slow this time: ask another one as well
+    private void onHedge(Pending p) {
+        int server;
+        synchronized (p) {
+            if (p.result_.isDone() || p.tcp_) {
+                return;
+            }
+            server = pick(p.asked_);
+            if ((p.asked_ & (1L << server)) != 0) {
+                // no other server worth asking
+                return;
+            }
+        }
+        hedged_.increment();
+        transmit(p, server);
+    }
+
+    private void onTimeout(Pending p) {
+        synchronized (p) {
+            if (p.result_.isDone() || p.tcp_) {
+                return;
+            }
+        }
+        DNSMetrics.UPSTREAM_TIMEOUTS.increment();
+        // nobody asked in this attempt answered in time
+        for (int i = 0; i < servers_.length; i++) {
+            if ((p.asked_ & (1L << i)) != 0) {
+                servers_[i].failed();
+            }
+        }
+        if (p.target_ == null && p.attempts_ <= retries_) {
+            send(p);
+        } else {
+            finish(p, null, new TimeoutException("upstream timed out for " +
+                    DNSMessage.octetsToString(p.question_.qName_)));
+        }
+    }
+
+    private void finish(Pending p, DNSMessage reply, Throwable error) {
+        // only the first one to take the query out of the table completes it
+        if (!pending_.remove(p.id_, p)) {
+            return;
+        }
+        synchronized (p) {
+            if (p.timeout_ != null) {
+                p.timeout_.cancel(false);
+            }
+            if (p.hedge_ != null) {
+                p.hedge_.cancel(false);
+            }
+        }
+        if (error != null) {
+            p.result_.completeExceptionally(error);
+        } else {
+            p.result_.complete(reply);
+        }
+    }
+
+    private void receiveLoop() {
+        // as big as the largest reply we said we can take
+        byte[] buffer = new byte[Math.max(512, ednsSize_)];
+        DatagramPacket pkt = new DatagramPacket(buffer, buffer.length);
+        while (!socket_.isClosed()) {
+            try {
+                pkt.setLength(buffer.length);
+                socket_.receive(pkt);
+                // check the reply in place before decoding anything
+                DNSWireMessage wire = wire_.wrap(ByteBuffer.wrap(buffer, 0, pkt.getLength()));
+                Pending p = pending_.get(wire.id());
+                // drop anything that is not an answer to the question we asked with this id...
+                if (p == null || wire.qr() != 1 || wire.qdCount() != 1
+                        || !wire.questionEquals(0, p.question_)) {
+                    continue;
+                }
+                // ...from a server we sent it to
+                if (p.target_ != null) {
+                    if (p.target_.getPort() == pkt.getPort() && p.target_.getAddress().equals(pkt.getAddress())) {
+                        synchronized (p) {
+                            if (p.tcp_) {
+                                continue;
+                            }
+                        }
+                        DNSMetrics.UPSTREAM_RTT.record((DNSClock.precise() - p.sentAt_[0]) * 1000);
+                        reply(p, wire, buffer, pkt.getLength(), p.target_);
+                    }
+                    continue;
+                }
+                int server = serverIndex(pkt);
+                if (server < 0) {
+                    continue;
+                }
+                long now = DNSClock.precise();
+                synchronized (p) {
+                    if ((p.tried_ & (1L << server)) == 0 || p.tcp_) {
+                        continue;
+                    }
+                    servers_[server].succeeded(now - p.sentAt_[server]);
+                    DNSMetrics.UPSTREAM_RTT.record((now - p.sentAt_[server]) * 1000);
+                    // the others asked this attempt lost the race
+                    for (int i = 0; i < servers_.length; i++) {
+                        if (i != server && (p.asked_ & (1L << i)) != 0) {
+                            servers_[i].lagged(now - p.sentAt_[i]);
+                        }
+                    }
+                }
+                reply(p, wire, buffer, pkt.getLength(), servers_[server].address_);
+            } catch (IOException | RuntimeException e) {
+                if (!socket_.isClosed()) {
+                    DNSLog.error("bad upstream reply: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // the reply to the query from the server, unless it is truncated: then the
+    // query is asked again over TCP, and nothing else about it is done over UDP
+    private void reply(Pending p, DNSWireMessage wire, byte[] buffer, int length, InetSocketAddress server)
+            throws IOException {
+        if (wire.tc() == 0) {
+            finish(p, DNSMessage.decodeMessage(Arrays.copyOf(buffer, length)), null);
+            return;
+        }
+        synchronized (p) {
+            p.tcp_ = true;
+            if (p.timeout_ != null) {
+                p.timeout_.cancel(false);
+            }
+            if (p.hedge_ != null) {
+                p.hedge_.cancel(false);
+            }
+        }
+        DNSMetrics.UPSTREAM_TCP.increment();
+        try {
+            tcp_.execute(() -> {
+                try {
+                    finish(p, askTcp(p, server), null);
+                } catch (IOException | RuntimeException e) {
+                    finish(p, null, new IOException("upstream TCP query failed for "
+                            + DNSMessage.octetsToString(p.question_.qName_) + ": " + e.getMessage(), e));
+                }
+            });
+        } catch (RuntimeException e) {
+            finish(p, null, new IOException("upstream closed"));
+        }
+    }
+
+    // send the query over TCP and read its reply, within the timeout
+    private DNSMessage askTcp(Pending p, InetSocketAddress server) throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(server, timeout_);
+            socket.setSoTimeout(timeout_);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            byte[] query = new byte[2 + p.data_.length];
+            ByteBuffer.wrap(query).putShort((short) p.data_.length).put(p.data_);
+            out.write(query);
+            out.flush();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            byte[] data = new byte[in.readUnsignedShort()];
+            in.readFully(data);
+            DNSWireMessage wire = new DNSWireMessage().wrap(ByteBuffer.wrap(data));
+            if (wire.id() != p.id_ || wire.qr() != 1 || wire.qdCount() != 1
+                    || !wire.questionEquals(0, p.question_)) {
+                throw new IOException("not an answer to the query");
+            }
+            return DNSMessage.decodeMessage(data);
+        }
+    }
+
+    private int serverIndex(DatagramPacket pkt) {
+        for (int i = 0; i < servers_.length; i++) {
+            InetSocketAddress address = servers_[i].address_;
+            if (address.getPort() == pkt.getPort() && address.getAddress().equals(pkt.getAddress())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public void close() {
+        socket_.close();
+        timer_.shutdownNow();
+        tcp_.shutdownNow();
+        for (Pending p : pending_.values()) {
+            finish(p, null, new IOException("upstream closed"));
+        }
+    }
+}
@@ -0,0 +1,115 @@
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+// upstream server class:
+//  - one upstream resolver and how it has been doing lately;
+//  - a smoothed round trip time (EWMA, 1/8 of every new sample, as TCP does)
+//    to pick the fastest server, and the last SAMPLES round trips to get a
+//    percentile from, which is how long to wait before hedging;
+//  - losing to a hedged query counts as a round trip at least that long;
+//  - consecutive timeouts mark it down for a while, doubling each time,
+//    after that it gets one query again to see whether it is back.
+
+public class DNSUpstreamServer {
+
+    // round trips kept for the percentile, and how often it is computed again
+    private static final int SAMPLES = 64;
+    private static final int RECOMPUTE_EVERY = 16;
+    // timeouts in a row before the server is considered down
+    private static final int MAX_FAILURES = 3;
+    private static final long MIN_DOWN_MS = 1000;
+    private static final long MAX_DOWN_MS = 60_000;
+
+    public final InetSocketAddress address_;
+    private final double percentile_;
+
+    // smoothed round trip time in ms, 0 until the first reply
+    private volatile double srtt_;
+    private final long[] samples_ = new long[SAMPLES];
+    private int sampleCount_;
+    private volatile long percentileRTT_ = -1;
+    private int failures_;
+    // DNSClock millis until which the server is not asked, 0 if it is up
+    private volatile long downUntil_;
+
+    public DNSUpstreamServer(InetSocketAddress address, double percentile) {
+        address_ = address;
+        percentile_ = percentile;
+    }
+
+    // "8.8.8.8", "1.1.1.1:5353", "[::1]:53" (defaultPort if none is given)
+    public static DNSUpstreamServer parse(String server, int defaultPort, double percentile) {
+        return new DNSUpstreamServer(parseAddress(server, defaultPort), percentile);
+    }
+
+    // the address of "host", "host:port" or "[v6 address]:port", resolved once here
+    public static InetSocketAddress parseAddress(String server, int defaultPort) {
+        String host = server;
+        int port = defaultPort;
+        int colon = server.lastIndexOf(':');
+        if (server.startsWith("[")) {
+            int close = server.indexOf(']');
+            host = server.substring(1, close);
+            if (colon > close) {
+                port = Integer.parseInt(server.substring(colon + 1));
+            }
+        } else if (colon >= 0 && colon == server.indexOf(':')) {
+            host = server.substring(0, colon);
+            port = Integer.parseInt(server.substring(colon + 1));
+        }
+        return new InetSocketAddress(host, port);
+    }
+
+    public double srtt() {
+        return srtt_;
+    }
+
+    // whether the server should be asked now
+    public boolean healthy() {
+        return DNSClock.now() >= downUntil_;
+    }
+
+    public long downUntil() {
+        return downUntil_;
+    }
+
+    // the percentile round trip, -1 until there are enough samples
+    public long percentileRTT() {
+        return percentileRTT_;
+    }
+
+    public synchronized void succeeded(long rtt) {
+        failures_ = 0;
+        downUntil_ = 0;
+        srtt_ = srtt_ == 0 ? Math.max(1, rtt) : srtt_ + (rtt - srtt_) / 8;
+        samples_[sampleCount_ % SAMPLES] = rtt;
+        sampleCount_++;
+        if (sampleCount_ % RECOMPUTE_EVERY == 0) {
+            long[] sorted = Arrays.copyOf(samples_, Math.min(sampleCount_, SAMPLES));
+            Arrays.sort(sorted);
+            percentileRTT_ = sorted[(int) Math.min(sorted.length - 1, Math.floor(percentile_ * sorted.length))];
+        }
+    }
+
+    // the server was asked, but another one answered first after elapsed ms:
+    // this one is at least that slow
+    public synchronized void lagged(long elapsed) {
+        if (elapsed > srtt_) {
+            srtt_ = srtt_ == 0 ? elapsed : srtt_ + (elapsed - srtt_) / 8;
+        }
+    }
+
+    public synchronized void failed() {
+        failures_++;
+        if (failures_ >= MAX_FAILURES) {
+            long down = Math.min(MAX_DOWN_MS, MIN_DOWN_MS << Math.min(16, failures_ - MAX_FAILURES));
+            downUntil_ = DNSClock.now() + down;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return address_.getAddress().getHostAddress() + ":" + address_.getPort()
+                + " (srtt " + Math.round(srtt_) + " ms" + (healthy() ? "" : ", down") + ")";
+    }
+}
@@ -0,0 +1,354 @@
+import java.nio.ByteBuffer;
+
+// wire message class:
+//  - a flyweight view of a DNS message sitting in a ByteBuffer;
+//  - header fields are read straight from the buffer, questions and records
+//    are found lazily, and names stay offsets into the buffer until someone
+//    asks for them as Strings;
+//  - wrap() points it at the next packet, so one instance can be reused
+//    for every packet a thread handles.
+// all offsets are from the start of the message, like compression pointers.
+// a malformed message makes the getters throw IndexOutOfBoundsException.
+
+public class DNSWireMessage {
+
+    // a name may not follow more pointers than this (protects against loops)
+    private static final int MAX_POINTERS = 32;
+
+    private ByteBuffer buf_;
+    private int base_;
+    private int length_;
+    // offset of the first record, -1 until it is needed
+    private int recordsStart_;
+    // offsets of the records found so far
+    private int[] recordOffsets_ = new int[16];
+    private int recordsFound_;
+
+    public DNSWireMessage wrap(ByteBuffer buf) {
+        buf_ = buf;
+        base_ = buf.position();
+        length_ = buf.remaining();
+        recordsStart_ = -1;
+        recordsFound_ = 0;
+        return this;
+    }
+
+    public ByteBuffer buffer() {
+        return buf_;
+    }
+
+    public int length() {
+        return length_;
+    }
+
+    // ---- header ----
+
+    public int id() {
+        return u16(0);
+    }
+
+    public int qr() {
+        return u8(2) >> 7;
+    }
+
+    public int opcode() {
+        return (u8(2) >> 3) & 0xf;
+    }
+
+    public int tc() {
+        return (u8(2) >> 1) & 1;
+    }
+
+    public int rd() {
+        return u8(2) & 1;
+    }
+
+    public int rCode() {
+        return u8(3) & 0xf;
+    }
+
+    public int qdCount() {
+        return u16(4);
+    }
+
+    public int anCount() {
+        return u16(6);
+    }
+
+    public int nsCount() {
+        return u16(8);
+    }
+
+    public int arCount() {
+        return u16(10);
+    }
+
+    // ---- questions ----
+
+    // offset of the name of the i-th question
+    public int questionOffset(int i) {
+        int offset = 12;
+        for (int q = 0; q < i; q++) {
+            offset = skipName(offset) + 4;
+        }
+        return offset;
+    }
+
+    public int questionType(int i) {
+        return u16(skipName(questionOffset(i)));
+    }
+
+    public int questionClass(int i) {
+        return u16(skipName(questionOffset(i)) + 2);
+    }
+
+    // whether the i-th question is the same as the given one (same rules as DNSQuestion.equals)
+    public boolean questionEquals(int i, DNSQuestion question) {
+        int offset = questionOffset(i);
+        int end = skipName(offset);
+        return u16(end) == question.qType_ && u16(end + 2) == question.qClass_
+                && nameEquals(offset, question.qName_);
+    }
+
+    // build the i-th question as an object, e.g. to use as a cache key
+    public DNSQuestion question(int i) {
+        int offset = questionOffset(i);
+        int end = skipName(offset);
+        DNSQuestion question = new DNSQuestion();
+        question.qName_ = nameLabels(offset);
+        question.qType_ = u16(end);
+        question.qClass_ = u16(end + 2);
+        return question;
+    }
+
+    // ---- records ----
+
+    // number of records in the answer, authority and additional sections
+    public int recordCount() {
+        return anCount() + nsCount() + arCount();
+    }
+
+    // offset of the name of the i-th record, counting all three sections in order
+    public int recordOffset(int i) {
+        if (recordsStart_ < 0) {
+            recordsStart_ = questionOffset(qdCount());
+        }
+        while (recordsFound_ <= i) {
+            int offset = recordsStart_;
+            if (recordsFound_ > 0) {
+                // the next record starts right after the previous one's rdata
+                int data = dataOffsetOf(recordOffsets_[recordsFound_ - 1]);
+                offset = data + u16(data - 2);
+            }
+            if (recordsFound_ == recordOffsets_.length) {
+                int[] bigger = new int[recordOffsets_.length * 2];
+                System.arraycopy(recordOffsets_, 0, bigger, 0, recordsFound_);
+                recordOffsets_ = bigger;
+            }
+            recordOffsets_[recordsFound_++] = offset;
+        }
+        return recordOffsets_[i];
+    }
+
+    public int recordType(int i) {
+        return u16(skipName(recordOffset(i)));
+    }
+
+    public int recordClass(int i) {
+        return u16(skipName(recordOffset(i)) + 2);
+    }
+
+    // offset of the 4-byte TTL of the i-th record
+    public int recordTTLOffset(int i) {
+        return skipName(recordOffset(i)) + 4;
+    }
+
+    public long recordTTL(int i) {
+        return u32(recordTTLOffset(i));
+    }
+
+    // offset of the rdata of the i-th record
+    public int recordDataOffset(int i) {
+        return dataOffsetOf(recordOffset(i));
+    }
+
+    public int recordDataLength(int i) {
+        return u16(recordDataOffset(i) - 2);
+    }
+
+    private int dataOffsetOf(int recordOffset) {
+        return skipName(recordOffset) + 10;
+    }
+
+    // UDP payload size from the EDNS0 OPT record in the additional section,
+    // at least 512, or 0 if there is no OPT record
+    public int ednsPayloadSize() {
+        int first = anCount() + nsCount();
+        int end = first + arCount();
+        for (int i = first; i < end; i++) {
+            if (recordType(i) == DNSCacheEntry.TYPE_OPT) {
+                return Math.max(512, recordClass(i));
+            }
+        }
+        return 0;
+    }
+
+    // ---- names ----
+
+    // offset right after the name starting at offset (a pointer ends the name)
+    public int skipName(int offset) {
+        while (true) {
+            int length = u8(offset);
+            if (length == 0) {
+                return offset + 1;
+            }
+            if ((length & 0xc0) == 0xc0) {
+                return offset + 2;
+            }
+            offset += length + 1;
+        }
+    }
+
+    // compare the name at offset with the labels, following pointers, without copying anything
+    public boolean nameEquals(int offset, String[] labels) {
+        int label = 0;
+        int pointers = 0;
+        while (true) {
+            int length = u8(offset);
+            if ((length & 0xc0) == 0xc0) {
+                if (++pointers > MAX_POINTERS) {
+                    throw new IndexOutOfBoundsException("compression loop at " + offset);
+                }
+                offset = ((length & 0x3f) << 8) | u8(offset + 1);
+                continue;
+            }
+            if (length == 0) {
+                return label == labels.length;
+            }
+            if (label == labels.length || labels[label].length() != length) {
+                return false;
+            }
+            String piece = labels[label++];
+            for (int i = 0; i < length; i++) {
+                if (u8(offset + 1 + i) != piece.charAt(i)) {
+                    return false;
+                }
+            }
+            offset += length + 1;
+        }
+    }
+
+    // case-insensitive hash of the name at offset, following pointers
+    public int nameHash(int offset) {
+        int hash = 1;
+        int pointers = 0;
+        while (true) {
+            int length = u8(offset);
+            if ((length & 0xc0) == 0xc0) {
+                if (++pointers > MAX_POINTERS) {
+                    throw new IndexOutOfBoundsException("compression loop at " + offset);
+                }
+                offset = ((length & 0x3f) << 8) | u8(offset + 1);
+                continue;
+            }
+            hash = 31 * hash + length;
+            if (length == 0) {
+                return hash;
+            }
+            for (int i = 1; i <= length; i++) {
+                int c = u8(offset + i);
+                if (c >= 'A' && c <= 'Z') {
+                    c += 'a' - 'A';
+                }
+                hash = 31 * hash + c;
+            }
+            offset += length + 1;
+        }
+    }
+
+    // the labels of the name at offset, as Strings
+    public String[] nameLabels(int offset) {
+        // count first so only the result array is allocated
+        int count = 0;
+        int pointers = 0;
+        for (int at = offset; ; ) {
+            int length = u8(at);
+            if ((length & 0xc0) == 0xc0) {
+                if (++pointers > MAX_POINTERS) {
+                    throw new IndexOutOfBoundsException("compression loop at " + at);
+                }
+                at = ((length & 0x3f) << 8) | u8(at + 1);
+                continue;
+            }
+            if (length == 0) {
+                break;
+            }
+            count++;
+            at += length + 1;
+        }
+        String[] labels = new String[count];
+        int label = 0;
+        for (int at = offset; label < count; ) {
+            int length = u8(at);
+            if ((length & 0xc0) == 0xc0) {
+                at = ((length & 0x3f) << 8) | u8(at + 1);
+                continue;
+            }
+            char[] chars = new char[length];
+            for (int i = 0; i < length; i++) {
+                chars[i] = (char) u8(at + 1 + i);
+            }
+            labels[label++] = new String(chars);
+            at += length + 1;
+        }
+        return labels;
+    }
+
+    // copy the name at offset into to at at, in wire format without pointers (as
+    // DNSOffHeapCache keys it); the offset after it in to, or -1 if it does not fit
+    public int copyName(int offset, byte[] to, int at) {
+        int pointers = 0;
+        while (true) {
+            int length = u8(offset);
+            if ((length & 0xc0) == 0xc0) {
+                if (++pointers > MAX_POINTERS) {
+                    throw new IndexOutOfBoundsException("compression loop at " + offset);
+                }
+                offset = ((length & 0x3f) << 8) | u8(offset + 1);
+                continue;
+            }
+            if (at + length + 1 > to.length) {
+                return -1;
+            }
+            to[at++] = (byte) length;
+            if (length == 0) {
+                return at;
+            }
+            for (int i = 1; i <= length; i++) {
+                to[at++] = (byte) u8(offset + i);
+            }
+            offset += length + 1;
+        }
+    }
+
+    public String nameToString(int offset) {
+        return DNSMessage.octetsToString(nameLabels(offset));
+    }
+
+    // ---- raw access ----
+
+    public int u8(int offset) {
+        if (offset >= length_) {
+            throw new IndexOutOfBoundsException("offset " + offset + " past end of message");
+        }
+        return buf_.get(base_ + offset) & 0xff;
+    }
+
+    public int u16(int offset) {
+        return (u8(offset) << 8) | u8(offset + 1);
+    }
+
+    public long u32(int offset) {
+        return ((long) u16(offset) << 16) | u16(offset + 2);
+    }
+}
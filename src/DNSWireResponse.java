@@ -0,0 +1,169 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// wire response class:
+//  - a response to one question, encoded once when it goes into the cache;
+//  - remembers where the id and every TTL sit in the bytes;
+//  - serving it is a copy of the bytes with the client's id and the
+//    remaining TTLs patched in, no DNSMessage and no toBytes() involved
+
+public class DNSWireResponse {
+
+    // the encoded response, with id 0
+    private final byte[] wire_;
+    // offsets of the 4-byte TTL fields, and the TTL that was there when encoded
+    private final int[] ttlOffsets_;
+    private final long[] ttls_;
+    // when it was encoded (DNSClock millis)
+    private final long createdAt_;
+
+    // bytes of an OPT record without options
+    private static final int OPT_LENGTH = 11;
+
+    private DNSWireResponse(byte[] wire, int[] ttlOffsets, long[] ttls, long createdAt) {
+        wire_ = wire;
+        ttlOffsets_ = ttlOffsets;
+        ttls_ = ttls;
+        createdAt_ = createdAt;
+    }
+
+    // encode the response to the question from the cache entry
+    public static DNSWireResponse encode(DNSQuestion question, DNSCacheEntry entry) throws IOException {
+        DNSMessage response = DNSMessage.buildResponse(DNSMessage.buildQuery(question, 0),
+                entry.answers_, entry.authority_, entry.additional_, entry.rCode_);
+        byte[] wire = response.toBytes();
+        // find the TTLs in the encoded bytes
+        DNSWireMessage view = new DNSWireMessage().wrap(ByteBuffer.wrap(wire));
+        int count = view.recordCount();
+        int[] ttlOffsets = new int[count];
+        long[] ttls = new long[count];
+        for (int i = 0; i < count; i++) {
+            ttlOffsets[i] = view.recordTTLOffset(i);
+            ttls[i] = view.recordTTL(i);
+        }
+        return new DNSWireResponse(wire, ttlOffsets, ttls, DNSClock.now());
+    }
+
+    // a response kept outside the heap (DNSOffHeapCache) brought back: its wire(),
+    // ttlOffsets() and createdAt(). the TTLs are read from the wire.
+    public static DNSWireResponse restore(byte[] wire, int[] ttlOffsets, long createdAt) {
+        long[] ttls = new long[ttlOffsets.length];
+        ByteBuffer view = ByteBuffer.wrap(wire);
+        for (int i = 0; i < ttlOffsets.length; i++) {
+            ttls[i] = view.getInt(ttlOffsets[i]) & 0xffffffffL;
+        }
+        return new DNSWireResponse(wire, ttlOffsets, ttls, createdAt);
+    }
+
+    // the encoded bytes as they were when encoded, not a copy
+    public byte[] wire() {
+        return wire_;
+    }
+
+    public int[] ttlOffsets() {
+        return ttlOffsets_;
+    }
+
+    public long createdAt() {
+        return createdAt_;
+    }
+
+    public int length() {
+        return wire_.length;
+    }
+
+    // the response cut down to its header and questions with the TC bit set, for a UDP
+    // client it does not fit; the client then asks again over TCP (RFC 7766).
+    // an OPT record advertising udpPayloadSize is added if it is not 0.
+    public static byte[] truncate(byte[] response, int udpPayloadSize) {
+        DNSWireMessage view = new DNSWireMessage().wrap(ByteBuffer.wrap(response));
+        int end = view.questionOffset(view.qdCount());
+        byte[] out = Arrays.copyOf(response, end + (udpPayloadSize > 0 ? OPT_LENGTH : 0));
+        // TC
+        out[2] |= 0x02;
+        // no answer, authority or additional records, but the OPT one
+        Arrays.fill(out, 6, 12, (byte) 0);
+        if (udpPayloadSize > 0) {
+            out[11] = 1;
+            writeOpt(out, end, udpPayloadSize);
+        }
+        return out;
+    }
+
+    // the same truncated response, made from the query itself without looking anything
+    // up (DNSRateLimiter's TRUNCATE), written into out. false, and nothing written,
+    // if the query has no single question or out has no room.
+    public static boolean truncateQuery(DNSWireMessage query, ByteBuffer out) {
+        if (query.qr() != 0 || query.qdCount() != 1) {
+            return false;
+        }
+        int end = query.questionOffset(1);
+        if (end > out.remaining()) {
+            return false;
+        }
+        int start = out.position();
+        for (int i = 0; i < end; i++) {
+            out.put((byte) query.u8(i));
+        }
+        // QR, TC, the opcode and RD as asked; only the question
+        out.put(start + 2, (byte) (0x82 | (query.u8(2) & 0x79)));
+        out.put(start + 3, (byte) 0);
+        for (int i = 6; i < 12; i++) {
+            out.put(start + i, (byte) 0);
+        }
+        return true;
+    }
+
+    // root name, type 41, class = payload size, ttl 0, rdlength 0
+    private static void writeOpt(byte[] out, int at, int udpPayloadSize) {
+        out[at] = 0;
+        out[at + 1] = 0;
+        out[at + 2] = (byte) DNSCacheEntry.TYPE_OPT;
+        out[at + 3] = (byte) (udpPayloadSize >> 8);
+        out[at + 4] = (byte) udpPayloadSize;
+        Arrays.fill(out, at + 5, at + OPT_LENGTH, (byte) 0);
+    }
+
+    // the response bytes for a client that asked with the given id
+    public byte[] render(int id) {
+        return render(id, 0);
+    }
+
+    // same, with an EDNS0 OPT record advertising udpPayloadSize at the end (none if 0).
+    // the cached bytes never have one, as an OPT record is only for the client that asked.
+    public byte[] render(int id, int udpPayloadSize) {
+        byte[] out = new byte[wire_.length + (udpPayloadSize > 0 ? OPT_LENGTH : 0)];
+        renderTo(ByteBuffer.wrap(out), id, udpPayloadSize, out.length);
+        return out;
+    }
+
+    // same as render(), written into out at its position (which is moved past it) instead
+    // of a new array. false, and nothing written, if it is longer than limit or out's room.
+    public boolean renderTo(ByteBuffer out, int id, int udpPayloadSize, int limit) {
+        int length = wire_.length + (udpPayloadSize > 0 ? OPT_LENGTH : 0);
+        if (length > limit || length > out.remaining()) {
+            return false;
+        }
+        int start = out.position();
+        out.put(wire_);
+        if (udpPayloadSize > 0) {
+            out.putShort(start + 10, (short) (out.getShort(start + 10) + 1));
+            // root name, type 41, class = payload size, ttl 0, rdlength 0
+            out.put((byte) 0);
+            out.putShort((short) DNSCacheEntry.TYPE_OPT);
+            out.putShort((short) udpPayloadSize);
+            out.putInt(0);
+            out.putShort((short) 0);
+        }
+        // patch the id
+        out.putShort(start, (short) id);
+        // patch the TTLs with what is left of them
+        long elapsed = (DNSClock.now() - createdAt_) / 1000L;
+        for (int i = 0; i < ttlOffsets_.length; i++) {
+            long ttl = Math.max(0, ttls_[i] - elapsed);
+            out.putInt(start + ttlOffsets_[i], (int) ttl);
+        }
+        return true;
+    }
+}